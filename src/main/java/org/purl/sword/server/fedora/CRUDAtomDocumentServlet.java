@@ -153,7 +153,7 @@ public class CRUDAtomDocumentServlet extends AtomDocumentServlet {
         try {
             deposit.setMd5(request.getHeader("Content-MD5"));
             // The base implementation in DepositServlet performs MD5 checking here. We
-            // leave this to the FileHandler.
+            // leave this to the FileHandler, which checks it while reading the content.
             deposit.setFile(request.getInputStream());
         } catch (Exception e) {
             log.error(e.getMessage());
@@ -44,11 +44,14 @@ import org.purl.sword.base.*;
 import org.purl.sword.server.fedora.baseExtensions.DeleteRequest;
 import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
 import org.purl.sword.server.fedora.baseExtensions.ServiceDocumentQueries;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraClientPool;
 import org.purl.sword.server.fedora.fileHandlers.FileHandler;
+import org.purl.sword.server.fedora.utils.DepositWorkspace;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.bind.JAXBElement;
 import javax.xml.namespace.QName;
+import javax.xml.ws.WebServiceException;
 import java.io.File;
 import java.math.BigInteger;
 import java.util.Iterator;
@@ -71,7 +74,7 @@ public class CRUDFedoraServer extends FedoraServer implements CRUDSWORDServer {
         final String objectPID = requestInfo.getObjectPID();
         final String onBehalfOf = requestInfo.getOnBehalfOf();
 
-        ServiceDocumentQueries serviceDocument = (ServiceDocumentQueries) this.getServiceDocument(onBehalfOf);
+        ServiceDocumentQueries serviceDocument = (ServiceDocumentQueries) this.getCachedServiceDocument(onBehalfOf);
         authorizes(serviceDocument, onBehalfOf, collectionPID);
 
         if (deleteRequest.isNoOp()) {
@@ -79,13 +82,21 @@ public class CRUDFedoraServer extends FedoraServer implements CRUDSWORDServer {
             return;
         }
 
-        FieldSearchResult fsr = getFieldSearchResult(objectPID);
-        if (fsr.getResultList().getObjectFields().isEmpty()) {
-            throw new CRUDObjectNotFoundException("Object " + objectPID + " not found");
-        }
+        FedoraClientPool.Client client = leaseClient(requestInfo.getUsername(), requestInfo.getPassword());
+        try {
+            FieldSearchResult fsr = getFieldSearchResult(client, objectPID);
+            if (fsr.getResultList().getObjectFields().isEmpty()) {
+                throw new CRUDObjectNotFoundException("Object " + objectPID + " not found");
+            }
 
-        setObjectState(objectPID, fsr, deleteRequest.getDesiredState(), "State change on behalf of " + onBehalfOf);
-        log.debug("Set object state for " + objectPID + " to '" + deleteRequest.getDesiredState() + "'");
+            setObjectState(client, objectPID, fsr, deleteRequest.getDesiredState(), "State change on behalf of " + onBehalfOf);
+            log.debug("Set object state for " + objectPID + " to '" + deleteRequest.getDesiredState() + "'");
+        } catch (WebServiceException e) {
+            forgetCredentialsIfRejected(e, requestInfo.getUsername(), requestInfo.getPassword());
+            throw e;
+        } finally {
+            client.close();
+        }
 
         safeDeleteCachedResponse(collectionPID, objectPID);
     }
@@ -109,12 +120,12 @@ public class CRUDFedoraServer extends FedoraServer implements CRUDSWORDServer {
         final String objectPID = requestInfo.getObjectPID();
         final String onBehalfOf = requestInfo.getOnBehalfOf();
 
-        ServiceDocumentQueries serviceDocument = (ServiceDocumentQueries) this.getServiceDocument(onBehalfOf);
+        ServiceDocumentQueries serviceDocument = (ServiceDocumentQueries) this.getCachedServiceDocument(onBehalfOf);
         authorizes(serviceDocument, onBehalfOf, collectionPID);
         contentAcceptable(serviceDocument, deposit, collectionPID);
         packageTypeAcceptable(serviceDocument, deposit, collectionPID);
 
-        FileHandler fileHandler = fileHandlerFactory.getFileHandler(deposit.getContentType(), deposit.getPackaging());
+        FileHandler fileHandler = getFileHandlerFactory().getFileHandler(deposit.getContentType(), deposit.getPackaging(), collectionPID);
 
         final DepositResponse depositResponse = new DepositResponse(HttpServletResponse.SC_OK);
 
@@ -124,16 +135,36 @@ public class CRUDFedoraServer extends FedoraServer implements CRUDSWORDServer {
             return depositResponse;
         }
 
-        FieldSearchResult fsr = getFieldSearchResult(objectPID);
-        if (fsr.getResultList().getObjectFields().isEmpty()) {
-            throw new CRUDObjectNotFoundException("Object " + objectPID + " not found");
+        FedoraClientPool.Client client = leaseClient(requestInfo.getUsername(), requestInfo.getPassword());
+        try {
+            FieldSearchResult fsr = getFieldSearchResult(client, objectPID);
+            if (fsr.getResultList().getObjectFields().isEmpty()) {
+                throw new CRUDObjectNotFoundException("Object " + objectPID + " not found");
+            }
+        } catch (WebServiceException e) {
+            forgetCredentialsIfRejected(e, requestInfo.getUsername(), requestInfo.getPassword());
+            throw e;
+        } finally {
+            client.close();
         }
 
         // use deposit ID to transport target object PID
         deposit.setDepositID(objectPID);
 
-        SWORDEntry swordEntry = fileHandler.updateDeposit(
-                new DepositCollection(deposit, collectionPID), (ServiceDocument) serviceDocument);
+        DepositCollection depositCollection = new DepositCollection(deposit, collectionPID);
+        SWORDEntry swordEntry;
+        try {
+            swordEntry = fileHandler.updateDeposit(depositCollection, (ServiceDocument) serviceDocument);
+        } catch (SWORDException e) {
+            SWORDErrorException error = toErrorException(e);
+            if (error != null) {
+                log.warn("Update rejected: " + e.getMessage());
+                throw error;
+            }
+            throw e;
+        } finally {
+            DepositWorkspace.release(depositCollection);
+        }
         depositResponse.setEntry(swordEntry);
 
         Link link = getEditLink(swordEntry);
@@ -159,7 +190,7 @@ public class CRUDFedoraServer extends FedoraServer implements CRUDSWORDServer {
         return link;
     }
 
-    private FieldSearchResult getFieldSearchResult(final String objectPID) {
+    private FieldSearchResult getFieldSearchResult(FedoraClientPool.Client client, final String objectPID) {
         FieldSearchQuery fsq = new FieldSearchQuery();
         fsq.setConditions(new JAXBElement<FieldSearchQuery.Conditions>(
                 new QName("conditions"),
@@ -172,7 +203,7 @@ public class CRUDFedoraServer extends FedoraServer implements CRUDSWORDServer {
                     }});
                 }}
         ));
-        return _APIA.findObjects(
+        return client.getAPIA().findObjects(
                 new ArrayOfString() {{
                     getItem().add("pid");
                     getItem().add("ownerId");
@@ -184,7 +215,7 @@ public class CRUDFedoraServer extends FedoraServer implements CRUDSWORDServer {
 
     private void safeDeleteCachedResponse(String collectionPID, String objectPID) {
         try {
-            File collectionDir = new File(_props.getEntryStoreLocation(), collectionPID.replaceAll(":", "_"));
+            File collectionDir = new File(getProperties().getEntryStoreLocation(), collectionPID.replaceAll(":", "_"));
             File responseFile = new File(collectionDir, objectPID.replaceAll(":", "_") + ".xml");
             if (responseFile.exists()) {
                 responseFile.delete();
@@ -194,11 +225,11 @@ public class CRUDFedoraServer extends FedoraServer implements CRUDSWORDServer {
         }
     }
 
-    private void setObjectState(String objectPID, FieldSearchResult fsr, String state, String message) {
+    private void setObjectState(FedoraClientPool.Client client, String objectPID, FieldSearchResult fsr, String state, String message) {
         ObjectFields ofs = fsr.getResultList().getObjectFields().get(0);
         String label = ofs.getLabel().getValue();
         String ownerId = ofs.getOwnerId().getValue();
-        _APIM.modifyObject(objectPID, state, label, ownerId, message);
+        client.getAPIM().modifyObject(objectPID, state, label, ownerId, message);
     }
 
     private class RequestInfo {
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora;
+
+import org.apache.log4j.Logger;
+import org.purl.sword.base.HttpHeaders;
+import org.purl.sword.base.SWORDAuthenticationException;
+import org.purl.sword.base.SWORDErrorException;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.base.ServiceDocument;
+import org.purl.sword.base.ServiceDocumentRequest;
+import org.purl.sword.server.SWORDServer;
+import org.purl.sword.server.ServiceDocumentServlet;
+import org.purl.sword.server.fedora.baseExtensions.CachedServiceDocument;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Service document servlet which sends an ETag with every service document and answers
+ * conditional requests with 304 Not Modified.
+ * <p/>
+ * If the configured SWORD server implements {@link CachingSWORDServer} the serialized service
+ * document is taken from its cache, otherwise it is rendered for every request. Authentication
+ * is performed for every request, also for the ones answered with 304.
+ * <p/>
+ * The servlet reads the same context parameters as {@link ServiceDocumentServlet}.
+ */
+public class CachingServiceDocumentServlet extends ServiceDocumentServlet {
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = Logger.getLogger(CachingServiceDocumentServlet.class);
+
+    private SWORDServer server;
+    private boolean basicAuthentication;
+    private int maxUploadSize = -1;
+
+    @Override
+    public void init() throws ServletException {
+        String className = getServletContext().getInitParameter("sword-server-class");
+        if (className == null) {
+            log.fatal("Unable to read value of 'sword-server-class' from Servlet context");
+        } else {
+            try {
+                server = (SWORDServer) Class.forName(className).newInstance();
+                log.info("Using " + className + " as the SWORDServer");
+            } catch (Exception e) {
+                log.fatal("Unable to instantiate class from 'sword-server-class': " + className);
+                throw new ServletException("Unable to instantiate class from 'sword-server-class': " + className, e);
+            }
+        }
+
+        basicAuthentication = "Basic".equalsIgnoreCase(getServletContext().getInitParameter("authentication-method"));
+        log.info("Basic authentication " + (basicAuthentication ? "enabled" : "disabled"));
+
+        String maxUploadSizeParameter = getServletContext().getInitParameter("maxUploadSize");
+        if (maxUploadSizeParameter != null && !maxUploadSizeParameter.isEmpty()) {
+            try {
+                maxUploadSize = Integer.parseInt(maxUploadSizeParameter);
+                log.info("Setting max file upload size to " + maxUploadSize);
+            } catch (NumberFormatException e) {
+                log.warn("maxUploadSize not a number, so setting max file upload size to unlimited.");
+            }
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        ServiceDocumentRequest serviceDocumentRequest = new ServiceDocumentRequest();
+        String usernamePassword = getUsernamePassword(request);
+        if (usernamePassword != null && !usernamePassword.isEmpty()) {
+            int p = usernamePassword.indexOf(":");
+            if (p != -1) {
+                serviceDocumentRequest.setUsername(usernamePassword.substring(0, p));
+                serviceDocumentRequest.setPassword(usernamePassword.substring(p + 1));
+            }
+        } else if (basicAuthentication) {
+            askForCredentials(response);
+            return;
+        }
+        serviceDocumentRequest.setOnBehalfOf(request.getHeader(HttpHeaders.X_ON_BEHALF_OF));
+        serviceDocumentRequest.setIPAddress(request.getRemoteAddr());
+        serviceDocumentRequest.setLocation(getUrl(request));
+
+        try {
+            CachedServiceDocument serviceDocument = obtainServiceDocument(serviceDocumentRequest);
+            response.setHeader("ETag", serviceDocument.getETag());
+            response.setHeader("Cache-Control", "private, no-cache");
+            if (matches(request.getHeader("If-None-Match"), serviceDocument.getETag())) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            response.setContentType("application/atomsvc+xml; charset=UTF-8");
+            response.setContentLength(serviceDocument.getContent().length);
+            OutputStream out = response.getOutputStream();
+            out.write(serviceDocument.getContent());
+            out.flush();
+        } catch (SWORDAuthenticationException e) {
+            log.warn(e.getMessage());
+            if (basicAuthentication) {
+                askForCredentials(response);
+            }
+        } catch (SWORDErrorException e) {
+            log.error(e.toString());
+            response.sendError(e.getStatus(), e.getDescription());
+        } catch (SWORDException e) {
+            log.error(e.getMessage(), e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    private CachedServiceDocument obtainServiceDocument(ServiceDocumentRequest serviceDocumentRequest)
+            throws SWORDAuthenticationException, SWORDErrorException, SWORDException {
+        if (server instanceof CachingSWORDServer) {
+            return ((CachingSWORDServer) server).doCachedServiceDocument(serviceDocumentRequest, maxUploadSize);
+        }
+        ServiceDocument serviceDocument = server.doServiceDocument(serviceDocumentRequest);
+        return CachedServiceDocument.render(serviceDocument, maxUploadSize);
+    }
+
+    private boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void askForCredentials(HttpServletResponse response) {
+        response.setHeader("WWW-Authenticate", "Basic realm=\"SWORD\"");
+        response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+    }
+
+    private String getUsernamePassword(HttpServletRequest request) {
+        String authorization = request.getHeader("Authorization");
+        if (authorization != null) {
+            String[] parts = authorization.trim().split("\\s+", 2);
+            if (parts.length == 2 && parts[0].equalsIgnoreCase("Basic")) {
+                try {
+                    return new String(DatatypeConverter.parseBase64Binary(parts[1]), StandardCharsets.ISO_8859_1);
+                } catch (IllegalArgumentException e) {
+                    log.debug("Invalid Authorization header: " + e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String getUrl(HttpServletRequest request) {
+        String url = request.getRequestURL().toString();
+        String queryString = request.getQueryString();
+        return (queryString == null) ? url : url + "?" + queryString;
+    }
+}
@@ -45,62 +45,79 @@ import nu.xom.Builder;
 import nu.xom.Document;
 import nu.xom.ParsingException;
 import nu.xom.Serializer;
-import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
-import org.fcrepo.server.access.FedoraAPIA;
-import org.fcrepo.server.management.FedoraAPIM;
 import org.fcrepo.server.types.gen.RepositoryInfo;
 import org.purl.sword.atom.Link;
 import org.purl.sword.base.*;
-import org.purl.sword.server.SWORDServer;
+import org.purl.sword.server.fedora.baseExtensions.CachedServiceDocument;
 import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
 import org.purl.sword.server.fedora.baseExtensions.ServiceDocumentQueries;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraClientPool;
 import org.purl.sword.server.fedora.fileHandlers.FileHandler;
 import org.purl.sword.server.fedora.fileHandlers.FileHandlerFactory;
+import org.purl.sword.server.fedora.utils.ArchiveLimitException;
+import org.purl.sword.server.fedora.utils.AuthenticationCache;
+import org.purl.sword.server.fedora.utils.DepositWorkspace;
 import org.purl.sword.server.fedora.utils.XMLProperties;
 
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 
-public class FedoraServer implements SWORDServer {
+public class FedoraServer implements CachingSWORDServer {
     public static final String VERSION = "1.3";
     private static final Logger LOG = Logger.getLogger(FedoraServer.class);
 
-    protected FedoraAPIM _APIM = null;
-    protected FedoraAPIA _APIA = null;
-    protected XMLProperties _props = null;
-    protected FileHandlerFactory fileHandlerFactory;
+    /**
+     * Properties are read from the current configuration snapshot, so that changes
+     * to the properties file are picked up without restarting the server.
+     *
+     * @return XMLProperties backed by the current configuration snapshot
+     */
+    protected XMLProperties getProperties() {
+        return new XMLProperties();
+    }
 
-    public FedoraServer() {
-        _props = new XMLProperties();
-        try {
-            {
-                fileHandlerFactory = FileHandlerFactory.getInstance(_props);
-            }
-            {
-                JaxWsProxyFactoryBean factoryBean = new JaxWsProxyFactoryBean();
-                factoryBean.setServiceClass(FedoraAPIA.class);
-                factoryBean.setAddress(_props.getFedoraURL() + "/services/access");
-                _APIA = (FedoraAPIA) factoryBean.create();
-            }
-            {
-                JaxWsProxyFactoryBean factoryBean = new JaxWsProxyFactoryBean();
-                factoryBean.setServiceClass(FedoraAPIM.class);
-                factoryBean.setAddress(_props.getFedoraURL() + "/services/management");
-                _APIM = (FedoraAPIM) factoryBean.create();
+    /**
+     * File handlers can only throw SWORDException. Those carrying a SWORD error code, like a
+     * checksum mismatch, are turned into the SWORDErrorException the client gets an error document for.
+     * So are those caused by an archive exceeding its limits while it was read.
+     *
+     * @param pException The exception thrown by a file handler
+     * @return The error to report or null if the exception doesn't carry an error code
+     */
+    protected static SWORDErrorException toErrorException(final SWORDException pException) {
+        if (pException.getErrorCode() != null) {
+            return new SWORDErrorException(pException.getErrorCode(), pException.getMessage());
+        }
+        for (Throwable tCause = pException.getCause(); tCause != null; tCause = tCause.getCause()) {
+            if (tCause instanceof ArchiveLimitException) {
+                return new SWORDErrorException(((ArchiveLimitException) tCause).getErrorCode(), tCause.getMessage());
             }
-        } catch (SWORDException e) {
-            LOG.error("Invalid fedora section of configuration file");
-            LOG.error(e.getMessage());
         }
+        return null;
+    }
+
+    /**
+     * Lease Fedora SOAP clients bound to the given credentials. The clients are used
+     * by the calling request only and must be closed to return them to the pool.
+     *
+     * @param pUsername The username to access Fedora with
+     * @param pPassword The password to access Fedora with
+     * @return The leased clients
+     * @throws SWORDException if the fedora section of the configuration is invalid
+     */
+    protected FedoraClientPool.Client leaseClient(final String pUsername, final String pPassword) throws SWORDException {
+        return FedoraClientPool.getInstance(getProperties()).lease(pUsername, pPassword);
+    }
+
+    protected FileHandlerFactory getFileHandlerFactory() {
+        return FileHandlerFactory.getInstance(getProperties());
     }
 
     /**
@@ -112,11 +129,23 @@ public class FedoraServer implements SWORDServer {
      * @throws SWORDException if there was a problem reading the config file
      */
     protected ServiceDocument getServiceDocument(final String pOnBehalfOf) throws SWORDException {
-        return _props.getServiceDocument(pOnBehalfOf);
+        return getProperties().getServiceDocument(pOnBehalfOf);
     }
 
     protected ServiceDocument getServiceDocument(final String pOnBehalfOf, final String pLocation) throws SWORDException {
-        return _props.getServiceDocument(pOnBehalfOf, pLocation);
+        return getProperties().getServiceDocument(pOnBehalfOf, pLocation);
+    }
+
+    /**
+     * Retrieves the cached service document for a user. The returned document is shared with
+     * other requests and must not be modified.
+     *
+     * @param pOnBehalfOf The user that is requesting the ServiceDocument
+     * @return ServiceDocument the service document
+     * @throws SWORDException if there was a problem reading the config file
+     */
+    protected ServiceDocument getCachedServiceDocument(final String pOnBehalfOf) throws SWORDException {
+        return getProperties().getCachedServiceDocument(pOnBehalfOf, -1).getDocument();
     }
 
     /**
@@ -149,6 +178,36 @@ public class FedoraServer implements SWORDServer {
         }
     }
 
+    /**
+     * Answer a Service Document request with a serialized service document. The main service document
+     * and sub service documents are cached per set of visible collections.
+     *
+     * @param pServiceRequest The Service Document Request object
+     * @param pMaxUploadSize  The maximum upload size to advertise, -1 for none
+     * @return The serialized service document and its entity tag
+     * @throws SWORDAuthenticationException Thrown if the authentication fails
+     * @throws SWORDException               Thrown in an un-handalable Exception occurs.
+     */
+    public CachedServiceDocument doCachedServiceDocument(ServiceDocumentRequest pServiceRequest, int pMaxUploadSize) throws SWORDAuthenticationException, SWORDException {
+        if (pServiceRequest.getUsername() != null) {
+            this.authenticates(pServiceRequest.getUsername(), pServiceRequest.getPassword());
+        }
+
+        String tOnBehalfOf = pServiceRequest.getOnBehalfOf();
+        if (tOnBehalfOf == null) { // On Behalf off not supplied so send the username instead
+            tOnBehalfOf = pServiceRequest.getUsername();
+        }
+
+        String[] tURIList = pServiceRequest.getLocation().split("/");
+        String tLocation = tURIList[tURIList.length - 1];
+
+        if (tLocation.equals("servicedocument")) {
+            return getProperties().getCachedServiceDocument(tOnBehalfOf, pMaxUploadSize);
+        } else { // sub service document
+            return getProperties().getCachedServiceDocument(tOnBehalfOf, tLocation, pMaxUploadSize);
+        }
+    }
+
     /**
      * Answer a SWORD deposit
      *
@@ -181,15 +240,21 @@ public class FedoraServer implements SWORDServer {
                 tOnBehalfOf = pDeposit.getUsername();
             }
 
-            ServiceDocumentQueries tServiceDoc = (ServiceDocumentQueries) this.getServiceDocument(tOnBehalfOf);
+            ServiceDocumentQueries tServiceDoc = (ServiceDocumentQueries) this.getCachedServiceDocument(tOnBehalfOf);
 
             authorizes(tServiceDoc, tOnBehalfOf, tCollectionPID);
             contentAcceptable(tServiceDoc, pDeposit, tCollectionPID);
             packageTypeAcceptable(tServiceDoc, pDeposit, tCollectionPID);
 
             // Call the file handlers and see which one responds that it can handle the deposit
-            FileHandler tHandler = fileHandlerFactory.getFileHandler(pDeposit.getContentType(), pDeposit.getPackaging());
-            SWORDEntry tEntry = tHandler.ingestDeposit(new DepositCollection(pDeposit, tCollectionPID), (ServiceDocument) tServiceDoc);
+            FileHandler tHandler = getFileHandlerFactory().getFileHandler(pDeposit.getContentType(), pDeposit.getPackaging(), tCollectionPID);
+            DepositCollection tDeposit = new DepositCollection(pDeposit, tCollectionPID);
+            SWORDEntry tEntry;
+            try {
+                tEntry = tHandler.ingestDeposit(tDeposit, (ServiceDocument) tServiceDoc);
+            } finally {
+                DepositWorkspace.release(tDeposit);
+            }
 
             // send response
             DepositResponse tResponse = new DepositResponse(Deposit.CREATED);
@@ -208,6 +273,11 @@ public class FedoraServer implements SWORDServer {
 
             return tResponse;
         } catch (SWORDException tException) {
+            SWORDErrorException tError = toErrorException(tException);
+            if (tError != null) {
+                LOG.warn("Deposit rejected: " + tException.getMessage());
+                throw tError;
+            }
             tException.printStackTrace();
             LOG.error("Exception occured: " + tException);
             throw tException;
@@ -244,13 +314,13 @@ public class FedoraServer implements SWORDServer {
             String[] tLocationArray = pAtomDocumentRequest.getLocation().split("/");
             String tPid = tLocationArray[tLocationArray.length - 1].replaceAll(":", "_");
             Builder tBuilder = new Builder();
-            File tFile = new File(_props.getEntryStoreLocation(), tPid);
+            File tFile = new File(getProperties().getEntryStoreLocation(), tPid);
             LOG.debug("Looking for " + tFile.getPath());
             if (tFile.exists() && tFile.isDirectory()) {
                 // return RSS of directory entries
             } else {
                 String tCollection = tLocationArray[tLocationArray.length - 2].replaceAll(":", "_");
-                File tItem = new File(new File(_props.getEntryStoreLocation(), tCollection), tPid + ".xml");
+                File tItem = new File(new File(getProperties().getEntryStoreLocation(), tCollection), tPid + ".xml");
                 LOG.debug("Looking for item " + tItem.getPath());
                 if (tItem.exists()) {
                     Document tDoc = tBuilder.build(new FileInputStream(tItem));
@@ -307,29 +377,58 @@ public class FedoraServer implements SWORDServer {
     }
 
     /**
-     * Authenticate a user
+     * Authenticate a user. Recent results are taken from the authentication cache,
+     * otherwise the credentials are checked against Fedora.
      *
      * @param pUsername The username to authenticate
      * @param pPassword The password to authenticate with
-     * @return Whether or not the user credentials authenticate
+     * @throws SWORDAuthenticationException if Fedora doesn't accept the credentials
      */
     public void authenticates(final String pUsername, final String pPassword) throws SWORDAuthenticationException, SWORDException {
-        Map<String, String> requestHeaders = new HashMap<String, String>();
-        requestHeaders.put(BindingProvider.USERNAME_PROPERTY, pUsername);
-        requestHeaders.put(BindingProvider.PASSWORD_PROPERTY, pPassword);
-
-        ((BindingProvider) _APIA).getRequestContext()
-                .putAll(requestHeaders);
-        ((BindingProvider) _APIM).getRequestContext()
-                .putAll(requestHeaders);
-
-        RepositoryInfo tInfo = _APIA.describeRepository();
-        LOG.debug("Name =" + tInfo.getRepositoryName());
-        LOG.debug("Repository Version =" + tInfo.getRepositoryVersion());
+        XMLProperties tProps = getProperties();
+        String tFedoraURL = tProps.getFedoraURL();
+        AuthenticationCache tCache = tProps.getAuthenticationCache();
+        switch (tCache.get(tFedoraURL, pUsername, pPassword)) {
+            case AUTHENTICATED:
+                return;
+            case REJECTED:
+                throw new SWORDAuthenticationException("Fedora rejected the credentials of " + pUsername);
+        }
+
+        FedoraClientPool.Client tClient = leaseClient(pUsername, pPassword);
+        try {
+            RepositoryInfo tInfo = tClient.getAPIA().describeRepository();
+            LOG.debug("Name =" + tInfo.getRepositoryName());
+            LOG.debug("Repository Version =" + tInfo.getRepositoryVersion());
+            tCache.putAuthenticated(tFedoraURL, pUsername, pPassword);
+        } catch (WebServiceException e) {
+            if (FedoraClientPool.isUnauthorized(e)) {
+                tCache.putRejected(tFedoraURL, pUsername, pPassword);
+                throw new SWORDAuthenticationException("Fedora rejected the credentials of " + pUsername, e);
+            }
+            throw e;
+        } finally {
+            tClient.close();
+        }
+    }
+
+    /**
+     * Forget a remembered authentication of the credentials if Fedora rejected a call made with them,
+     * e.g. because the password has been changed since.
+     *
+     * @param e         The exception thrown by the Fedora call
+     * @param pUsername The username the call was made with
+     * @param pPassword The password the call was made with
+     */
+    protected void forgetCredentialsIfRejected(Exception e, String pUsername, String pPassword) throws SWORDException {
+        if (FedoraClientPool.isUnauthorized(e)) {
+            XMLProperties tProps = getProperties();
+            tProps.getAuthenticationCache().invalidate(tProps.getFedoraURL(), pUsername, pPassword);
+        }
     }
 
     protected void cacheResponse(String tCollectionPID, SWORDEntry tEntry) throws SWORDException {
-        File tCollectionDir = new File(_props.getEntryStoreLocation(), tCollectionPID.replaceAll(":", "_"));
+        File tCollectionDir = new File(getProperties().getEntryStoreLocation(), tCollectionPID.replaceAll(":", "_"));
         if (!tCollectionDir.exists()) {
             if (tCollectionDir.mkdirs()) {
             } else {
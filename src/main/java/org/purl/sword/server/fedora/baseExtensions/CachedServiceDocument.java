@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.baseExtensions;
+
+import org.purl.sword.base.ServiceDocument;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A service document together with its serialized form and an entity tag.
+ * <p/>
+ * Instances are shared between requests. The service document must be treated as read-only.
+ */
+public final class CachedServiceDocument {
+    private final ServiceDocument document;
+    private final byte[] content;
+    private final String etag;
+
+    private CachedServiceDocument(ServiceDocument document, byte[] content, String etag) {
+        this.document = document;
+        this.content = content;
+        this.etag = etag;
+    }
+
+    /**
+     * Serialize a service document and compute a strong entity tag from the serialized bytes.
+     *
+     * @param document      The service document
+     * @param maxUploadSize Maximum upload size to advertise if the document doesn't set one, -1 for none
+     * @return The serialized service document
+     */
+    public static CachedServiceDocument render(ServiceDocument document, int maxUploadSize) {
+        if (document.getService().getMaxUploadSize() == -1 && maxUploadSize != -1) {
+            document.getService().setMaxUploadSize(maxUploadSize);
+        }
+        byte[] content = document.marshall().getBytes(StandardCharsets.UTF_8);
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            return new CachedServiceDocument(document, content,
+                    "\"" + DatatypeConverter.printHexBinary(digest).toLowerCase() + "\"");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    public ServiceDocument getDocument() {
+        return document;
+    }
+
+    /**
+     * @return The UTF-8 encoded service document. Do not modify.
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return The quoted entity tag
+     */
+    public String getETag() {
+        return etag;
+    }
+}
@@ -43,12 +43,19 @@ package org.purl.sword.server.fedora.baseExtensions;
   * This class extends the deposit clas but adds in the collection pid
   * so that it is easily accessible with the deposit
   *
+  * File handlers are shared between deposits so any state a file handler needs
+  * while processing a deposit is stored as an attribute of this object.
+  *
   */
 
 import org.purl.sword.base.Deposit;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class DepositCollection extends Deposit {
 	protected String _collectionPid = "";
+	protected Map<String, Object> _attributes = new HashMap<String, Object>();
 
 	public DepositCollection(final Deposit pOriginalDeposit, final String pCollectionPid) {
 		super();
@@ -79,4 +86,29 @@ public class DepositCollection extends Deposit {
 	public void setCollectionPid(final String pCollectionPid) {
 		_collectionPid = pCollectionPid;
 	}
+
+	/**
+	 * Get a value stored for this deposit by a file handler
+	 *
+	 * @param pName The name of the attribute
+	 * @param pType The type of the attribute
+	 * @return The value or null if there is no attribute with this name
+	 */
+	public <T> T getAttribute(final String pName, final Class<T> pType) {
+		return pType.cast(_attributes.get(pName));
+	}
+
+	/**
+	 * Store a value for the duration of this deposit
+	 *
+	 * @param pName The name of the attribute
+	 * @param pValue The value
+	 */
+	public void setAttribute(final String pName, final Object pValue) {
+		_attributes.put(pName, pValue);
+	}
+
+	public void removeAttribute(final String pName) {
+		_attributes.remove(pName);
+	}
 }
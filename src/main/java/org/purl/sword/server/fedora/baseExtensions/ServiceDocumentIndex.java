@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.baseExtensions;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lookup tables for the collections of a service document configuration.
+ * <p/>
+ * The index is built once from the service document element and answers the
+ * authorization and acceptance checks for a deposit with hash lookups instead of
+ * XPath queries. It is immutable and can be shared between requests.
+ */
+public final class ServiceDocumentIndex {
+    private static final Logger log = Logger.getLogger(ServiceDocumentIndex.class);
+
+    private final Element serviceDocumentElement;
+    private final List<CollectionEntry> collections;
+    private final Map<String, CollectionEntry> collectionsByPid;
+
+    /**
+     * Build the index from a service document configuration element.
+     *
+     * @param serviceDocumentElement The service_document element, must not be modified afterwards
+     */
+    @SuppressWarnings(value = {"unchecked"})
+    public ServiceDocumentIndex(Element serviceDocumentElement) {
+        this.serviceDocumentElement = serviceDocumentElement;
+
+        List<CollectionEntry> entries = new ArrayList<CollectionEntry>();
+        Map<String, CollectionEntry> byPid = new HashMap<String, CollectionEntry>();
+        Element workspace = serviceDocumentElement.getChild("workspace");
+        if (workspace != null) {
+            for (Element collectionElement : (List<Element>) workspace.getChildren("collection")) {
+                CollectionEntry entry = new CollectionEntry(collectionElement);
+                entries.add(entry);
+                if (entry.getPid() != null && !byPid.containsKey(entry.getPid())) {
+                    byPid.put(entry.getPid(), entry);
+                }
+            }
+        }
+        this.collections = Collections.unmodifiableList(entries);
+        this.collectionsByPid = Collections.unmodifiableMap(byPid);
+    }
+
+    public Element getServiceDocumentElement() {
+        return serviceDocumentElement;
+    }
+
+    /**
+     * @return All collections in the order they are configured
+     */
+    public List<CollectionEntry> getCollections() {
+        return collections;
+    }
+
+    /**
+     * @param collectionPid The collection pid
+     * @return The collection with the given pid or null if there is none
+     */
+    public CollectionEntry getCollection(String collectionPid) {
+        return collectionsByPid.get(collectionPid);
+    }
+
+    /**
+     * Users that see the same collections get the same signature, so it can be used
+     * to share anything derived from the visible collections between users.
+     *
+     * @param user The username or on behalf of value
+     * @return A signature of the collections visible to the user
+     */
+    public String getVisibilitySignature(String user) {
+        BitSet visible = new BitSet(collections.size());
+        for (int i = 0; i < collections.size(); i++) {
+            if (collections.get(i).isOpenTo(user)) {
+                visible.set(i);
+            }
+        }
+        return visible.toString();
+    }
+
+    /**
+     * The indexed configuration of a single collection.
+     */
+    public static final class CollectionEntry {
+        private final Element element;
+        private final String pid;
+        private final Set<String> users;
+        private final Set<String> accepts;
+        private final Map<String, Float> packaging;
+        private final List<String> fileHandlerClasses;
+
+        @SuppressWarnings(value = {"unchecked"})
+        private CollectionEntry(Element element) {
+            this.element = element;
+            this.pid = element.getAttributeValue("collection_pid");
+
+            Element usersElement = element.getChild("users");
+            if (usersElement == null) {
+                this.users = null;
+            } else {
+                Set<String> names = new HashSet<String>();
+                for (Element user : (List<Element>) usersElement.getChildren()) {
+                    names.add(user.getValue());
+                }
+                this.users = Collections.unmodifiableSet(names);
+            }
+
+            Set<String> mimeTypes = new HashSet<String>();
+            Element acceptsElement = element.getChild("accepts");
+            if (acceptsElement != null) {
+                for (Element accept : (List<Element>) acceptsElement.getChildren("accept")) {
+                    mimeTypes.add(accept.getValue());
+                }
+            }
+            this.accepts = Collections.unmodifiableSet(mimeTypes);
+
+            Map<String, Float> packages = new HashMap<String, Float>();
+            Element packagingElement = element.getChild("packaging");
+            if (packagingElement != null) {
+                for (Element packageElement : (List<Element>) packagingElement.getChildren("package")) {
+                    if (!packages.containsKey(packageElement.getValue())) {
+                        packages.put(packageElement.getValue(), quality(packageElement));
+                    }
+                }
+            }
+            this.packaging = Collections.unmodifiableMap(packages);
+
+            List<String> handlers = new ArrayList<String>();
+            Element fileHandlersElement = element.getChild("file_handlers");
+            if (fileHandlersElement != null) {
+                for (Element handler : (List<Element>) fileHandlersElement.getChildren("handler")) {
+                    String className = handler.getAttributeValue("class");
+                    if (className != null && className.trim().length() > 0) {
+                        handlers.add(className.trim());
+                    }
+                }
+            }
+            this.fileHandlerClasses = Collections.unmodifiableList(handlers);
+        }
+
+        /**
+         * A q attribute that isn't a number is ignored, it mustn't stop the configuration from loading.
+         */
+        private static Float quality(Element packageElement) {
+            String value = packageElement.getAttributeValue("q");
+            if (value == null) {
+                return null;
+            }
+            try {
+                return Float.valueOf(value);
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid q=\"" + value + "\" of package " + packageElement.getValue());
+                return null;
+            }
+        }
+
+        public Element getElement() {
+            return element;
+        }
+
+        public String getPid() {
+            return pid;
+        }
+
+        /**
+         * @return True if the collection has a users element
+         */
+        public boolean hasUsers() {
+            return users != null;
+        }
+
+        /**
+         * A collection with an empty users element is open to everyone.
+         *
+         * @param user The username or on behalf of value
+         * @return True if the user may see and deposit into the collection
+         */
+        public boolean isOpenTo(String user) {
+            return users == null || users.isEmpty() || users.contains(user);
+        }
+
+        public boolean accepts(String contentType) {
+            return accepts.contains(contentType);
+        }
+
+        /**
+         * A package is accepted if it is listed and its q attribute, if given, is greater than zero.
+         *
+         * @param packageType The packaging URI
+         * @return True if the packaging is accepted
+         */
+        public boolean acceptsPackaging(String packageType) {
+            if (!packaging.containsKey(packageType)) {
+                return false;
+            }
+            Float quality = packaging.get(packageType);
+            return quality == null || quality > 0.0;
+        }
+
+        /**
+         * File handlers configured for this collection are tried before the global file handlers.
+         *
+         * @return Unmodifiable list of file handler class names, empty if there are none
+         */
+        public List<String> getFileHandlerClasses() {
+            return fileHandlerClasses;
+        }
+    }
+}
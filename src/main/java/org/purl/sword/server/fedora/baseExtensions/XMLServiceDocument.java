@@ -46,43 +46,45 @@ package org.purl.sword.server.fedora.baseExtensions;
 
 import org.apache.log4j.Logger;
 import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.xpath.XPath;
 import org.purl.sword.base.*;
 import org.purl.sword.server.fedora.FedoraServer;
 
-import java.util.Iterator;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 public class XMLServiceDocument extends ServiceDocument implements ServiceDocumentQueries {
 	private static final Logger LOG = Logger.getLogger(XMLServiceDocument.class);
 	protected Element _serviceDocEl = null;
+	protected ServiceDocumentIndex _index = null;
+	protected Map<String, Collection> _collections = new HashMap<String, Collection>();
 
-@SuppressWarnings(value={"unchecked"})
 	public XMLServiceDocument(final Element pServiceDocEl, final String pUsername) {
+		this(new ServiceDocumentIndex(pServiceDocEl), pUsername);
+	}
+
+	public XMLServiceDocument(final ServiceDocumentIndex pIndex, final String pUsername) {
 		super();
 
-		_serviceDocEl = pServiceDocEl;
+		_index = pIndex;
+		_serviceDocEl = pIndex.getServiceDocumentElement();
 
 		Service tService = new Service(FedoraServer.VERSION);
 
-		tService.setNoOp(this.convertToBoolean(pServiceDocEl.getChild("noOp").getText()));
-		tService.setVerbose(this.convertToBoolean(pServiceDocEl.getChild("verbose").getText()));
+		tService.setNoOp(this.convertToBoolean(_serviceDocEl.getChild("noOp").getText()));
+		tService.setVerbose(this.convertToBoolean(_serviceDocEl.getChild("verbose").getText()));
 
 		Workspace tWorkspace = new Workspace();
-		tWorkspace.setTitle(pServiceDocEl.getChild("workspace").getAttributeValue("title"));
-
-		List<Element> tXMLCollections = pServiceDocEl.getChild("workspace").getChildren();
-
-		for (Element tCollectionXML : tXMLCollections) {
-			try {
-				LOG.debug("Looking for collecitons for user " + pUsername + " with XPath=" + "./users/user[./text() = '" + pUsername + "']");
-				if (tCollectionXML.getChild("users").getChildren().isEmpty() || XPath.selectSingleNode(tCollectionXML, "./users/user[./text() = '" + pUsername + "']") != null) {
-					// Open collection or user is present so add
-					tWorkspace.addCollection(new XMLCollection(tCollectionXML));
-				}	
-			} catch (JDOMException tExcpt) {
-				LOG.error("Problems reading props file " + tExcpt);
+		tWorkspace.setTitle(_serviceDocEl.getChild("workspace").getAttributeValue("title"));
+
+		LOG.debug("Looking for collections for user " + pUsername);
+		for (ServiceDocumentIndex.CollectionEntry tEntry : pIndex.getCollections()) {
+			if (tEntry.isOpenTo(pUsername)) {
+				// Open collection or user is present so add
+				XMLCollection tCollection = new XMLCollection(tEntry.getElement());
+				tWorkspace.addCollection(tCollection);
+				if (!_collections.containsKey(tCollection.getCollectionPid())) {
+					_collections.put(tCollection.getCollectionPid(), tCollection);
+				}
 			}
 		}
 		tService.addWorkspace(tWorkspace);
@@ -101,16 +103,7 @@ public class XMLServiceDocument extends ServiceDocument implements ServiceDocume
 	 * 
 	 */
 	public Collection getCollection(final String pCollectionPid) {
-		Iterator<Collection> tCollectionIter = super.getService().getWorkspacesList().get(0).collectionIterator();
-		XMLCollection tCurCollection = null;
-		while (tCollectionIter.hasNext()) {	
-			tCurCollection = (XMLCollection)tCollectionIter.next();
-			if (tCurCollection.getCollectionPid().equals(pCollectionPid)) {
-				return tCurCollection;
-			}
-		}
-
-		return null;
+		return _collections.get(pCollectionPid);
 	}
 
 	private boolean convertToBoolean(final String pBoolean) {
@@ -127,7 +120,7 @@ public class XMLServiceDocument extends ServiceDocument implements ServiceDocume
 	 * Return a collection from the supplied PID, Works of multiple collections and returns the collection
 	 * as an XML element for futher processing
 	 * 
-	 * @throws JDOMException if there is no collection with supplied pid or if the config file isn't formated correctly
+	 * @throws SWORDException if there is no collection with supplied pid
 	 *
 	 * @param String the pid of the collection 
 	 * 
@@ -135,20 +128,14 @@ public class XMLServiceDocument extends ServiceDocument implements ServiceDocume
 	 * 
 	 */
 	public Element getCollectionElement(final String pCollectionPID) throws SWORDException {
-		Element tCollectionEl = null;
-		try {
-			tCollectionEl = (Element)XPath.selectSingleNode(_serviceDocEl, "./workspace/collection[@collection_pid='" + pCollectionPID + "']");
-			if (tCollectionEl == null) {
-				throw new JDOMException("Couldn't find collection element with pid " + pCollectionPID);
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured in getCollectionElement method due to a problem accessing the properties file";
+		ServiceDocumentIndex.CollectionEntry tEntry = _index.getCollection(pCollectionPID);
+		if (tEntry == null) {
+			String tMessage = "Couldn't find collection element with pid " + pCollectionPID;
 			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
+			throw new SWORDException(tMessage);
 		}
 
-		return tCollectionEl;
+		return tEntry.getElement();
 	}
 
 	/**
@@ -164,22 +151,11 @@ public class XMLServiceDocument extends ServiceDocument implements ServiceDocume
 	 */
 	public boolean isAllowedToDeposit(final String pDepositer, final String pCollectionPID) throws SWORDException {
 		// Check to see if user is allowed to deposit in collection
-		try {
-			Element tUsersEl = (Element)XPath.selectSingleNode(_serviceDocEl, "./workspace/collection[@collection_pid='" + pCollectionPID + "']/users");
-			if (tUsersEl == null) {
-				throw new SWORDException("There is a problem with the servie document as the users element for collection " + pCollectionPID + " could not be found");
-			}
-			Element tUser = (Element)XPath.selectSingleNode(tUsersEl, "./user[. = '" + pDepositer + "']");
-			if (!tUsersEl.getChildren().isEmpty() && tUser == null) {
-				return false;
-			} else {
-				return true;
-			}	
-		} catch (JDOMException tJDOMExcpt) {
-			String tErrMessage = "Couldn't load props file to find out if a user has permission to deposit";
-			LOG.error(tErrMessage + tJDOMExcpt.toString());
-			throw new SWORDException(tErrMessage, tJDOMExcpt); 
+		ServiceDocumentIndex.CollectionEntry tEntry = _index.getCollection(pCollectionPID);
+		if (tEntry == null || !tEntry.hasUsers()) {
+			throw new SWORDException("There is a problem with the servie document as the users element for collection " + pCollectionPID + " could not be found");
 		}
+		return tEntry.isOpenTo(pDepositer);
 	}
 
 	/**
@@ -195,45 +171,16 @@ public class XMLServiceDocument extends ServiceDocument implements ServiceDocume
 	 */
 	public boolean isContentTypeAllowed(final String pContentType, final String pCollectionPID) throws SWORDException {
 		// Check to see if content type is in the allowed list
-		try {
-			Element tAcceptEl = (Element)XPath.selectSingleNode(_serviceDocEl, "./workspace/collection[@collection_pid='" + pCollectionPID + "']/accepts/accept[. = '" + pContentType + "']");
-			if (tAcceptEl == null) {
-				return false;
-			} else {
-				return true;
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tErrMessage = "Problem reading properties XML tried to find content type " + pContentType + " for collection " + pCollectionPID + ": ";
-			LOG.error(tErrMessage + tJDOMExcpt.toString());
-			throw new SWORDException(tErrMessage, tJDOMExcpt); 
-		}
+		ServiceDocumentIndex.CollectionEntry tEntry = _index.getCollection(pCollectionPID);
+		return tEntry != null && tEntry.accepts(pContentType);
 	}
 
 	public boolean isPackageTypeAllowed(final String pPackageType, final String pCollectionPID) throws SWORDException {
 		if (pPackageType == null || pPackageType.trim().length() == 0) {
 			return true; // haven't specified a package type
 		}
-		// Check to see if content type is in the allowed list
-		try {
-			Element tAcceptEl = (Element)XPath.selectSingleNode(_serviceDocEl, "./workspace/collection[@collection_pid='" + pCollectionPID + "']/packaging/package[. = '" + pPackageType + "']");
-			if (tAcceptEl == null) {
-				return false;
-			} else {
-				if (tAcceptEl.getAttributeValue("q") != null) {
-						float tQ = Float.parseFloat(tAcceptEl.getAttributeValue("q"));
-						if (tQ > 0.0) {
-							return true;
-						} else {
-							return false;
-						}
-				} else {	
-					return true;
-				}
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tErrMessage = "Problem reading properties XML tried to find content type " + pPackageType + " for collection " + pCollectionPID + ": ";
-			LOG.error(tErrMessage + tJDOMExcpt.toString());
-			throw new SWORDException(tErrMessage, tJDOMExcpt); 
-		}
+		// Check to see if package type is in the allowed list with a quality above zero
+		ServiceDocumentIndex.CollectionEntry tEntry = _index.getCollection(pCollectionPID);
+		return tEntry != null && tEntry.acceptsPackaging(pPackageType);
 	}
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.fedoraObjects;
+
+import org.apache.cxf.frontend.ClientProxy;
+import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
+import org.apache.cxf.transport.http.HTTPException;
+import org.apache.log4j.Logger;
+import org.fcrepo.server.access.FedoraAPIA;
+import org.fcrepo.server.management.FedoraAPIM;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.utils.XMLProperties;
+
+import javax.xml.ws.BindingProvider;
+import java.io.Closeable;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Pool of SOAP clients for the Fedora access and management API of one Fedora instance.
+ * <p/>
+ * Building the CXF proxies is expensive, so clients are created once and leased to a single
+ * request at a time. The credentials of the request are bound to the client when it is leased
+ * and removed again when it is released, so they never leak into another request.
+ * <p/>
+ * Leasing never blocks. If no idle client is available a new one is created; at most
+ * <code>maxIdle</code> clients are kept for reuse.
+ */
+public final class FedoraClientPool {
+    private static final Logger log = Logger.getLogger(FedoraClientPool.class);
+    private static final ConcurrentMap<String, FedoraClientPool> pools = new ConcurrentHashMap<String, FedoraClientPool>();
+
+    private final String fedoraURL;
+    private final BlockingDeque<Client> idle;
+
+    private FedoraClientPool(String fedoraURL, int maxIdle) {
+        this.fedoraURL = fedoraURL;
+        this.idle = new LinkedBlockingDeque<Client>(Math.max(1, maxIdle));
+    }
+
+    /**
+     * Get the pool for a Fedora instance. The pool is created on first use.
+     *
+     * @param fedoraURL The Fedora base URL in the form http://host:port/fedora
+     * @param maxIdle   Number of clients kept for reuse, only used when the pool is created
+     * @return The client pool for the Fedora instance
+     */
+    public static FedoraClientPool getInstance(String fedoraURL, int maxIdle) {
+        FedoraClientPool pool = pools.get(fedoraURL);
+        if (pool == null) {
+            FedoraClientPool created = new FedoraClientPool(fedoraURL, maxIdle);
+            pool = pools.putIfAbsent(fedoraURL, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Get the pool for the Fedora instance of the given configuration.
+     *
+     * @param properties The configuration
+     * @return The client pool for the configured Fedora instance
+     * @throws SWORDException if the fedora section of the configuration is invalid
+     */
+    public static FedoraClientPool getInstance(XMLProperties properties) throws SWORDException {
+        return getInstance(properties.getFedoraURL(), properties.getFedoraClientPoolSize());
+    }
+
+    /**
+     * Destroy all idle clients of all pools. Clients that are leased at the moment are
+     * destroyed when they are released.
+     */
+    public static void shutdown() {
+        for (FedoraClientPool pool : pools.values()) {
+            pool.clear();
+        }
+        pools.clear();
+    }
+
+    /**
+     * @param e An exception thrown by a Fedora SOAP call
+     * @return True if Fedora answered the call with 401 Unauthorized
+     */
+    public static boolean isUnauthorized(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HTTPException
+                    && ((HTTPException) cause).getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getFedoraURL() {
+        return fedoraURL;
+    }
+
+    /**
+     * Create clients until the pool holds the given number of idle clients, so that
+     * the first requests don't have to build them.
+     *
+     * @param count Number of idle clients wanted
+     */
+    public void prefill(int count) {
+        while (idle.size() < count) {
+            if (!idle.offerFirst(create())) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Lease a client and bind the given credentials to it. The client must be closed
+     * by the caller to return it to the pool.
+     *
+     * @param username Username to access Fedora
+     * @param password Password to access Fedora
+     * @return A client that is used by nobody else until it is closed
+     */
+    public Client lease(String username, String password) {
+        Client client = idle.pollFirst();
+        if (client == null) {
+            client = create();
+        }
+        client.bind(username, password);
+        return client;
+    }
+
+    private void release(Client client) {
+        client.unbind();
+        if (pools.get(fedoraURL) != this || !idle.offerFirst(client)) {
+            client.destroy();
+        }
+    }
+
+    private void clear() {
+        Client client;
+        while ((client = idle.pollFirst()) != null) {
+            client.destroy();
+        }
+    }
+
+    private Client create() {
+        log.debug("Creating Fedora SOAP client for " + fedoraURL);
+        JaxWsProxyFactoryBean accessFactory = new JaxWsProxyFactoryBean();
+        accessFactory.setServiceClass(FedoraAPIA.class);
+        accessFactory.setAddress(fedoraURL + "/services/access");
+
+        JaxWsProxyFactoryBean managementFactory = new JaxWsProxyFactoryBean();
+        managementFactory.setServiceClass(FedoraAPIM.class);
+        managementFactory.setAddress(fedoraURL + "/services/management");
+
+        return new Client(this, (FedoraAPIA) accessFactory.create(), (FedoraAPIM) managementFactory.create());
+    }
+
+    /**
+     * A leased pair of access and management clients. Closing it returns it to its pool.
+     */
+    public static final class Client implements Closeable {
+        private final FedoraClientPool pool;
+        private final FedoraAPIA apia;
+        private final FedoraAPIM apim;
+        private boolean leased = false;
+
+        private Client(FedoraClientPool pool, FedoraAPIA apia, FedoraAPIM apim) {
+            this.pool = pool;
+            this.apia = apia;
+            this.apim = apim;
+        }
+
+        public FedoraAPIA getAPIA() {
+            return apia;
+        }
+
+        public FedoraAPIM getAPIM() {
+            return apim;
+        }
+
+        /**
+         * Return the client to its pool. Calling it more than once has no effect.
+         */
+        public void close() {
+            if (leased) {
+                leased = false;
+                pool.release(this);
+            }
+        }
+
+        private void bind(String username, String password) {
+            setCredentials(((BindingProvider) apia).getRequestContext(), username, password);
+            setCredentials(((BindingProvider) apim).getRequestContext(), username, password);
+            leased = true;
+        }
+
+        private void unbind() {
+            setCredentials(((BindingProvider) apia).getRequestContext(), null, null);
+            setCredentials(((BindingProvider) apim).getRequestContext(), null, null);
+        }
+
+        private void destroy() {
+            try {
+                ClientProxy.getClient(apia).destroy();
+                ClientProxy.getClient(apim).destroy();
+            } catch (RuntimeException e) {
+                log.warn("Couldn't destroy Fedora SOAP client: " + e.getMessage());
+            }
+        }
+
+        private static void setCredentials(Map<String, Object> requestContext, String username, String password) {
+            if (username == null) {
+                requestContext.remove(BindingProvider.USERNAME_PROPERTY);
+                requestContext.remove(BindingProvider.PASSWORD_PROPERTY);
+            } else {
+                requestContext.put(BindingProvider.USERNAME_PROPERTY, username);
+                requestContext.put(BindingProvider.PASSWORD_PROPERTY, password);
+            }
+        }
+    }
+}
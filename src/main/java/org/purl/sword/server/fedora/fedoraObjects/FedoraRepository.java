@@ -37,13 +37,11 @@
  */
 package org.purl.sword.server.fedora.fedoraObjects;
 
-import org.apache.cxf.jaxws.JaxWsProxyFactoryBean;
 import org.apache.log4j.Logger;
 import org.fcrepo.server.access.FedoraAPIA;
 import org.fcrepo.server.management.FedoraAPIM;
 import org.fcrepo.server.types.gen.DatastreamDef;
 import org.fcrepo.server.types.gen.MIMETypedStream;
-import org.fcrepo.server.types.gen.RepositoryInfo;
 import org.fcrepo.server.types.gen.Validation;
 import org.jdom.Document;
 import org.jdom.input.SAXBuilder;
@@ -52,27 +50,34 @@ import org.jdom.output.XMLOutputter;
 import org.purl.sword.base.SWORDException;
 import org.purl.sword.server.fedora.utils.XMLProperties;
 
-import javax.xml.ws.BindingProvider;
 import java.io.*;
-import java.math.BigInteger;
 import java.rmi.RemoteException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 
 /**
  * Represents a connection to the Fedora repository. Provides methods to ingest objects.
+ * <p/>
+ * The SOAP clients are leased from the {@link FedoraClientPool} when connecting and
+ * must be given back by closing the repository.
  *
  * @author Glen Robson
  * @version 1.0
  *          Date: 26th February 2009
  */
-public class FedoraRepository {
+public class FedoraRepository implements Closeable {
     private static final Logger log = Logger.getLogger(FedoraRepository.class);
     private FedoraAPIA _APIA = null;
     private FedoraAPIM _APIM = null;
+    private FedoraClientPool.Client client = null;
     private XMLProperties configuration = null;
-    private String fedoraVersion = null;
+    private RepositoryDescriptor descriptor = null;
     private String password = null;
     private String username = null;
 
@@ -96,24 +101,44 @@ public class FedoraRepository {
      * @throws SWORDException
      */
     public FedoraRepository connect() throws SWORDException {
-        initializeAPIA(configuration.getFedoraURL());
-        initializeAPIM(configuration.getFedoraURL());
-        authenticate(username, password, (BindingProvider) _APIA);
-        authenticate(username, password, (BindingProvider) _APIM);
-        RepositoryInfo tInfo = _APIA.describeRepository();
-        fedoraVersion = tInfo.getRepositoryVersion().trim();
-        log.info("Connected to Fedora version " + fedoraVersion);
+        close();
+        client = FedoraClientPool.getInstance(configuration).lease(username, password);
+        _APIA = client.getAPIA();
+        _APIM = client.getAPIM();
+        try {
+            descriptor = RepositoryDescriptor.get(configuration.getFedoraURL(), _APIA,
+                    configuration.getRepositoryDescriptorRefresh(), username, password);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        log.debug("Connected to Fedora version " + descriptor.getVersion());
         return this;
     }
 
-    public String mintPid() throws SWORDException {
-        try {
-            return _APIM.getNextPID(BigInteger.valueOf(1), configuration.getPIDNamespace()).get(0);
-        } catch (Exception e) {
-            throw new SWORDException("Problems retrieving the next pid from the repository: ", e);
+    /**
+     * Give the SOAP clients back to the pool. The repository can't be used afterwards
+     * unless it is connected again.
+     */
+    public void close() {
+        if (client != null) {
+            _APIA = null;
+            _APIM = null;
+            client.close();
+            client = null;
         }
     }
 
+    /**
+     * Get a new PID in the configured namespace. PIDs are taken from the {@link PidPool}.
+     *
+     * @return The PID
+     * @throws SWORDException if no PID could be retrieved from the repository
+     */
+    public String mintPid() throws SWORDException {
+        return PidPool.getInstance(configuration).mint(_APIM, username, password);
+    }
+
     public Validation validate(FedoraObject obj) throws SWORDException {
         try {
             return _APIM.validate(obj.getPid(), null);
@@ -123,18 +148,39 @@ public class FedoraRepository {
     }
 
     public String getFedoraVersion() {
-        return fedoraVersion;
+        return descriptor.getVersion();
     }
 
     /**
      * Ingest an object into Fedora.
+     * <p/>
+     * If the ingest fails while datastreams refer to earlier uploads of their content, Fedora may
+     * have dropped those uploads already. Their content is uploaded again and the ingest is retried once.
      *
      * @throws SWORDException if ingest failed
      */
     public void ingest(FedoraObject fedoraFedoraObject) throws SWORDException {
         uploadLocalDatastreams(fedoraFedoraObject.getDatastreams());
+        try {
+            ingestFOXML(fedoraFedoraObject);
+        } catch (SWORDException e) {
+            List<Datastream> reused = new ArrayList<Datastream>();
+            for (Datastream datastream : fedoraFedoraObject.getDatastreams()) {
+                if (forgetReusedUpload(datastream)) {
+                    reused.add(datastream);
+                }
+            }
+            if (reused.isEmpty()) {
+                throw e;
+            }
+            log.warn("Ingest with " + reused.size() + " reused uploads failed, uploading them again");
+            uploadLocalDatastreams(reused);
+            ingestFOXML(fedoraFedoraObject);
+        }
+    }
 
-        boolean fedora3compatibility = (fedoraVersion.startsWith("3"));
+    private void ingestFOXML(FedoraObject fedoraFedoraObject) throws SWORDException {
+        boolean fedora3compatibility = descriptor.isFedora3();
 
         // upload foxml
         Document tFOXML = fedoraFedoraObject.toFOXML(fedora3compatibility);
@@ -143,13 +189,7 @@ public class FedoraRepository {
         try {
             tOut.output(tFOXML, tByteArray);
 
-            String tXMLFormat;
-            if (fedora3compatibility) {
-                tXMLFormat = "info:fedora/fedora-system:FOXML-1.1";
-            } else {
-                tXMLFormat = "foxml1.0";
-            }
-            _APIM.ingest(tByteArray.toByteArray(), tXMLFormat, "ingested by the sword program");
+            _APIM.ingest(tByteArray.toByteArray(), descriptor.getFOXMLFormat(), "ingested by the sword program");
         } catch (RemoteException tRemoteExcpt) {
             try {
                 tOut.output(tFOXML, System.out);
@@ -157,6 +197,8 @@ public class FedoraRepository {
             }
             String tErrMessage = "Had problems adding the object to the repository; ";
             log.error(tErrMessage + tRemoteExcpt.toString());
+            forgetCredentialsIfRejected(tRemoteExcpt);
+            RepositoryDescriptor.markStale(configuration.getFedoraURL());
             throw new SWORDException(tErrMessage, tRemoteExcpt);
         } catch (Exception tExcpt) {
             try {
@@ -165,6 +207,8 @@ public class FedoraRepository {
             }
             String tErrMessage = "Had problems adding the object to the repository; ";
             log.error(tErrMessage + tExcpt.toString());
+            forgetCredentialsIfRejected(tExcpt);
+            RepositoryDescriptor.markStale(configuration.getFedoraURL());
             throw new SWORDException(tErrMessage, tExcpt);
         }
     }
@@ -172,6 +216,9 @@ public class FedoraRepository {
     /**
      * Modify an existing XML datastream by updating content and properties.
      * If a local datastream is passed, it get's uploaded to Fedora prior to ingest.
+     * A checksum set on the update replaces the checksum type of the original datastream.
+     * If the update refers to an earlier upload that Fedora doesn't accept any more, the content is
+     * uploaded again and the update is retried once.
      *
      * @param pid        PID of the targeted object
      * @param update     Updated Datastream information
@@ -180,7 +227,23 @@ public class FedoraRepository {
      */
     public void modifyDatastream(String pid, Datastream update, String logMessage) throws SWORDException {
         uploadDatastreamIfLocal(update);
+        try {
+            modifyUploadedDatastream(pid, update, logMessage);
+        } catch (RuntimeException e) {
+            forgetCredentialsIfRejected(e);
+            if (!forgetReusedUpload(update)) {
+                throw e;
+            }
+            log.warn("Modifying " + update.getId() + " with a reused upload failed, uploading it again");
+            uploadDatastreamIfLocal(update);
+            modifyUploadedDatastream(pid, update, logMessage);
+        }
+    }
+
+    private void modifyUploadedDatastream(String pid, Datastream update, String logMessage) throws SWORDException {
         org.fcrepo.server.types.gen.Datastream original = _APIM.getDatastream(pid, update.getId(), null);
+        final String checksumType = hasChecksum(update) ? update.getDigestType() : original.getChecksumType();
+        final String checksum = hasChecksum(update) ? update.getDigest() : null;
 
         if (update instanceof InlineDatastream) {
             byte[] content = serializeContent((InlineDatastream) update);
@@ -192,8 +255,8 @@ public class FedoraRepository {
                     update.getMimeType(),
                     original.getFormatURI(),
                     content,
-                    original.getChecksumType(),
-                    null,
+                    checksumType,
+                    checksum,
                     logMessage,
                     false);
         } else {
@@ -209,8 +272,8 @@ public class FedoraRepository {
                     update.getMimeType(),
                     original.getFormatURI(),
                     contentLocationUrl,
-                    original.getChecksumType(),
-                    null,
+                    checksumType,
+                    checksum,
                     logMessage,
                     false);
         }
@@ -220,7 +283,9 @@ public class FedoraRepository {
      * Add a new datastream to an existing object.
      * If a local datastream is passed, it get's uploaded to Fedora prior to ingest.
      * <p/>
-     * The checksum type will be set to DISABLED.
+     * The checksum of the datastream is handed to Fedora if it has one, otherwise checksums are DISABLED.
+     * If the datastream refers to an earlier upload that Fedora doesn't accept any more, the content is
+     * uploaded again and adding it is retried once.
      *
      * @param pid        PID of the targeted object
      * @param ds         Updated Datastream information
@@ -236,7 +301,20 @@ public class FedoraRepository {
         }
 
         uploadDatastreamIfLocal(tds);
+        try {
+            addUploadedDatastream(pid, tds, logMessage);
+        } catch (RuntimeException e) {
+            forgetCredentialsIfRejected(e);
+            if (!forgetReusedUpload(tds)) {
+                throw e;
+            }
+            log.warn("Adding " + tds.getId() + " with a reused upload failed, uploading it again");
+            uploadDatastreamIfLocal(tds);
+            addUploadedDatastream(pid, tds, logMessage);
+        }
+    }
 
+    private void addUploadedDatastream(String pid, Datastream tds, String logMessage) {
         _APIM.addDatastream(
                 pid,
                 tds.getId(),
@@ -248,8 +326,8 @@ public class FedoraRepository {
                 ((URLContentLocationDatastream) tds).getURL(),
                 tds.getControlGroup().toString(),
                 tds.getState().toString(),
-                "DISABLED",
-                null,
+                hasChecksum(tds) ? tds.getDigestType() : "DISABLED",
+                hasChecksum(tds) ? tds.getDigest() : null,
                 "[creation] " + logMessage);
     }
 
@@ -332,25 +410,8 @@ public class FedoraRepository {
         return false;
     }
 
-    private void authenticate(String username, String password, BindingProvider bindingProvider) {
-        Map<String, String> requestHeaders = new HashMap<String, String>();
-        requestHeaders.put(BindingProvider.USERNAME_PROPERTY, username);
-        requestHeaders.put(BindingProvider.PASSWORD_PROPERTY, password);
-        bindingProvider.getRequestContext().putAll(requestHeaders);
-    }
-
-    private void initializeAPIA(String fedoraURL) {
-        JaxWsProxyFactoryBean factoryBean = new JaxWsProxyFactoryBean();
-        factoryBean.setServiceClass(FedoraAPIA.class);
-        factoryBean.setAddress(fedoraURL + "/services/access");
-        _APIA = (FedoraAPIA) factoryBean.create();
-    }
-
-    private void initializeAPIM(String fedoraURL) {
-        JaxWsProxyFactoryBean factoryBean = new JaxWsProxyFactoryBean();
-        factoryBean.setServiceClass(FedoraAPIM.class);
-        factoryBean.setAddress(fedoraURL + "/services/management");
-        _APIM = (FedoraAPIM) factoryBean.create();
+    private static boolean hasChecksum(Datastream ds) {
+        return ds.getDigestType() != null && !"DISABLED".equals(ds.getDigestType());
     }
 
     private byte[] serializeContent(InlineDatastream ds) throws SWORDException {
@@ -364,20 +425,152 @@ public class FedoraRepository {
         }
     }
 
+    /**
+     * Forget a remembered authentication of the credentials if Fedora rejected them, so that the
+     * next request checks them again.
+     */
+    private void forgetCredentialsIfRejected(Exception e) throws SWORDException {
+        if (FedoraClientPool.isUnauthorized(e)) {
+            configuration.getAuthenticationCache().invalidate(configuration.getFedoraURL(), username, password);
+        }
+    }
+
+    /**
+     * @return True if the datastream referred to an earlier upload, which is forgotten now
+     */
+    private boolean forgetReusedUpload(Datastream datastream) throws SWORDException {
+        if (datastream instanceof LocalDatastream && ((LocalDatastream) datastream).isReusedUpload()) {
+            ((LocalDatastream) datastream).forgetReusedUpload(configuration);
+            return true;
+        }
+        return false;
+    }
+
     private void uploadDatastreamIfLocal(Datastream datastream) throws SWORDException {
         try {
             if (datastream instanceof LocalDatastream) {
-                ((LocalDatastream) datastream).upload(username, password);
+                ((LocalDatastream) datastream).upload(configuration, username, password);
             }
         } catch (IOException tIOExcpt) {
             throw new SWORDException("Error accessing uploaded file: ", tIOExcpt);
         }
     }
 
+    /**
+     * Upload the local datastreams, several at a time if configured. If one upload fails
+     * the uploads that haven't finished yet are cancelled. The error is only thrown once the
+     * running uploads have stopped, as the caller releases the content they are sending.
+     */
     private void uploadLocalDatastreams(List<Datastream> datastreams) throws SWORDException {
         log.debug("Uploading local datastreams");
+        List<LocalDatastream> localDatastreams = new ArrayList<LocalDatastream>();
         for (Datastream datastream : datastreams) {
-            uploadDatastreamIfLocal(datastream);
+            if (datastream instanceof LocalDatastream) {
+                localDatastreams.add((LocalDatastream) datastream);
+            }
+        }
+
+        int parallel = Math.min(localDatastreams.size(), configuration.getConfiguration().getUploadThreadsPerDeposit());
+        if (parallel <= 1) {
+            for (LocalDatastream datastream : localDatastreams) {
+                uploadDatastreamIfLocal(datastream);
+            }
+            return;
+        }
+
+        CompletionService<Void> uploads = new ExecutorCompletionService<Void>(
+                FedoraUploadClient.getInstance(configuration).getExecutor());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        RunningUploads running = new RunningUploads();
+        Iterator<LocalDatastream> next = localDatastreams.iterator();
+        try {
+            while (futures.size() < parallel && next.hasNext()) {
+                futures.add(uploads.submit(uploadTask(next.next(), running)));
+            }
+            for (int done = 0; done < localDatastreams.size(); done++) {
+                uploads.take().get();
+                if (next.hasNext()) {
+                    futures.add(uploads.submit(uploadTask(next.next(), running)));
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SWORDException) {
+                throw (SWORDException) cause;
+            } else if (cause instanceof IOException) {
+                throw new SWORDException("Error accessing uploaded file: ", (IOException) cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SWORDException("Error uploading datastream: ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SWORDException("Interrupted while uploading datastreams", e);
+        } finally {
+            // httpclient doesn't stop sending when it is interrupted, so wait for the running uploads
+            running.stop();
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            running.await();
+        }
+    }
+
+    private Callable<Void> uploadTask(final LocalDatastream datastream, final RunningUploads running) {
+        return new Callable<Void>() {
+            public Void call() throws Exception {
+                if (!running.start()) {
+                    return null;
+                }
+                try {
+                    datastream.upload(configuration, username, password);
+                } finally {
+                    running.finish();
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Counts the uploads of one call that are running. Once stopped no upload starts any more.
+     */
+    private static final class RunningUploads {
+        private int running = 0;
+        private boolean stopped = false;
+
+        synchronized boolean start() {
+            if (stopped) {
+                return false;
+            }
+            running++;
+            return true;
+        }
+
+        synchronized void finish() {
+            running--;
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+        }
+
+        /**
+         * Wait until no upload is running, even if the thread is interrupted.
+         */
+        synchronized void await() {
+            boolean interrupted = false;
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
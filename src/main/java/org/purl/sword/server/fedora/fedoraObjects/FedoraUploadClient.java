@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.fedoraObjects;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.utils.Configuration;
+import org.purl.sword.server.fedora.utils.XMLProperties;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP client for uploading files to the Fedora upload servlet.
+ * <p/>
+ * There is one client per Fedora URL. It keeps a bounded pool of keep-alive connections,
+ * so uploading the files of a package doesn't open a connection per file. Connections that
+ * have been idle for longer than the configured time are closed. Credentials are passed with
+ * every call and are not stored in the shared client.
+ * <p/>
+ * Where the upload URL redirects to is remembered, so later uploads go to the final
+ * URL directly and don't send their body once per redirect.
+ * <p/>
+ * Each client has a fixed number of threads that deposits can use to upload their files
+ * at the same time.
+ */
+public final class FedoraUploadClient {
+    private static final Logger log = Logger.getLogger(FedoraUploadClient.class);
+    private static final int MAX_REDIRECTS = 5;
+    private static final ConcurrentMap<String, FedoraUploadClient> clients = new ConcurrentHashMap<String, FedoraUploadClient>();
+    private static IdleConnectionTimeoutThread idleConnectionTimeout;
+
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final HttpClient httpClient;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, String> redirects = new ConcurrentHashMap<String, String>();
+
+    private FedoraUploadClient(Configuration configuration) {
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(configuration.getUploadMaxConnections());
+        params.setMaxTotalConnections(configuration.getUploadMaxConnections());
+        params.setConnectionTimeout(configuration.getUploadConnectTimeout());
+        params.setSoTimeout(configuration.getUploadSocketTimeout());
+        params.setStaleCheckingEnabled(true);
+
+        httpClient = new HttpClient(connectionManager);
+        httpClient.getParams().setAuthenticationPreemptive(true);
+        httpClient.getParams().setConnectionManagerTimeout(configuration.getUploadConnectTimeout());
+
+        watchIdleConnections(connectionManager, configuration.getUploadIdleTimeout());
+
+        executor = Executors.newFixedThreadPool(configuration.getUploadThreads(), new ThreadFactory() {
+            private final ThreadFactory defaults = Executors.defaultThreadFactory();
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = defaults.newThread(r);
+                thread.setName("sword-upload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get the upload client for the Fedora instance of the given configuration.
+     *
+     * @param properties The configuration
+     * @return The upload client
+     * @throws SWORDException if the fedora section of the configuration is invalid
+     */
+    public static FedoraUploadClient getInstance(XMLProperties properties) throws SWORDException {
+        String fedoraURL = properties.getFedoraURL();
+        FedoraUploadClient client = clients.get(fedoraURL);
+        if (client == null) {
+            FedoraUploadClient created = new FedoraUploadClient(properties.getConfiguration());
+            client = clients.putIfAbsent(fedoraURL, created);
+            if (client == null) {
+                client = created;
+            } else {
+                created.close();
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Close the connections of all upload clients.
+     */
+    public static void shutdown() {
+        for (FedoraUploadClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+        synchronized (FedoraUploadClient.class) {
+            if (idleConnectionTimeout != null) {
+                idleConnectionTimeout.shutdown();
+                idleConnectionTimeout = null;
+            }
+        }
+    }
+
+    /**
+     * @return The threads for uploading files to this Fedora instance
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Upload a file to Fedora, following redirects.
+     *
+     * @param url      The upload URL
+     * @param username Username for Fedora
+     * @param password Password for Fedora
+     * @param part     The file to upload
+     * @return The response body, which holds the temporary location of the upload
+     * @throws IOException if the upload failed
+     */
+    public String upload(String url, String username, String password, Part part) throws IOException {
+        HttpState state = new HttpState();
+        state.setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT, AuthScope.ANY_REALM),
+                new UsernamePasswordCredentials(username, password));
+
+        String target = redirects.containsKey(url) ? redirects.get(url) : url;
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            PostMethod post = new PostMethod(target);
+            try {
+                // lets Fedora answer with a redirect or an error before the body is sent
+                post.getParams().setBooleanParameter(HttpMethodParams.USE_EXPECT_CONTINUE, true);
+                post.setContentChunked(true);
+                post.setRequestEntity(new MultipartRequestEntity(new Part[]{part}, post.getParams()));
+
+                int responseCode = httpClient.executeMethod(null, post, state);
+                if (responseCode >= 300 && responseCode <= 399) {
+                    Header location = post.getResponseHeader("location");
+                    if (location == null) {
+                        throw new IOException("Redirect without location from " + target);
+                    }
+                    log.debug("Upload to " + target + " redirected to " + location.getValue());
+                    target = location.getValue();
+                    continue;
+                }
+                if (responseCode != 201) {
+                    redirects.remove(url);
+                    throw new IOException("Upload to " + target + " failed with status " + responseCode);
+                }
+                if (!target.equals(url)) {
+                    redirects.put(url, target);
+                }
+                return post.getResponseBodyAsString();
+            } finally {
+                post.releaseConnection();
+            }
+        }
+        throw new IOException("Too many redirects uploading to " + url);
+    }
+
+    private void close() {
+        executor.shutdownNow();
+        synchronized (FedoraUploadClient.class) {
+            if (idleConnectionTimeout != null) {
+                idleConnectionTimeout.removeConnectionManager(connectionManager);
+            }
+        }
+        connectionManager.shutdown();
+    }
+
+    private static synchronized void watchIdleConnections(MultiThreadedHttpConnectionManager manager, long idleTimeout) {
+        if (idleConnectionTimeout == null) {
+            idleConnectionTimeout = new IdleConnectionTimeoutThread();
+            idleConnectionTimeout.setName("sword-idle-connection-timeout");
+            idleConnectionTimeout.setDaemon(true);
+            idleConnectionTimeout.setConnectionTimeout(idleTimeout);
+            idleConnectionTimeout.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+            idleConnectionTimeout.start();
+        }
+        idleConnectionTimeout.addConnectionManager(manager);
+    }
+}
@@ -37,30 +37,32 @@
  */
 package org.purl.sword.server.fedora.fedoraObjects;
 
-import org.apache.commons.httpclient.Credentials;
-import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
-import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 import org.apache.log4j.Logger;
 import org.jdom.Element;
 import org.jdom.Namespace;
 import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.utils.DigestingInputStream;
+import org.purl.sword.server.fedora.utils.SpoolBuffer;
+import org.purl.sword.server.fedora.utils.UploadCache;
 import org.purl.sword.server.fedora.utils.XMLProperties;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.Normalizer;
 
 /**
  * This encapsulates datastreams which are on the local file system
- * and need to be uploaded to fedora. These files are set to a Managed state
+ * and need to be uploaded to fedora. These files are set to a Managed state.
+ * The content can also come from a {@link SpoolBuffer}, which may hold it in memory.
+ * If the {@link UploadCache} is enabled, content that was uploaded shortly before is
+ * referenced instead of being uploaded again.
  *
  * @author Glen Robson
  * @version 1.0
@@ -68,8 +70,13 @@ import java.text.Normalizer;
 public class LocalDatastream extends Datastream implements URLContentLocationDatastream {
     private static final Logger LOG = Logger.getLogger(LocalDatastream.class);
     private String _path = "";
-    private String _uploadedURL = null;
+    private SpoolBuffer _content = null;
+    private volatile String _uploadedURL = null;
     private boolean cleanup = true;
+    private String _hashAlgorithm = null;
+    private String _hash = null;
+    private boolean _reuseUploads = true;
+    private volatile boolean _reusedUpload = false;
 
     /**
      * @param pID       Datastream ID
@@ -82,16 +89,57 @@ public class LocalDatastream extends Datastream implements URLContentLocationDat
         this.setPath(pPath);
     }
 
+    /**
+     * @param pID       Datastream ID
+     * @param pMimeType Mime type
+     * @param pContent  The closed buffer holding the content of the datastream
+     */
+    public LocalDatastream(final String pID, final String pMimeType, final SpoolBuffer pContent) {
+        super(pID, State.ACTIVE, ControlGroup.MANAGED, pMimeType);
+        super.setLabel("SWORD Generic File Upload");
+        _content = pContent;
+        File tFile = pContent.getFile();
+        this.setPath(tFile == null ? "" : tFile.getPath());
+    }
+
+    /**
+     * @return The path of the file holding the content, empty if the content is held in memory
+     */
     public String getPath() {
         return _path;
     }
 
+    /**
+     * @return The file holding the content or null if the content is held in memory
+     * @throws IOException if the path isn't a valid file URI
+     */
+    public File getContentFile() throws IOException {
+        if (_content != null) {
+            return _content.getFile();
+        }
+        return getFileInstance();
+    }
+
+    /**
+     * Read the content of this datastream, whether it is held in a file or in memory.
+     *
+     * @return A new stream over the content
+     * @throws IOException if the content can't be read
+     */
+    public InputStream openStream() throws IOException {
+        if (_content != null) {
+            return _content.openStream();
+        }
+        return new FileInputStream(getFileInstance());
+    }
+
     public void setPath(final String pPath) {
         _path = pPath;
     }
 
     /**
-     * This uploads the datastream to Fedora so that it is accessible on ingest
+     * This uploads the datastream to Fedora so that it is accessible on ingest, using the
+     * configuration of the calling thread.
      *
      * @param pUsername Username for fedora repository
      * @param pPassword Password for fedora repository
@@ -99,24 +147,135 @@ public class LocalDatastream extends Datastream implements URLContentLocationDat
      * @throws SWORDException if there are problems contacting the repository
      */
     public void upload(final String pUsername, final String pPassword) throws IOException, SWORDException {
+        this.upload(new XMLProperties(), pUsername, pPassword);
+    }
+
+    /**
+     * This uploads the datastream to Fedora so that it is accessible on ingest.
+     * The datastream is only uploaded once, even if this is called from several threads.
+     * Upload threads don't see the configuration of the request, so it is passed in.
+     *
+     * @param pProps    The configuration of the request the datastream belongs to
+     * @param pUsername Username for fedora repository
+     * @param pPassword Password for fedora repository
+     * @throws IOException    if there are problems accessing the file
+     * @throws SWORDException if there are problems contacting the repository
+     */
+    public synchronized void upload(final XMLProperties pProps, final String pUsername, final String pPassword) throws IOException, SWORDException {
         // Ensure no one uploads same object twice
         if (_uploadedURL != null) return;
 
+        final String fedoraURL = pProps.getFedoraURL();
+        final String fedoraUploadUrl = fedoraURL + "/management/upload";
+
+        final UploadCache tCache = pProps.getUploadCache();
+        final long tLength = this.getContentLength();
+        final String tHash = (_reuseUploads && tCache.isEnabled()) ? getContentHash(tCache.getAlgorithm()) : null;
+        if (tHash != null) {
+            String tReference = tCache.get(fedoraURL, tHash, tLength);
+            if (tReference != null) {
+                // the content is kept, in case Fedora doesn't know the reference any more
+                LOG.info("Content of " + getSource() + " was uploaded before as " + tReference);
+                _reusedUpload = true;
+                _uploadedURL = tReference;
+                return;
+            }
+        }
+
+        String body = this.sendContent(pProps, fedoraUploadUrl, pUsername, pPassword);
+        _uploadedURL = body.trim().replaceAll("\n", "");
+        if (tHash != null) {
+            tCache.put(fedoraURL, tHash, tLength, _uploadedURL);
+        }
+
+        if (cleanup) {
+            this.releaseContent();
+        }
+    }
+
+    /**
+     * @return The length of the content
+     * @throws IOException if the content doesn't exist
+     */
+    protected long getContentLength() throws IOException {
+        if (_content != null) {
+            return _content.getLength();
+        }
         File file = getFileInstance();
         if (!file.exists()) {
             final String message = "File '" + file.getAbsolutePath() + "' doesn't exist";
             LOG.error(message);
             throw new IOException(message);
         }
+        return file.length();
+    }
 
-        final String fedoraUploadUrl = new XMLProperties().getFedoraURL() + "/management/upload";
-        String body = uploadFollowRedirects(fedoraUploadUrl, pUsername, pPassword, file);
-        _uploadedURL = body.trim().replaceAll("\n", "");
+    /**
+     * Send the content to the Fedora upload servlet.
+     *
+     * @param pProps    The configuration of the request
+     * @param pURL      The upload URL
+     * @param pUsername Username for fedora repository
+     * @param pPassword Password for fedora repository
+     * @return The response body holding the temporary location of the upload
+     * @throws IOException    if the upload failed
+     * @throws SWORDException if the configuration is invalid
+     */
+    protected String sendContent(final XMLProperties pProps, final String pURL, final String pUsername, final String pPassword) throws IOException, SWORDException {
+        if (_content != null) {
+            return uploadFollowRedirects(pProps, pURL, pUsername, pPassword, new FilePart("file", new SpoolBufferPartSource(_content)));
+        }
+        return uploadFollowRedirects(pProps, pURL, pUsername, pPassword, getFileInstance());
+    }
 
-        if (cleanup) {
-            LOG.info("Deleting temporary upload file " + _path);
-            file.delete();
+    /**
+     * Give up the local content after it has been uploaded.
+     *
+     * @throws IOException if the file name is invalid
+     */
+    protected void releaseContent() throws IOException {
+        if (_content != null) {
+            _content.release();
+            return;
+        }
+        LOG.info("Deleting temporary upload file " + _path);
+        getFileInstance().delete();
+    }
+
+    /**
+     * Set the digest of the content if it is already known, so it needn't be computed to look
+     * for an earlier upload of the same content.
+     *
+     * @param pAlgorithm The digest algorithm
+     * @param pHash      The hex digest of the content
+     */
+    public synchronized void setContentHash(final String pAlgorithm, final String pHash) {
+        _hashAlgorithm = pAlgorithm;
+        _hash = pHash;
+    }
+
+    /**
+     * @return True if the content wasn't uploaded but an earlier upload of it is referenced
+     */
+    public boolean isReusedUpload() {
+        return _reusedUpload;
+    }
+
+    /**
+     * Forget the earlier upload this datastream refers to, so that the next call to upload sends
+     * the content. Used if Fedora doesn't accept the reference any more.
+     *
+     * @param pProps The configuration of the request the datastream belongs to
+     * @throws SWORDException if the configuration is invalid
+     */
+    public synchronized void forgetReusedUpload(final XMLProperties pProps) throws SWORDException {
+        if (!_reusedUpload) {
+            return;
         }
+        pProps.getUploadCache().invalidate(_uploadedURL);
+        _reusedUpload = false;
+        _reuseUploads = false;
+        _uploadedURL = null;
     }
 
     public boolean isCleanup() {
@@ -124,7 +283,7 @@ public class LocalDatastream extends Datastream implements URLContentLocationDat
     }
 
     /**
-     * Configure if the source file should be deleted after it was successfully uploaded to Fedora.
+     * Configure if the source file or buffer should be released after it was successfully uploaded to Fedora.
      * Default is `true`.
      *
      * @param cleanup True, if the source file should be deleted after successful upload.
@@ -133,39 +292,42 @@ public class LocalDatastream extends Datastream implements URLContentLocationDat
         this.cleanup = cleanup;
     }
 
-    protected String uploadFollowRedirects(final String pURL, final String pUsername, final String pPassword, File file) throws IOException {
-        HttpClient tClient = new HttpClient();
-        tClient.getParams().setAuthenticationPreemptive(true);
-
-        Credentials tUserPass = new UsernamePasswordCredentials(pUsername, pPassword);
-        tClient.getState().setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT, AuthScope.ANY_REALM), tUserPass);
-
-        // execute and get the response
-        LOG.info("Uploading " + this.getPath() + " to " + pURL);
-        PostMethod tPost = new PostMethod(pURL);
-        tPost.getParams().setParameter("Connection", "Keep-Alive");
-
-        LOG.debug("Content length: " + tPost.getRequestHeader("Content-length") + " content type " + tPost.getRequestHeader("Content-Type"));
-        tPost.setContentChunked(true);
-
-        // add the file part
-        Part[] parts = {new FilePart("file", file)};
-        tPost.setRequestEntity(new MultipartRequestEntity(parts, tPost.getParams()));
-        LOG.debug("Multipart length: " + tPost.getRequestEntity().getContentLength());
-
-        int responseCode = tClient.executeMethod(tPost);
-        if (responseCode >= 300 && responseCode <= 399) {
-            Header tLocationHeader = tPost.getResponseHeader("location");
-            // Redirected
-            return this.uploadFollowRedirects(tLocationHeader.getValue(), pUsername, pPassword, file);
-        }
+    /**
+     * Upload the file with the shared {@link FedoraUploadClient}, which follows redirects.
+     *
+     * @param pProps    The configuration of the request
+     * @param pURL      The upload URL
+     * @param pUsername Username for fedora repository
+     * @param pPassword Password for fedora repository
+     * @param file      The file to upload
+     * @return The response body holding the temporary location of the upload
+     * @throws IOException    if the upload failed
+     * @throws SWORDException if the configuration is invalid
+     */
+    protected String uploadFollowRedirects(final XMLProperties pProps, final String pURL, final String pUsername, final String pPassword, File file) throws IOException, SWORDException {
+        return uploadFollowRedirects(pProps, pURL, pUsername, pPassword, new FileChannelPart("file", file));
+    }
 
-        if (responseCode != 201) {
-            LOG.error("Couldn't upload " + this.getPath() + " none 201 result: " + responseCode);
-            throw new IOException("Couldn't upload file: " + this.getPath());
+    /**
+     * Upload a multipart part with the shared {@link FedoraUploadClient}, which follows redirects.
+     *
+     * @param pProps    The configuration of the request
+     * @param pURL      The upload URL
+     * @param pUsername Username for fedora repository
+     * @param pPassword Password for fedora repository
+     * @param pPart     The part holding the content
+     * @return The response body holding the temporary location of the upload
+     * @throws IOException    if the upload failed
+     * @throws SWORDException if the configuration is invalid
+     */
+    protected String uploadFollowRedirects(final XMLProperties pProps, final String pURL, final String pUsername, final String pPassword, Part pPart) throws IOException, SWORDException {
+        LOG.info("Uploading " + this.getSource() + " to " + pURL);
+        try {
+            return FedoraUploadClient.getInstance(pProps).upload(pURL, pUsername, pPassword, pPart);
+        } catch (IOException e) {
+            LOG.error("Couldn't upload " + this.getSource() + ": " + e.getMessage());
+            throw new IOException("Couldn't upload file: " + this.getSource(), e);
         }
-
-        return tPost.getResponseBodyAsString();
     }
 
     /**
@@ -192,6 +354,30 @@ public class LocalDatastream extends Datastream implements URLContentLocationDat
         _uploadedURL = pURL;
     }
 
+    private String getContentHash(final String pAlgorithm) throws IOException {
+        if (pAlgorithm.equals(_hashAlgorithm)) {
+            return _hash;
+        }
+        if (pAlgorithm.equals(getDigestType())) {
+            return getDigest();
+        }
+        try (DigestingInputStream tInput = new DigestingInputStream(openStream(), pAlgorithm)) {
+            byte[] tBytes = new byte[8192];
+            while (tInput.read(tBytes) != -1) {
+                // only the digest is needed
+            }
+            setContentHash(pAlgorithm, tInput.getHexDigest(pAlgorithm));
+        }
+        return _hash;
+    }
+
+    /**
+     * @return A description of where the content comes from for log messages
+     */
+    protected String getSource() {
+        return _path.isEmpty() ? this.getId() + " (in memory)" : _path;
+    }
+
     private File getFileInstance() throws IOException {
         File file;
         if (_path.startsWith("file:")) {
@@ -219,4 +405,27 @@ public class LocalDatastream extends Datastream implements URLContentLocationDat
         return file;
     }
 
+    /**
+     * Lets the multipart upload read the content from a spool buffer.
+     */
+    private static class SpoolBufferPartSource implements PartSource {
+        private final SpoolBuffer content;
+
+        SpoolBufferPartSource(SpoolBuffer content) {
+            this.content = content;
+        }
+
+        public long getLength() {
+            return content.getLength();
+        }
+
+        public String getFileName() {
+            return content.getName();
+        }
+
+        public InputStream createInputStream() throws IOException {
+            return content.openStream();
+        }
+    }
+
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.fedoraObjects;
+
+import org.apache.log4j.Logger;
+import org.fcrepo.server.management.FedoraAPIM;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.utils.BackgroundExecutor;
+import org.purl.sword.server.fedora.utils.XMLProperties;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PIDs reserved in Fedora ahead of time for one Fedora instance and PID namespace.
+ * <p/>
+ * PIDs are requested in blocks of <code>fedora/pid_block_size</code>. Minting takes the next
+ * reserved PID from a lock-free queue; only when the queue is empty does the minting request
+ * have to fetch a block itself. Once no more than <code>fedora/pid_low_water_mark</code> PIDs
+ * are left another block is fetched in the background with the credentials of the request
+ * that noticed it.
+ * <p/>
+ * PIDs that are still reserved when the web application stops are written to the temp
+ * directory and taken up again on the next start, so they aren't lost. With the default
+ * block size of 1 nothing is reserved and every PID is fetched when it is needed.
+ */
+public final class PidPool {
+    private static final Logger log = Logger.getLogger(PidPool.class);
+    private static final ConcurrentMap<String, PidPool> pools = new ConcurrentHashMap<String, PidPool>();
+
+    private final String fedoraURL;
+    private final String namespace;
+    private final int blockSize;
+    private final int lowWaterMark;
+    private final File store;
+    private final Queue<String> pids = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger available = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    // set under the lock of the pool once its PIDs have been persisted or handed to another pool
+    private boolean closed = false;
+
+    private PidPool(String fedoraURL, String namespace, int blockSize, int lowWaterMark, File store) {
+        this.fedoraURL = fedoraURL;
+        this.namespace = namespace;
+        this.blockSize = Math.max(1, blockSize);
+        this.lowWaterMark = lowWaterMark;
+        this.store = store;
+        load();
+    }
+
+    /**
+     * Get the pool for the Fedora instance and PID namespace of the given configuration.
+     * The pool is created on first use and takes up PIDs left over from the last run.
+     *
+     * @param properties The configuration
+     * @return The PID pool
+     * @throws SWORDException if the configuration is incomplete
+     */
+    public static PidPool getInstance(XMLProperties properties) throws SWORDException {
+        String fedoraURL = properties.getFedoraURL();
+        String namespace = properties.getPIDNamespace();
+        String key = fedoraURL + " " + namespace;
+        PidPool pool = pools.get(key);
+        if (pool == null) {
+            File store = new File(properties.getTempDir(),
+                    "pids-" + namespace.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + Integer.toHexString(fedoraURL.hashCode()) + ".txt");
+            PidPool created = new PidPool(fedoraURL, namespace, properties.getPidBlockSize(), properties.getPidLowWaterMark(), store);
+            pool = pools.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            } else {
+                // lost the race, give the PIDs taken from the store to the winner
+                created.drainTo(pool);
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Write the reserved PIDs of all pools to the temp directory.
+     */
+    public static void shutdown() {
+        for (PidPool pool : pools.values()) {
+            pool.persist();
+        }
+        pools.clear();
+    }
+
+    /**
+     * Take the next reserved PID or fetch a block from Fedora if there is none left.
+     *
+     * @param apim     The management client of the calling request
+     * @param username Username for fetching the next block in the background
+     * @param password Password for fetching the next block in the background
+     * @return A PID nobody else has got
+     * @throws SWORDException if no PID could be fetched from Fedora
+     */
+    public String mint(FedoraAPIM apim, String username, String password) throws SWORDException {
+        String pid = pids.poll();
+        if (pid != null) {
+            available.decrementAndGet();
+        } else {
+            List<String> block = fetch(apim);
+            pid = block.remove(0);
+            add(block);
+        }
+        if (blockSize > 1 && available.get() <= lowWaterMark && refilling.compareAndSet(false, true)) {
+            refill(username, password);
+        }
+        return pid;
+    }
+
+    /**
+     * @return Number of PIDs that are reserved and not used yet
+     */
+    public int getAvailable() {
+        return available.get();
+    }
+
+    private void refill(final String username, final String password) {
+        try {
+            BackgroundExecutor.execute(new Runnable() {
+                public void run() {
+                    FedoraClientPool.Client client = null;
+                    try {
+                        client = FedoraClientPool.getInstance(fedoraURL, 1).lease(username, password);
+                        add(fetch(client.getAPIM()));
+                        log.debug(available.get() + " PIDs reserved in namespace " + namespace);
+                    } catch (Exception e) {
+                        log.warn("Couldn't reserve PIDs in the background: " + e.getMessage());
+                    } finally {
+                        if (client != null) {
+                            client.close();
+                        }
+                        refilling.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refilling.set(false);
+        }
+    }
+
+    private List<String> fetch(FedoraAPIM apim) throws SWORDException {
+        List<String> block;
+        try {
+            block = new ArrayList<String>(apim.getNextPID(BigInteger.valueOf(blockSize), namespace));
+        } catch (Exception e) {
+            throw new SWORDException("Problems retrieving the next pid from the repository: ", e);
+        }
+        if (block.isEmpty()) {
+            throw new SWORDException("Problems retrieving the next pid from the repository: no pid returned");
+        }
+        return block;
+    }
+
+    /**
+     * Add reserved PIDs to the pool. A refill that finishes after the pool was closed would
+     * add PIDs nobody persists any more, they are left unused instead.
+     */
+    private synchronized void add(List<String> block) {
+        if (closed) {
+            log.info("Not keeping " + block.size() + " PIDs reserved in namespace " + namespace + " after shutdown");
+            return;
+        }
+        for (String pid : block) {
+            pids.add(pid);
+            available.incrementAndGet();
+        }
+    }
+
+    private void drainTo(PidPool other) {
+        other.add(close());
+    }
+
+    private void load() {
+        if (!store.exists()) {
+            return;
+        }
+        List<String> loaded = new ArrayList<String>();
+        try (Reader reader = new InputStreamReader(new FileInputStream(store), StandardCharsets.UTF_8)) {
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.trim().length() > 0) {
+                    loaded.add(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Couldn't read reserved PIDs from " + store.getPath() + ": " + e.getMessage());
+            return;
+        }
+        // the PIDs belong to this pool now, they must not be handed out a second time after a crash
+        if (!store.delete()) {
+            log.warn("Couldn't delete " + store.getPath() + ", not using the PIDs in it");
+            return;
+        }
+        add(loaded);
+        log.info("Took up " + loaded.size() + " reserved PIDs from " + store.getPath());
+    }
+
+    /**
+     * Take all PIDs out of the pool and stop it from taking more.
+     *
+     * @return The PIDs that were reserved
+     */
+    private synchronized List<String> close() {
+        closed = true;
+        List<String> remaining = new ArrayList<String>();
+        String pid;
+        while ((pid = pids.poll()) != null) {
+            remaining.add(pid);
+        }
+        available.set(0);
+        return remaining;
+    }
+
+    private void persist() {
+        List<String> remaining = close();
+        if (remaining.isEmpty()) {
+            return;
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(store), StandardCharsets.UTF_8))) {
+            for (String reserved : remaining) {
+                writer.write(reserved);
+                writer.write('\n');
+            }
+            log.info("Saved " + remaining.size() + " reserved PIDs to " + store.getPath());
+        } catch (IOException e) {
+            log.warn("Couldn't save reserved PIDs to " + store.getPath() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.fedoraObjects;
+
+import org.apache.log4j.Logger;
+import org.fcrepo.server.access.FedoraAPIA;
+import org.fcrepo.server.types.gen.RepositoryInfo;
+import org.purl.sword.server.fedora.utils.BackgroundExecutor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * What a Fedora instance told about itself in <code>describeRepository</code>, and what
+ * follows from it for ingesting objects.
+ * <p/>
+ * Descriptors are cached per Fedora URL. A cached descriptor is refreshed in the background
+ * once it is older than the configured refresh interval or has been marked stale after a
+ * failed call, so requests only have to wait for Fedora the first time.
+ */
+public final class RepositoryDescriptor {
+    private static final Logger log = Logger.getLogger(RepositoryDescriptor.class);
+    private static final ConcurrentMap<String, Holder> descriptors = new ConcurrentHashMap<String, Holder>();
+
+    private final String name;
+    private final String version;
+    private final String defaultExportFormat;
+    private final long created;
+
+    private RepositoryDescriptor(RepositoryInfo info) {
+        this.name = info.getRepositoryName();
+        this.version = info.getRepositoryVersion().trim();
+        this.defaultExportFormat = info.getDefaultExportFormat();
+        this.created = System.currentTimeMillis();
+    }
+
+    /**
+     * Ask Fedora for its description and cache it.
+     *
+     * @param fedoraURL The Fedora base URL the client talks to
+     * @param apia      An access client for the Fedora instance
+     * @return The new descriptor
+     */
+    public static RepositoryDescriptor probe(String fedoraURL, FedoraAPIA apia) {
+        RepositoryDescriptor descriptor = new RepositoryDescriptor(apia.describeRepository());
+        holder(fedoraURL).set(descriptor);
+        log.info("Connected to Fedora version " + descriptor.getVersion() + " at " + fedoraURL);
+        return descriptor;
+    }
+
+    /**
+     * Get the cached descriptor of a Fedora instance. Fedora is only asked if there is none yet;
+     * an outdated or stale descriptor is returned and refreshed in the background with the given
+     * credentials.
+     *
+     * @param fedoraURL     The Fedora base URL
+     * @param apia          An access client for the Fedora instance, used if there is no descriptor yet
+     * @param refreshMillis Age after which the descriptor is refreshed
+     * @param username      Username for refreshing in the background
+     * @param password      Password for refreshing in the background
+     * @return The descriptor
+     */
+    public static RepositoryDescriptor get(String fedoraURL, FedoraAPIA apia, long refreshMillis, String username, String password) {
+        Holder holder = holder(fedoraURL);
+        RepositoryDescriptor descriptor = holder.descriptor;
+        if (descriptor == null) {
+            return probe(fedoraURL, apia);
+        }
+        if ((holder.stale || descriptor.created + refreshMillis < System.currentTimeMillis())
+                && holder.refreshing.compareAndSet(false, true)) {
+            refresh(fedoraURL, holder, username, password);
+        }
+        return descriptor;
+    }
+
+    /**
+     * Mark the descriptor of a Fedora instance as stale, e.g. after an ingest failed, so that
+     * it is refreshed on the next use.
+     *
+     * @param fedoraURL The Fedora base URL
+     */
+    public static void markStale(String fedoraURL) {
+        Holder holder = descriptors.get(fedoraURL);
+        if (holder != null) {
+            holder.stale = true;
+        }
+    }
+
+    private static Holder holder(String fedoraURL) {
+        Holder holder = descriptors.get(fedoraURL);
+        if (holder == null) {
+            Holder created = new Holder();
+            holder = descriptors.putIfAbsent(fedoraURL, created);
+            if (holder == null) {
+                holder = created;
+            }
+        }
+        return holder;
+    }
+
+    private static void refresh(final String fedoraURL, final Holder holder, final String username, final String password) {
+        try {
+            BackgroundExecutor.execute(new Runnable() {
+                public void run() {
+                    FedoraClientPool.Client client = null;
+                    try {
+                        client = FedoraClientPool.getInstance(fedoraURL, 1).lease(username, password);
+                        probe(fedoraURL, client.getAPIA());
+                    } catch (RuntimeException e) {
+                        log.warn("Couldn't refresh description of " + fedoraURL + ": " + e.getMessage());
+                    } finally {
+                        if (client != null) {
+                            client.close();
+                        }
+                        holder.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            holder.refreshing.set(false);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getDefaultExportFormat() {
+        return defaultExportFormat;
+    }
+
+    /**
+     * @return True if the repository is Fedora 3 and understands FOXML 1.1
+     */
+    public boolean isFedora3() {
+        return version.startsWith("3");
+    }
+
+    /**
+     * @return The format URI to pass to ingest
+     */
+    public String getFOXMLFormat() {
+        return isFedora3() ? "info:fedora/fedora-system:FOXML-1.1" : "foxml1.0";
+    }
+
+    private static final class Holder {
+        private volatile RepositoryDescriptor descriptor;
+        private volatile boolean stale;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private void set(RepositoryDescriptor descriptor) {
+            this.descriptor = descriptor;
+            this.stale = false;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.fedoraObjects;
+
+import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.utils.DigestingInputStream;
+import org.purl.sword.server.fedora.utils.RingBufferPipe;
+import org.purl.sword.server.fedora.utils.UploadCache;
+import org.purl.sword.server.fedora.utils.XMLProperties;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A managed datastream whose content is passed on to the Fedora upload while it is read
+ * from the deposit, without storing it first.
+ * <p/>
+ * The content is copied from the deposit into a {@link RingBufferPipe} by a pump thread
+ * while the upload sends it from the other end. It can only be read once, so the deposit
+ * stream must not be used by anything else and the length must be known in advance. The
+ * pump is only started when the upload actually sends the body, so a redirect answered
+ * before the body doesn't consume it.
+ * <p/>
+ * The deposit is checksummed while it is streamed. The Content-MD5 given with the deposit is
+ * verified and the configured checksum is set on the datastream once the upload has finished.
+ * As the digest is only known then, the upload is remembered in the {@link UploadCache} for later
+ * deposits but never replaced by an earlier one.
+ */
+public class StreamingDatastream extends LocalDatastream {
+    private static final Logger log = Logger.getLogger(StreamingDatastream.class);
+
+    private final DigestingInputStream source;
+    private final String contentMD5;
+    private final String checksumType;
+    private final long length;
+    private final String fileName;
+    private final int bufferSize;
+    private boolean consumed = false;
+
+    /**
+     * @param pID           Datastream ID
+     * @param pMimeType     Mime type
+     * @param pSource       The deposit stream, computing MD5 if a Content-MD5 is given and the checksum type
+     * @param pContentMD5   The Content-MD5 given with the deposit, may be null
+     * @param pChecksumType The checksum type to set on the datastream or DISABLED
+     * @param pLength       Number of bytes in the deposit stream
+     * @param pFileName     File name sent with the upload
+     * @param bufferSize    Size of the buffer between the deposit and the upload in bytes
+     */
+    public StreamingDatastream(final String pID, final String pMimeType, final DigestingInputStream pSource,
+                               final String pContentMD5, final String pChecksumType, final long pLength,
+                               final String pFileName, final int bufferSize) {
+        super(pID, pMimeType, "");
+        this.source = pSource;
+        this.contentMD5 = pContentMD5;
+        this.checksumType = pChecksumType;
+        this.length = pLength;
+        this.fileName = pFileName;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Stream the content to Fedora. The datastream is only uploaded once.
+     *
+     * @param pProps    The configuration of the request the datastream belongs to
+     * @param pUsername Username for fedora repository
+     * @param pPassword Password for fedora repository
+     * @throws IOException    if the deposit can't be read or the upload failed
+     * @throws SWORDException if there are problems contacting the repository or the Content-MD5 doesn't match
+     */
+    @Override
+    public synchronized void upload(final XMLProperties pProps, final String pUsername, final String pPassword) throws IOException, SWORDException {
+        if (getURL() != null) return;
+
+        final String fedoraUploadUrl = pProps.getFedoraURL() + "/management/upload";
+        String body = uploadFollowRedirects(pProps, fedoraUploadUrl, pUsername, pPassword, new FilePart("file", new PipePartSource()));
+        source.verify("MD5", contentMD5);
+        if (source.hasDigest(checksumType)) {
+            setDigestType(checksumType);
+            setDigest(source.getHexDigest(checksumType));
+        }
+        setURL(body.trim().replaceAll("\n", ""));
+
+        UploadCache cache = pProps.getUploadCache();
+        if (cache.isEnabled() && source.hasDigest(cache.getAlgorithm())) {
+            cache.put(pProps.getFedoraURL(), source.getHexDigest(cache.getAlgorithm()), length, getURL());
+        }
+    }
+
+    /**
+     * The content goes to the upload only.
+     *
+     * @throws IOException always
+     */
+    @Override
+    public InputStream openStream() throws IOException {
+        throw new IOException("Datastream " + getId() + " is streamed to Fedora and can't be read");
+    }
+
+    /**
+     * @return Number of bytes in the deposit stream
+     */
+    public long getLength() {
+        return length;
+    }
+
+    private synchronized InputStream consume() throws IOException {
+        if (consumed) {
+            throw new IOException("Deposit stream for " + getId() + " has already been read");
+        }
+        consumed = true;
+        RingBufferPipe pipe = new RingBufferPipe(bufferSize);
+        pipe.pump(source);
+        log.debug("Streaming " + length + " bytes of " + getId() + " to Fedora");
+        return new LengthCheckingInputStream(pipe.getInputStream(), length);
+    }
+
+    private class PipePartSource implements PartSource {
+        public long getLength() {
+            return length;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public InputStream createInputStream() throws IOException {
+            return consume();
+        }
+    }
+
+    /**
+     * Fails the upload if the deposit doesn't have the announced length, instead of sending
+     * a body that doesn't match its Content-Length.
+     */
+    private static class LengthCheckingInputStream extends FilterInputStream {
+        private final long expected;
+        private long read = 0;
+
+        LengthCheckingInputStream(InputStream in, long expected) {
+            super(in);
+            this.expected = expected;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            count(b == -1 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) throws IOException {
+            int n = super.read(bytes, offset, count);
+            count(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("Skipping isn't supported");
+        }
+
+        private void count(int n) throws IOException {
+            if (n == -1) {
+                if (read != expected) {
+                    throw new IOException("Deposit ended after " + read + " of " + expected + " bytes");
+                }
+                return;
+            }
+            read += n;
+            if (read > expected) {
+                throw new IOException("Deposit is longer than " + expected + " bytes");
+            }
+        }
+    }
+}
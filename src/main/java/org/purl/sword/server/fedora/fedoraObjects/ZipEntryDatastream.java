@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.fedoraObjects;
+
+import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.utils.ArchiveLimits;
+import org.purl.sword.server.fedora.utils.XMLProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A managed datastream whose content is uploaded straight from an entry of a zip file,
+ * without extracting it first.
+ * <p/>
+ * Every upload attempt opens its own stream on the entry, so uploads of several entries of
+ * the same zip file can run at the same time. The zip file must stay open until all entries
+ * have been uploaded and is closed by whoever opened it.
+ */
+public class ZipEntryDatastream extends LocalDatastream {
+    private final ZipFile zipFile;
+    private final ZipEntry entry;
+    private final AtomicLong attempt = new AtomicLong();
+    private ArchiveLimits limits = ArchiveLimits.NONE;
+    private AtomicLong total;
+
+    /**
+     * @param pID       Datastream ID
+     * @param pMimeType Mime type
+     * @param pZipFile  The open zip file
+     * @param pEntry    The entry holding the content of the datastream
+     */
+    public ZipEntryDatastream(final String pID, final String pMimeType, final ZipFile pZipFile, final ZipEntry pEntry) {
+        super(pID, pMimeType, "");
+        this.zipFile = pZipFile;
+        this.entry = pEntry;
+        this.setLabel(pEntry.getName());
+    }
+
+    public ZipEntry getEntry() {
+        return entry;
+    }
+
+    /**
+     * @param limits Limits the bytes read from the entry are checked against
+     * @param total  Bytes read from all entries of the zip file, shared by its datastreams
+     */
+    public void setLimits(final ArchiveLimits limits, final AtomicLong total) {
+        this.limits = (limits == null) ? ArchiveLimits.NONE : limits;
+        this.total = total;
+    }
+
+    /**
+     * Each call starts a new attempt, e.g. for a retried upload, which replaces the bytes
+     * the last attempt counted against the zip file.
+     */
+    @Override
+    public InputStream openStream() throws IOException {
+        return limits.limit(zipFile.getInputStream(entry), entry, total, attempt);
+    }
+
+    @Override
+    protected long getContentLength() throws IOException {
+        if (entry.getSize() < 0) {
+            throw new IOException("Size of " + getSource() + " is unknown");
+        }
+        return entry.getSize();
+    }
+
+    @Override
+    protected String sendContent(final XMLProperties pProps, final String pURL, final String pUsername, final String pPassword) throws IOException, SWORDException {
+        return uploadFollowRedirects(pProps, pURL, pUsername, pPassword, new FilePart("file", new EntryPartSource()));
+    }
+
+    /**
+     * The entry stays in the zip file, which is removed with the deposit.
+     */
+    @Override
+    protected void releaseContent() {
+    }
+
+    @Override
+    protected String getSource() {
+        return entry.getName() + " in " + zipFile.getName();
+    }
+
+    private class EntryPartSource implements PartSource {
+        public long getLength() {
+            return entry.getSize();
+        }
+
+        public String getFileName() {
+            return new File(entry.getName()).getName();
+        }
+
+        public InputStream createInputStream() throws IOException {
+            return openStream();
+        }
+    }
+}
@@ -37,7 +37,6 @@
  */
 package org.purl.sword.server.fedora.fileHandlers;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.purl.sword.atom.*;
 import org.purl.sword.base.Collection;
@@ -48,9 +47,12 @@ import org.purl.sword.server.fedora.FedoraServer;
 import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
 import org.purl.sword.server.fedora.baseExtensions.XMLServiceDocument;
 import org.purl.sword.server.fedora.fedoraObjects.*;
+import org.purl.sword.server.fedora.utils.DepositWorkspace;
+import org.purl.sword.server.fedora.utils.DigestingInputStream;
+import org.purl.sword.server.fedora.utils.SpoolBuffer;
+import org.purl.sword.server.fedora.utils.UploadCache;
 import org.purl.sword.server.fedora.utils.XMLProperties;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -115,30 +117,36 @@ public class DefaultFileHandler implements FileHandler {
     public SWORDEntry ingestDeposit(final DepositCollection pDeposit, final ServiceDocument pServiceDocument) throws SWORDException {
 
         FedoraRepository repository = new FedoraRepository(_props, pDeposit.getUsername(), pDeposit.getPassword());
-        repository.connect();
-
-        final String pid = repository.mintPid();
-        FedoraObject tNewFedoraObject = new FedoraObject(pid);
-
-        tNewFedoraObject.setIdentifiers(this.getIdentifiers(pDeposit));
-        tNewFedoraObject.setDc(this.getDublinCore(pDeposit));
-        tNewFedoraObject.setRelsext(this.getRelationships(pDeposit));
+        FedoraObject tNewFedoraObject;
         try {
-            List<Datastream> tDatastreamList = this.getDatastreams(pDeposit);
-            this.ensureValidDSIds(tDatastreamList);
-            tNewFedoraObject.setDatastreams(tDatastreamList);
-        } catch (IOException tIOExcpt) {
-            tIOExcpt.printStackTrace();
-            LOG.debug("Exception");
-            LOG.error("Couldn't access uploaded file" + tIOExcpt.toString());
-            throw new SWORDException("Couldn't access uploaded file", tIOExcpt);
-        }
-        tNewFedoraObject.setDisseminators(this.getDisseminators(pDeposit, tNewFedoraObject.getDatastreams()));
+            repository.connect();
+
+            final String pid = repository.mintPid();
+            tNewFedoraObject = new FedoraObject(pid);
+
+            tNewFedoraObject.setIdentifiers(this.getIdentifiers(pDeposit));
+            tNewFedoraObject.setDc(this.getDublinCore(pDeposit));
+            tNewFedoraObject.setRelsext(this.getRelationships(pDeposit));
+            try {
+                List<Datastream> tDatastreamList = this.getDatastreams(pDeposit);
+                this.ensureValidDSIds(tDatastreamList);
+                tNewFedoraObject.setDatastreams(tDatastreamList);
+            } catch (IOException tIOExcpt) {
+                tIOExcpt.printStackTrace();
+                LOG.debug("Exception");
+                LOG.error("Couldn't access uploaded file" + tIOExcpt.toString());
+                throw new SWORDException("Couldn't access uploaded file", tIOExcpt);
+            }
+            tNewFedoraObject.setDisseminators(this.getDisseminators(pDeposit, tNewFedoraObject.getDatastreams()));
 
-        validateObject(tNewFedoraObject);
+            validateObject(tNewFedoraObject);
 
-        if (!pDeposit.isNoOp()) { // Don't ingest if no op is set
-            repository.ingest(tNewFedoraObject);
+            if (!pDeposit.isNoOp()) { // Don't ingest if no op is set
+                repository.ingest(tNewFedoraObject);
+            }
+        } finally {
+            repository.close();
+            DepositWorkspace.release(pDeposit);
         }
 
         return this.getSWORDEntry(pDeposit, pServiceDocument, tNewFedoraObject);
@@ -301,13 +309,21 @@ public class DefaultFileHandler implements FileHandler {
      * @throws SWORDException if there are any other problems
      */
     protected List<Datastream> getDatastreams(final DepositCollection pDeposit) throws IOException, SWORDException {
-        LOG.debug("copying file");
+        List<Datastream> tDatastreams = new ArrayList<Datastream>();
+        DigestingInputStream tInput = this.openDeposit(pDeposit);
+        if (this.isStreamable(pDeposit)) {
+            LOG.debug("streaming file");
+            tDatastreams.add(new StreamingDatastream(this.getGenericFileName(pDeposit), this.getContentType(), tInput,
+                    pDeposit.getMd5(), _props.getChecksumType(), pDeposit.getContentLength(), "uploaded-file.tmp",
+                    _props.getUploadStreamBuffer()));
+            return tDatastreams;
+        }
 
-        String tTempFileName = this.getTempDir() + "uploaded-file.tmp";
-        IOUtils.copy(pDeposit.getFile(), new FileOutputStream(tTempFileName));
-        Datastream tDatastream = new LocalDatastream(this.getGenericFileName(pDeposit), this.getContentType(), tTempFileName);
+        LOG.debug("copying file");
 
-        List<Datastream> tDatastreams = new ArrayList<Datastream>();
+        SpoolBuffer tContent = this.getWorkspace(pDeposit).buffer(tInput, "uploaded-file.tmp", _props.getSpoolMemoryThreshold());
+        Datastream tDatastream = new LocalDatastream(this.getGenericFileName(pDeposit), this.getContentType(), tContent);
+        this.applyDigests(pDeposit, tInput, tDatastream);
         tDatastreams.add(tDatastream);
 
         return tDatastreams;
@@ -502,6 +518,68 @@ public class DefaultFileHandler implements FileHandler {
         return tTempDir;
     }
 
+    /**
+     * Opens the deposited file so that its MD5, if a Content-MD5 was sent, the configured
+     * checksum and the digest used to find earlier uploads are computed while it is read.
+     *
+     * @param pDeposit The deposit and its associated collection
+     * @return The deposited file
+     * @throws SWORDException if there is a problem reading the properties file
+     */
+    protected DigestingInputStream openDeposit(final DepositCollection pDeposit) throws SWORDException {
+        UploadCache tUploadCache = _props.getUploadCache();
+        return new DigestingInputStream(pDeposit.getFile(), pDeposit.getMd5() == null ? null : "MD5", _props.getChecksumType(),
+                tUploadCache.isEnabled() ? tUploadCache.getAlgorithm() : null);
+    }
+
+    /**
+     * Verifies the Content-MD5 of the deposit and sets the configured checksum on the datastream
+     * holding the deposited file. The deposit must have been read completely.
+     *
+     * @param pDeposit    The deposit and its associated collection
+     * @param pInput      The deposited file as returned by openDeposit
+     * @param pDatastream The datastream holding the deposited file
+     * @throws SWORDException with error code ERROR_CHECKSUM_MISMATCH if the Content-MD5 doesn't match
+     */
+    protected void applyDigests(final DepositCollection pDeposit, final DigestingInputStream pInput, final Datastream pDatastream) throws SWORDException {
+        pInput.verify("MD5", pDeposit.getMd5());
+        String tChecksumType = _props.getChecksumType();
+        if (pInput.hasDigest(tChecksumType)) {
+            pDatastream.setDigestType(tChecksumType);
+            pDatastream.setDigest(pInput.getHexDigest(tChecksumType));
+        }
+        String tHashAlgorithm = _props.getUploadCache().getAlgorithm();
+        if (pDatastream instanceof LocalDatastream && pInput.hasDigest(tHashAlgorithm)) {
+            ((LocalDatastream) pDatastream).setContentHash(tHashAlgorithm, pInput.getHexDigest(tHashAlgorithm));
+        }
+    }
+
+    /**
+     * Decides whether the deposit is passed on to Fedora while it is read instead of being stored first.
+     * This needs streaming to be turned on and a known length. Override this to return false if
+     * the handler reads the deposited file itself.
+     *
+     * @param pDeposit The deposit and its associated collection
+     * @return True if the deposit can be streamed to Fedora
+     * @throws SWORDException if there is a problem reading the properties file
+     */
+    protected boolean isStreamable(final DepositCollection pDeposit) throws SWORDException {
+        return _props.isUploadStreaming() && pDeposit.getContentLength() > 0;
+    }
+
+    /**
+     * Returns the directory of its own where the files of a deposit can be stored before upload to fedora.
+     * It is created on first use and deleted with everything in it when the deposit has been processed.
+     *
+     * @param pDeposit The deposit and its associated collection
+     * @return The workspace of the deposit
+     * @throws IOException    if the workspace directory can't be created
+     * @throws SWORDException if there is a problem retrieving the temp dir value from the properties file
+     */
+    protected DepositWorkspace getWorkspace(final DepositCollection pDeposit) throws IOException, SWORDException {
+        return DepositWorkspace.get(pDeposit, this.getTempDir());
+    }
+
     /**
      * If the file name is unknown this method tries to get it from the deposit object getFilename method
      * but if this is null it sets it to uploaded
@@ -45,6 +45,10 @@ import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
 /**
  * All file handlers must implement this interface and must have a default
  * constructor which takes no parameters and throws no exceptions.
+ * <p/>
+ * A file handler is created once and used for all deposits it handles, possibly
+ * at the same time. It must not keep anything about a deposit in its fields;
+ * use the attributes of the {@link DepositCollection} instead.
  *
  * @author Glen Robson
  * @version 1.0
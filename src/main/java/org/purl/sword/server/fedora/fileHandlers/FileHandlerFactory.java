@@ -39,16 +39,29 @@ package org.purl.sword.server.fedora.fileHandlers;
 
 import org.apache.log4j.Logger;
 import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.baseExtensions.ServiceDocumentIndex;
+import org.purl.sword.server.fedora.utils.Configuration;
 import org.purl.sword.server.fedora.utils.XMLProperties;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This class reads in the file handlers from the config file and decides which
  * one can handle the request. The first one it comes across that says it can
  * handle the requested is returned. If none are matched a DefaultFileHandler is
  * used.
+ * <p/>
+ * Every configured file handler is created once per configuration snapshot and shared
+ * between all deposits. The handler chosen for a content type and packaging is remembered,
+ * so the handlers are only asked the first time a combination is seen. The handlers
+ * configured in a file_handlers element of a collection are tried before the global ones
+ * for deposits into that collection.
  *
  * @author Glen Robson
  * @version 1.0
@@ -57,36 +70,106 @@ import java.util.List;
 public class FileHandlerFactory {
 
     private static final Logger LOG = Logger.getLogger(FileHandlerFactory.class);
-    private static FileHandlerFactory instance;
-    private final List<Class<FileHandler>> fileHandlers;
+    private static final int MAX_DISPATCH_ENTRIES = 1024;
+    private static volatile FileHandlerFactory instance;
+    private final Configuration configuration;
+    private final Map<String, FileHandler> handlerInstances = new HashMap<String, FileHandler>();
+    private final Dispatch globalDispatch;
+    private final Map<String, Dispatch> collectionDispatch;
 
-    private FileHandlerFactory(XMLProperties xmlProperties) {
-        this.fileHandlers = loadFileHandlers(xmlProperties);
+    private FileHandlerFactory(XMLProperties xmlProperties, Configuration configuration) {
+        this.configuration = configuration;
+        List<FileHandler> globalHandlers = loadFileHandlers(globalFileHandlerClasses(xmlProperties));
+        this.globalDispatch = new Dispatch(globalHandlers);
+        this.collectionDispatch = loadCollectionDispatch(configuration, globalHandlers);
     }
 
-    private List<Class<FileHandler>> loadFileHandlers(XMLProperties tProps) {
-        List<Class<FileHandler>> tHandlers = new ArrayList<Class<FileHandler>>();
+    private static List<String> globalFileHandlerClasses(XMLProperties tProps) {
         try {
-            for (String tClassName : tProps.getFileHandlerClasses()) {
-                LOG.debug("Loading " + tClassName + " as a file handler");
-                try {
-                    Class c = Class.forName(tClassName);
-                    if (FileHandler.class.isAssignableFrom(c)) {
-                        tHandlers.add(c);
-                    }
-                } catch (ClassNotFoundException tClassExcpt) {
-                    LOG.warn("Couldn't find class " + tClassName + " in CLASSPATH");
-                }
-            }
+            return tProps.getFileHandlerClasses();
         } catch (SWORDException e) {
             LOG.error(e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private List<FileHandler> loadFileHandlers(List<String> tClassNames) {
+        List<FileHandler> tHandlers = new ArrayList<FileHandler>();
+        for (String tClassName : tClassNames) {
+            FileHandler tHandler = handlerInstances.get(tClassName);
+            if (tHandler == null) {
+                tHandler = createFileHandler(tClassName);
+                if (tHandler == null) {
+                    continue;
+                }
+                handlerInstances.put(tClassName, tHandler);
+            }
+            tHandlers.add(tHandler);
         }
         return tHandlers;
     }
 
+    private FileHandler createFileHandler(String tClassName) {
+        LOG.debug("Loading " + tClassName + " as a file handler");
+        try {
+            Class c = Class.forName(tClassName);
+            if (!FileHandler.class.isAssignableFrom(c)) {
+                LOG.warn(tClassName + " doesn't implement the FileHandler interface");
+                return null;
+            }
+            return (FileHandler) c.newInstance();
+        } catch (ClassNotFoundException tClassExcpt) {
+            LOG.warn("Couldn't find class " + tClassName + " in CLASSPATH");
+        } catch (ReflectiveOperationException e) {
+            LOG.error("Couldn't instantiate " + tClassName + " ensure it has a default constructor and implements FileHandler interface");
+        }
+        return null;
+    }
+
+    private Map<String, Dispatch> loadCollectionDispatch(Configuration configuration, List<FileHandler> globalHandlers) {
+        Map<String, Dispatch> tDispatch = new HashMap<String, Dispatch>();
+        if (configuration == null) {
+            return tDispatch;
+        }
+        ServiceDocumentIndex tIndex;
+        try {
+            tIndex = configuration.getServiceDocumentIndex();
+        } catch (SWORDException e) {
+            LOG.debug("No collection specific file handlers: " + e.getMessage());
+            return tDispatch;
+        }
+        for (ServiceDocumentIndex.CollectionEntry tCollection : tIndex.getCollections()) {
+            if (tCollection.getPid() == null || tCollection.getFileHandlerClasses().isEmpty()
+                    || tDispatch.containsKey(tCollection.getPid())) {
+                continue;
+            }
+            List<FileHandler> tHandlers = loadFileHandlers(tCollection.getFileHandlerClasses());
+            tHandlers.addAll(globalHandlers);
+            tDispatch.put(tCollection.getPid(), new Dispatch(tHandlers));
+        }
+        return tDispatch;
+    }
+
+    /**
+     * Get the factory for the configuration snapshot behind the given properties.
+     * The factory is created again when the configuration has been reloaded.
+     *
+     * @param xmlProperties The properties to read the file handlers from
+     * @return The file handler factory
+     */
     public static FileHandlerFactory getInstance(XMLProperties xmlProperties) {
-        if (instance == null) instance = new FileHandlerFactory(xmlProperties);
-        return instance;
+        Configuration configuration = null;
+        try {
+            configuration = xmlProperties.getConfiguration();
+        } catch (SWORDException e) {
+            LOG.error(e.getMessage());
+        }
+        FileHandlerFactory current = instance;
+        if (current == null || current.configuration != configuration) {
+            current = new FileHandlerFactory(xmlProperties, configuration);
+            instance = current;
+        }
+        return current;
     }
 
     /**
@@ -94,24 +177,80 @@ public class FileHandlerFactory {
      *
      * @param pContentType The mime type of the deposit
      * @param pPackaging   The packaging
-     * @return The file handler which can handle the deposit
+     * @return The file handler which can handle the deposit. It is shared with other deposits.
      * @throws SWORDException if there was a problem reading the config file or a file handler couldn't be created
      */
     public FileHandler getFileHandler(final String pContentType, final String pPackaging) throws SWORDException {
+        return getFileHandler(pContentType, pPackaging, null);
+    }
+
+    /**
+     * Find the file handler which can handle the mime type and packaging of a deposit
+     * into the given collection.
+     *
+     * @param pContentType   The mime type of the deposit
+     * @param pPackaging     The packaging
+     * @param pCollectionPid The collection the deposit goes into, may be null
+     * @return The file handler which can handle the deposit. It is shared with other deposits.
+     * @throws SWORDException if no file handler can handle the deposit
+     */
+    public FileHandler getFileHandler(final String pContentType, final String pPackaging, final String pCollectionPid) throws SWORDException {
         LOG.debug("Looking for " + pContentType + " and packaging " + pPackaging);
-        for (Class<FileHandler> fileHandlerClass : fileHandlers) {
-            try {
-                FileHandler fileHandler = fileHandlerClass.newInstance();
-                if (fileHandler.isHandled(pContentType, pPackaging)) {
-                    LOG.debug("Found handler " + fileHandler.getClass().getName());
-                    return fileHandler;
-                }
-            } catch (ReflectiveOperationException e) {
-                LOG.error("Couldn't instantiate " + fileHandlerClass.getCanonicalName() + " ensure it has a default constructor and implements FileHandler interface");
-            }
+        Dispatch tDispatch = (pCollectionPid == null) ? null : collectionDispatch.get(pCollectionPid);
+        if (tDispatch == null) {
+            tDispatch = globalDispatch;
+        }
+        FileHandler tHandler = tDispatch.lookup(pContentType, pPackaging);
+        if (tHandler != null) {
+            LOG.debug("Found handler " + tHandler.getClass().getName());
+            return tHandler;
         }
 
         // Nothing found
         throw new SWORDException("No file handler for " + pContentType + " with packaging: " + pPackaging);
     }
+
+    /**
+     * Ordered list of file handlers and the handler found for each content type and packaging.
+     */
+    private static final class Dispatch {
+        // remembers combinations no handler accepts, the table can't hold null
+        private static final Object NONE = new Object();
+
+        private final List<FileHandler> handlers;
+        private final ConcurrentMap<String, Object> table = new ConcurrentHashMap<String, Object>();
+
+        private Dispatch(List<FileHandler> handlers) {
+            this.handlers = handlers;
+            // handlers built on DefaultFileHandler tell what they handle, so those entries are known up front
+            for (FileHandler handler : handlers) {
+                if (handler instanceof DefaultFileHandler) {
+                    DefaultFileHandler defaultHandler = (DefaultFileHandler) handler;
+                    lookup(defaultHandler.getContentType(), defaultHandler.getPackaging());
+                }
+            }
+        }
+
+        private FileHandler lookup(String contentType, String packaging) {
+            String key = (packaging == null) ? contentType + '\0' : contentType + '\0' + '\0' + packaging;
+            Object handler = table.get(key);
+            if (handler == null) {
+                handler = scan(contentType, packaging);
+                // unusual combinations sent by clients must not grow the table without limit
+                if (table.size() < MAX_DISPATCH_ENTRIES) {
+                    table.putIfAbsent(key, handler);
+                }
+            }
+            return (handler == NONE) ? null : (FileHandler) handler;
+        }
+
+        private Object scan(String contentType, String packaging) {
+            for (FileHandler handler : handlers) {
+                if (handler.isHandled(contentType, packaging)) {
+                    return handler;
+                }
+            }
+            return NONE;
+        }
+    }
 }
@@ -38,26 +38,48 @@
  */
 package org.purl.sword.server.fedora.fileHandlers;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
 import org.purl.sword.base.SWORDException;
 import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
 import org.purl.sword.server.fedora.fedoraObjects.*;
+import org.purl.sword.server.fedora.utils.DepositWorkspace;
+import org.purl.sword.server.fedora.utils.ImageScaler;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * This handler ingests a jpeg image and assigns a disseminator
- * to the object when it has been ingested.
+ * to the object when it has been ingested. The disseminator serves scaled down
+ * derivatives of the image, which are created in parallel while the deposit is processed.
  *
  * @author Glen Robson
  * @version 1.0
  * @since 26th February 2009
  */
 public class JpegHandler extends DefaultFileHandler implements FileHandler {
+    private static final Logger LOG = Logger.getLogger(JpegHandler.class);
+
+    /**
+     * Datastream ids of the derivatives bound by the disseminator, by the name of their size in the configuration
+     */
+    protected static final Map<String, String> DERIVATIVES = new LinkedHashMap<String, String>();
+
+    static {
+        DERIVATIVES.put("thumbnail", "THUMBRES_IMG");
+        DERIVATIVES.put("medium", "MEDRES_IMG");
+        DERIVATIVES.put("high", "HIGHRES_IMG");
+        DERIVATIVES.put("very-high", "VERYHIGHRES_IMG");
+    }
 
     public JpegHandler() {
         super("image/jpeg", "");
@@ -84,31 +106,116 @@ public class JpegHandler extends DefaultFileHandler implements FileHandler {
     protected List<Datastream> getDatastreams(final DepositCollection pDeposit) throws IOException, SWORDException {
         List<Datastream> tDatastreams = super.getDatastreams(pDeposit);
 
-        FileInputStream tInput = null;
-        String tFileName = ((LocalDatastream) tDatastreams.get(0)).getPath();
-        String tTempFileName = this.getTempDir() + "uploaded-file.tmp";
+        LocalDatastream tImage = (LocalDatastream) tDatastreams.get(0);
+        DepositWorkspace tWorkspace = this.getWorkspace(pDeposit);
+        Map<String, Integer> tSizes = _props.getJpegDerivativeSizes();
+        float tQuality = _props.getJpegQuality();
+
+        List<Future<Datastream>> tFutures = new ArrayList<Future<Datastream>>();
+        try {
+            for (Map.Entry<String, String> tDerivative : DERIVATIVES.entrySet()) {
+                tFutures.add(ImageScaler.getExecutor().submit(this.derivativeTask(tWorkspace, tImage, tDerivative.getValue(),
+                        "uploaded-file.tmp." + tDerivative.getKey(), tSizes.get(tDerivative.getKey()), tQuality)));
+            }
+            for (Future<Datastream> tFuture : tFutures) {
+                tDatastreams.add(tFuture.get());
+            }
+        } catch (ExecutionException tExecExcpt) {
+            Throwable tCause = tExecExcpt.getCause();
+            if (tCause instanceof IOException) {
+                throw (IOException) tCause;
+            } else if (tCause instanceof RuntimeException) {
+                throw (RuntimeException) tCause;
+            }
+            throw new SWORDException("Couldn't create image derivatives", tExecExcpt);
+        } catch (InterruptedException tInterruptExcpt) {
+            Thread.currentThread().interrupt();
+            throw new SWORDException("Interrupted while creating image derivatives", tInterruptExcpt);
+        } finally {
+            for (Future<Datastream> tFuture : tFutures) {
+                tFuture.cancel(true);
+            }
+        }
 
-        IOUtils.copy(tInput = new FileInputStream(tFileName), new FileOutputStream(tTempFileName + ".thum"));
-        tInput.close();
-        Datastream tThum = new LocalDatastream("THUMBRES_IMG", this.getContentType(), tTempFileName + ".thum");
-        tDatastreams.add(tThum);
+        return tDatastreams;
+    }
 
-        IOUtils.copy(tInput = new FileInputStream(tFileName), new FileOutputStream(tTempFileName + ".mid"));
-        tInput.close();
-        Datastream tMid = new LocalDatastream("MEDRES_IMG", this.getContentType(), tTempFileName + ".mid");
-        tDatastreams.add(tMid);
+    private Callable<Datastream> derivativeTask(final DepositWorkspace pWorkspace, final LocalDatastream pImage, final String pDatastreamId,
+                                                final String pFileName, final int pMaxSize, final float pQuality) {
+        return new Callable<Datastream>() {
+            public Datastream call() throws IOException {
+                return createDerivative(pWorkspace, pImage, pDatastreamId, pFileName, pMaxSize, pQuality);
+            }
+        };
+    }
 
-        IOUtils.copy(tInput = new FileInputStream(tFileName), new FileOutputStream(tTempFileName + ".high"));
-        tInput.close();
-        Datastream tLarge = new LocalDatastream("HIGHRES_IMG", this.getContentType(), tTempFileName + ".high");
-        tDatastreams.add(tLarge);
+    /**
+     * The image is read again for the derivatives, so it is never streamed
+     *
+     * @param pDeposit The deposit
+     * @return false
+     */
+    protected boolean isStreamable(final DepositCollection pDeposit) {
+        return false;
+    }
 
-        IOUtils.copy(tInput = new FileInputStream(tFileName), new FileOutputStream(tTempFileName + ".vhigh"));
-        tInput.close();
-        Datastream tVLarge = new LocalDatastream("VERYHIGHRES_IMG", this.getContentType(), tTempFileName + ".vhigh");
-        tDatastreams.add(tVLarge);
+    /**
+     * Scale the deposited image down into the workspace of the deposit as a datastream of its own.
+     * Images that aren't larger than the derivative, or that can't be decoded, are copied as they are.
+     *
+     * @param pWorkspace    The workspace of the deposit
+     * @param pImage        The deposited image
+     * @param pDatastreamId The id of the new datastream
+     * @param pFileName     The file name of the derivative in the workspace
+     * @param pMaxSize      The longest edge of the derivative in pixels
+     * @param pQuality      The JPEG quality between 0 and 1
+     * @return The new datastream
+     * @throws IOException if the image can't be read or the derivative can't be written
+     */
+    protected Datastream createDerivative(final DepositWorkspace pWorkspace, final LocalDatastream pImage, final String pDatastreamId,
+                                          final String pFileName, final int pMaxSize, final float pQuality) throws IOException {
+        BufferedImage tScaled;
+        try (InputStream tInput = pImage.openStream()) {
+            tScaled = ImageScaler.scale(tInput, pMaxSize);
+        } catch (IOException tIOExcpt) {
+            LOG.warn("Couldn't scale the image for " + pDatastreamId + ", copying it instead: " + tIOExcpt.getMessage());
+            tScaled = null;
+        } catch (RuntimeException tRuntimeExcpt) {
+            // ImageIO reports broken colour profiles and odd band layouts with CMMException or IllegalArgumentException
+            LOG.warn("Couldn't scale the image for " + pDatastreamId + ", copying it instead: " + tRuntimeExcpt);
+            tScaled = null;
+        }
+        if (tScaled == null) {
+            return this.copyImage(pWorkspace, pImage, pDatastreamId, pFileName);
+        }
+
+        File tDerivative = pWorkspace.getFile(pFileName);
+        ImageScaler.writeJpeg(tScaled, pQuality, tDerivative);
+        return new LocalDatastream(pDatastreamId, this.getContentType(), tDerivative.getPath());
+    }
 
-        return tDatastreams;
+    /**
+     * Copy the deposited image into the workspace of the deposit as a datastream of its own.
+     * An image stored in a file is duplicated by the workspace, which links it where it can.
+     *
+     * @param pWorkspace    The workspace of the deposit
+     * @param pImage        The deposited image
+     * @param pDatastreamId The id of the new datastream
+     * @param pCopyName     The file name of the copy in the workspace
+     * @return The new datastream
+     * @throws IOException if the image can't be copied
+     */
+    protected Datastream copyImage(final DepositWorkspace pWorkspace, final LocalDatastream pImage, final String pDatastreamId, final String pCopyName) throws IOException {
+        File tCopy;
+        File tSource = pImage.getContentFile();
+        if (tSource != null) {
+            tCopy = pWorkspace.duplicate(tSource, pCopyName);
+        } else {
+            try (InputStream tInput = pImage.openStream()) {
+                tCopy = pWorkspace.spool(tInput, pCopyName);
+            }
+        }
+        return new LocalDatastream(pDatastreamId, this.getContentType(), tCopy.getPath());
     }
 
     /**
@@ -62,7 +62,10 @@ import java.util.List;
 public class METSFileHandler extends DefaultFileHandler implements FileHandler {
     private static final Logger LOG = Logger.getLogger(METSFileHandler.class);
 
-    protected METSObject _mets = null;
+    /**
+     * Name of the deposit attribute holding the parsed METS document
+     */
+    protected static final String METS = METSFileHandler.class.getName() + ".mets";
 
     public METSFileHandler() {
         super("text/xml", "http://www.loc.gov/METS/");
@@ -79,7 +82,7 @@ public class METSFileHandler extends DefaultFileHandler implements FileHandler {
     public SWORDEntry ingestDeposit(final DepositCollection pDeposit, final ServiceDocument pServiceDocument) throws SWORDException {
         try {
             SAXBuilder tBuilder = new SAXBuilder();
-            _mets = new METSObject(tBuilder.build(pDeposit.getFile()));
+            pDeposit.setAttribute(METS, new METSObject(tBuilder.build(pDeposit.getFile())));
         } catch (IOException tIOExcpt) {
             String tMessage = "Couldn't retrieve METS from deposit: " + tIOExcpt.toString();
             LOG.error(tMessage);
@@ -92,7 +95,21 @@ public class METSFileHandler extends DefaultFileHandler implements FileHandler {
             throw new SWORDException(tMessage, tJDOMExcpt);
         }
 
-        return super.ingestDeposit(pDeposit, pServiceDocument);
+        try {
+            return super.ingestDeposit(pDeposit, pServiceDocument);
+        } finally {
+            pDeposit.removeAttribute(METS);
+        }
+    }
+
+    /**
+     * Get the METS document parsed from the deposit
+     *
+     * @param pDeposit The deposit
+     * @return The METS document of this deposit
+     */
+    protected METSObject getMETS(final DepositCollection pDeposit) {
+        return pDeposit.getAttribute(METS, METSObject.class);
     }
 
     /**
@@ -102,7 +119,7 @@ public class METSFileHandler extends DefaultFileHandler implements FileHandler {
      * @return The Dublin Core datastream
      */
     protected DublinCore getDublinCore(final DepositCollection pDeposit) {
-        DublinCore tDC = _mets.getDublinCore();
+        DublinCore tDC = this.getMETS(pDeposit).getDublinCore();
 
         if (tDC == null) {
             return super.getDublinCore(pDeposit);
@@ -118,7 +135,7 @@ public class METSFileHandler extends DefaultFileHandler implements FileHandler {
      * @return The RELS-EXT datastream
      */
     protected Relationship getRelationships(final DepositCollection pDeposit) {
-        Relationship tRelations = _mets.getRelationships();
+        Relationship tRelations = this.getMETS(pDeposit).getRelationships();
 
         if (tRelations == null) {
             return super.getRelationships(pDeposit);
@@ -136,7 +153,7 @@ public class METSFileHandler extends DefaultFileHandler implements FileHandler {
      */
     protected List<Datastream> getDatastreams(final DepositCollection pDeposit) throws SWORDException {
         try {
-            return _mets.getDatastreams();
+            return this.getMETS(pDeposit).getDatastreams();
         } catch (JDOMException tJDOMExcpt) {
             String tMessage = "Couldn't retrieve datastreams from METS: " + tJDOMExcpt.toString();
             LOG.error(tMessage);
@@ -37,7 +37,6 @@
   */
 package org.purl.sword.server.fedora.fileHandlers;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.purl.sword.base.SWORDEntry;
 import org.purl.sword.base.SWORDException;
@@ -45,9 +44,10 @@ import org.purl.sword.base.ServiceDocument;
 import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
 import org.purl.sword.server.fedora.fedoraObjects.Datastream;
 import org.purl.sword.server.fedora.fedoraObjects.LocalDatastream;
+import org.purl.sword.server.fedora.utils.DigestingInputStream;
 import org.purl.sword.server.fedora.utils.ZipFileAccess;
 
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -62,7 +62,10 @@ import java.util.List;
 public class ZipFileHandler extends DefaultFileHandler implements FileHandler {
     private static final Logger LOG = Logger.getLogger(ZipFileHandler.class);
 
-    protected ZipFileAccess _zipFile = null;
+    /**
+     * Name of the deposit attribute holding the extracted zip file
+     */
+    protected static final String ZIP_FILE_ACCESS = ZipFileHandler.class.getName() + ".zipFileAccess";
 
     public ZipFileHandler() {
         super("application/zip", "");
@@ -77,13 +80,39 @@ public class ZipFileHandler extends DefaultFileHandler implements FileHandler {
      * @throws SWORDException if any problem occurred during ingest
      */
     public SWORDEntry ingestDeposit(final DepositCollection pDeposit, final ServiceDocument pServiceDocument) throws SWORDException {
-        _zipFile = new ZipFileAccess(super.getTempDir());
-        SWORDEntry tEntry = super.ingestDeposit(pDeposit, pServiceDocument);
-        LOG.debug("Cleaning up local zip files in " + super.getTempDir() + "zip-extract");
-        // ensure the directories are deleted
-        _zipFile.removeLocalFiles();
+        ZipFileAccess tZipFile;
+        try {
+            tZipFile = new ZipFileAccess(super.getWorkspace(pDeposit).getDirectory().getPath() + File.separator, _props.getZipThreads());
+            tZipFile.setLimits(_props.getArchiveLimits(pDeposit.getCollectionPid()));
+        } catch (IOException tIOExcpt) {
+            String tMessage = "Couldn't create a workspace for the deposit: " + tIOExcpt.toString();
+            LOG.error(tMessage);
+            throw new SWORDException(tMessage, tIOExcpt);
+        }
+        pDeposit.setAttribute(ZIP_FILE_ACCESS, tZipFile);
+        try {
+            return super.ingestDeposit(pDeposit, pServiceDocument);
+        } finally {
+            LOG.debug("Cleaning up local zip files in " + tZipFile.getTmpExtractDirName());
+            // ensure the directories are deleted
+            tZipFile.removeLocalFiles();
+            pDeposit.removeAttribute(ZIP_FILE_ACCESS);
+        }
+    }
 
-        return tEntry;
+    /**
+     * Get the zip file access created for the deposit that is currently ingested
+     *
+     * @param pDeposit The deposit
+     * @return The zip file access of this deposit
+     * @throws SWORDException if the deposit isn't ingested by this handler
+     */
+    protected ZipFileAccess getZipFileAccess(final DepositCollection pDeposit) throws SWORDException {
+        ZipFileAccess tZipFile = pDeposit.getAttribute(ZIP_FILE_ACCESS, ZipFileAccess.class);
+        if (tZipFile == null) {
+            throw new SWORDException("No zip file has been opened for this deposit");
+        }
+        return tZipFile;
     }
 
     /**
@@ -98,13 +127,20 @@ public class ZipFileHandler extends DefaultFileHandler implements FileHandler {
         List<Datastream> tDatastreams = new ArrayList<Datastream>();
         LOG.debug("copying file");
 
-        String tZipTempFileName = super.getTempDir() + "uploaded-file.tmp";
-        IOUtils.copy(pDeposit.getFile(), new FileOutputStream(tZipTempFileName));
+        DigestingInputStream tInput = super.openDeposit(pDeposit);
+        String tZipTempFileName = super.getWorkspace(pDeposit).spool(tInput, "uploaded-file.tmp").getPath();
         // Add the original zip file
-        Datastream tDatastream = new LocalDatastream(super.getGenericFileName(pDeposit), this.getContentType(), tZipTempFileName);
+        LocalDatastream tDatastream = new LocalDatastream(super.getGenericFileName(pDeposit), this.getContentType(), tZipTempFileName);
+        super.applyDigests(pDeposit, tInput, tDatastream);
         tDatastreams.add(tDatastream);
 
-        tDatastreams.addAll(_zipFile.getFiles(tZipTempFileName));
+        if (ZipFileAccess.MODE_STREAM.equals(_props.getZipMode())) {
+            // the entries are read from the zip file while it is uploaded, it's removed with the workspace
+            tDatastream.setCleanup(false);
+            tDatastreams.addAll(this.getZipFileAccess(pDeposit).getEntries(tZipTempFileName));
+        } else {
+            tDatastreams.addAll(this.getZipFileAccess(pDeposit).getFiles(tZipTempFileName));
+        }
 
         return tDatastreams;
     }
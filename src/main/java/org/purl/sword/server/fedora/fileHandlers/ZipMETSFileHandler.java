@@ -37,10 +37,12 @@
   */
 package org.purl.sword.server.fedora.fileHandlers;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
+import org.jdom.Document;
+import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jdom.input.SAXBuilder;
+import org.purl.sword.base.ErrorCodes;
 import org.purl.sword.base.SWORDEntry;
 import org.purl.sword.base.SWORDException;
 import org.purl.sword.base.ServiceDocument;
@@ -49,14 +51,19 @@ import org.purl.sword.server.fedora.fedoraObjects.Datastream;
 import org.purl.sword.server.fedora.fedoraObjects.DublinCore;
 import org.purl.sword.server.fedora.fedoraObjects.LocalDatastream;
 import org.purl.sword.server.fedora.fedoraObjects.Relationship;
+import org.purl.sword.server.fedora.utils.DepositWorkspace;
+import org.purl.sword.server.fedora.utils.DigestingInputStream;
 import org.purl.sword.server.fedora.utils.METSObject;
 import org.purl.sword.server.fedora.utils.ZipFileAccess;
 
+import java.io.CharConversionException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * This file handler ingests a zip file with a METS manifest
@@ -68,12 +75,17 @@ import java.util.List;
 public class ZipMETSFileHandler extends DefaultFileHandler implements FileHandler {
     private static final Logger LOG = Logger.getLogger(ZipMETSFileHandler.class);
 
-    protected METSObject _mets = null;
-    protected List<Datastream> _datastreamList = null;
+    /**
+     * Name of the deposit attribute holding the parsed METS document
+     */
+    protected static final String METS = ZipMETSFileHandler.class.getName() + ".mets";
+    /**
+     * Name of the deposit attribute holding the datastreams taken from the zip file
+     */
+    protected static final String DATASTREAMS = ZipMETSFileHandler.class.getName() + ".datastreams";
 
     public ZipMETSFileHandler() {
         super("application/zip", "http://www.loc.gov/METS/");
-        _datastreamList = new ArrayList<Datastream>();
     }
 
     /**
@@ -85,44 +97,45 @@ public class ZipMETSFileHandler extends DefaultFileHandler implements FileHandle
      * @throws SWORDException if any problem occurred during ingest
      */
     public SWORDEntry ingestDeposit(final DepositCollection pDeposit, final ServiceDocument pServiceDocument) throws SWORDException {
+        ZipFileAccess tZipFile = null;
         try {
-            ZipFileAccess tZipFile = new ZipFileAccess(super.getTempDir());
+            DepositWorkspace tWorkspace = super.getWorkspace(pDeposit);
+            tZipFile = new ZipFileAccess(tWorkspace.getDirectory().getPath() + File.separator, _props.getZipThreads());
+            tZipFile.setLimits(_props.getArchiveLimits(pDeposit.getCollectionPid()));
+            List<Datastream> tDatastreamList = new ArrayList<Datastream>();
 
             LOG.debug("copying file");
 
-            String tZipTempFileName = super.getTempDir() + "uploaded-file.tmp";
-            IOUtils.copy(pDeposit.getFile(), new FileOutputStream(tZipTempFileName));
+            DigestingInputStream tInput = super.openDeposit(pDeposit);
+            String tZipTempFileName = tWorkspace.spool(tInput, "uploaded-file.tmp").getPath();
             // Add the original zip file
-            Datastream tDatastream = new LocalDatastream(super.getGenericFileName(pDeposit), this.getContentType(), tZipTempFileName);
-            _datastreamList.add(tDatastream);
-
-            _datastreamList.addAll(tZipFile.getFiles(tZipTempFileName));
-
-            int i = 0;
-            boolean found = false;
-            for (i = 0; i < _datastreamList.size(); i++) {
-                if (_datastreamList.get(i).getId().equalsIgnoreCase("mets")) {
-                    found = true;
-                    break;
-                }
+            LocalDatastream tDatastream = new LocalDatastream(super.getGenericFileName(pDeposit), this.getContentType(), tZipTempFileName);
+            super.applyDigests(pDeposit, tInput, tDatastream);
+            tDatastreamList.add(tDatastream);
+
+            // Read the METS before anything is extracted so invalid packages are rejected straight away
+            ZipFile tZip = tZipFile.open(tZipTempFileName);
+            ZipEntry tMETSEntry = tZipFile.findEntry("mets.xml");
+            if (tMETSEntry == null) {
+                throw new SWORDException("Couldn't find a METS document in the zip file, ensure it is named mets.xml or METS.xml", null, ErrorCodes.ERROR_CONTENT);
             }
-            if (found) {
-                SAXBuilder tBuilder = new SAXBuilder();
-                _mets = new METSObject(tBuilder.build(((LocalDatastream) _datastreamList.get(i)).getPath()));
-
-                LocalDatastream tLocalMETSDS = (LocalDatastream) _datastreamList.remove(i);
-                // Remove METS from file system
-                new File(tLocalMETSDS.getPath()).delete();
-                _datastreamList.add(_mets.getMETSDs());
-                _datastreamList.addAll(_mets.getMetadataDatastreams());
+            METSObject tMETS = this.readMETS(tZipFile, tMETSEntry);
+            List<ZipEntry> tReferenced = this.getReferencedEntries(tZip, tMETSEntry, tMETS);
+
+            if (ZipFileAccess.MODE_STREAM.equals(_props.getZipMode())) {
+                // the entries are read from the zip file while it is uploaded, it's removed with the workspace
+                tDatastream.setCleanup(false);
+                tDatastreamList.addAll(tZipFile.getEntries(tReferenced));
             } else {
-                throw new SWORDException("Couldn't find a METS document in the zip file, ensure it is named mets.xml or METS.xml");
+                tDatastreamList.addAll(tZipFile.getFiles(tReferenced));
             }
+            tDatastreamList.add(tMETS.getMETSDs());
+            tDatastreamList.addAll(tMETS.getMetadataDatastreams());
+            pDeposit.setAttribute(METS, tMETS);
 
-            SWORDEntry tEntry = super.ingestDeposit(pDeposit, pServiceDocument);
+            pDeposit.setAttribute(DATASTREAMS, tDatastreamList);
 
-            tZipFile.removeLocalFiles();
-            return tEntry;
+            return super.ingestDeposit(pDeposit, pServiceDocument);
         } catch (IOException tIOExcpt) {
             String tMessage = "Couldn't retrieve METS from deposit: " + tIOExcpt.toString();
             LOG.error(tMessage);
@@ -133,9 +146,92 @@ public class ZipMETSFileHandler extends DefaultFileHandler implements FileHandle
             LOG.error(tMessage);
             tJDOMExcpt.printStackTrace();
             throw new SWORDException(tMessage, tJDOMExcpt);
+        } finally {
+            if (tZipFile != null) {
+                tZipFile.removeLocalFiles();
+            }
+            pDeposit.removeAttribute(METS);
+            pDeposit.removeAttribute(DATASTREAMS);
+            DepositWorkspace.release(pDeposit);
         }
     }
 
+    /**
+     * Parse the METS document straight from its entry in the zip file.
+     *
+     * @param pZipFile   The open zip file
+     * @param pMETSEntry The entry of the METS document
+     * @return The METS document
+     * @throws SWORDException if the entry isn't a METS document
+     * @throws IOException    if the entry can't be read
+     */
+    protected METSObject readMETS(final ZipFileAccess pZipFile, final ZipEntry pMETSEntry) throws SWORDException, IOException {
+        Document tDocument;
+        try (InputStream tIn = pZipFile.getInputStream(pMETSEntry)) {
+            tDocument = new SAXBuilder().build(tIn);
+        } catch (JDOMException tJDOMExcpt) {
+            throw new SWORDException(pMETSEntry.getName() + " isn't well formed XML: " + tJDOMExcpt.getMessage(), tJDOMExcpt, ErrorCodes.ERROR_CONTENT);
+        } catch (CharConversionException tEncodingExcpt) {
+            throw new SWORDException(pMETSEntry.getName() + " isn't well formed XML: " + tEncodingExcpt.getMessage(), tEncodingExcpt, ErrorCodes.ERROR_CONTENT);
+        }
+        Element tRoot = tDocument.getRootElement();
+        if (!tRoot.getName().equals("mets") || !tRoot.getNamespace().equals(METSObject.METS)) {
+            throw new SWORDException(pMETSEntry.getName() + " isn't a METS document", null, ErrorCodes.ERROR_CONTENT);
+        }
+        return new METSObject(tDocument);
+    }
+
+    /**
+     * Look up the files referenced by the METS document in the zip file. A location is taken as
+     * relative to the top of the zip file first and relative to the directory of the METS
+     * document second.
+     *
+     * @param pZip       The zip file
+     * @param pMETSEntry The entry of the METS document
+     * @param pMETS      The METS document
+     * @return The referenced entries in the order of the METS document
+     * @throws SWORDException if a referenced file isn't in the zip file
+     * @throws JDOMException  if the METS document can't be processed
+     */
+    protected List<ZipEntry> getReferencedEntries(final ZipFile pZip, final ZipEntry pMETSEntry, final METSObject pMETS) throws SWORDException, JDOMException {
+        String tMETSDir = "";
+        int tSlash = pMETSEntry.getName().lastIndexOf('/');
+        if (tSlash >= 0) {
+            tMETSDir = pMETSEntry.getName().substring(0, tSlash + 1);
+        }
+
+        List<ZipEntry> tEntries = new ArrayList<ZipEntry>();
+        List<String> tNames = new ArrayList<String>();
+        for (String tLocation : pMETS.getLocalFileLocations()) {
+            String tName = tLocation;
+            while (tName.startsWith("./") || tName.startsWith("/")) {
+                tName = tName.substring(tName.indexOf('/') + 1);
+            }
+            ZipEntry tEntry = pZip.getEntry(tName);
+            if (tEntry == null || tEntry.isDirectory()) {
+                tEntry = pZip.getEntry(tMETSDir + tName);
+            }
+            if (tEntry == null || tEntry.isDirectory()) {
+                throw new SWORDException("The METS document references " + tLocation + " which isn't in the zip file", null, ErrorCodes.ERROR_CONTENT);
+            }
+            if (!tNames.contains(tEntry.getName())) {
+                tNames.add(tEntry.getName());
+                tEntries.add(tEntry);
+            }
+        }
+        return tEntries;
+    }
+
+    /**
+     * Get the METS document found in the zip file of the deposit
+     *
+     * @param pDeposit The deposit
+     * @return The METS document of this deposit
+     */
+    protected METSObject getMETS(final DepositCollection pDeposit) {
+        return pDeposit.getAttribute(METS, METSObject.class);
+    }
+
     /**
      * Retrieve the dublin core from the METS document if possible, if not use the super class. DefaultFileHandler
      *
@@ -143,7 +239,7 @@ public class ZipMETSFileHandler extends DefaultFileHandler implements FileHandle
      * @return The Dublin Core datastream
      */
     protected DublinCore getDublinCore(final DepositCollection pDeposit) {
-        DublinCore tDC = _mets.getDublinCore();
+        DublinCore tDC = this.getMETS(pDeposit).getDublinCore();
 
         if (tDC == null) {
             return super.getDublinCore(pDeposit);
@@ -159,7 +255,7 @@ public class ZipMETSFileHandler extends DefaultFileHandler implements FileHandle
      * @return The RELS-EXT datastream
      */
     protected Relationship getRelationships(final DepositCollection pDeposit) {
-        Relationship tRelations = _mets.getRelationships();
+        Relationship tRelations = this.getMETS(pDeposit).getRelationships();
 
         if (tRelations == null) {
             return super.getRelationships(pDeposit);
@@ -176,6 +272,8 @@ public class ZipMETSFileHandler extends DefaultFileHandler implements FileHandle
      * @throws SWORDException if there was a problem processing the METS
      */
     protected List<Datastream> getDatastreams(final DepositCollection pDeposit) throws IOException, SWORDException {
-        return _datastreamList;
+        @SuppressWarnings(value = {"unchecked"})
+        List<Datastream> tDatastreamList = pDeposit.getAttribute(DATASTREAMS, List.class);
+        return tDatastreamList;
     }
 }	
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.log4j.Logger;
+import org.jdom.Element;
+import org.purl.sword.base.ErrorCodes;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Limits for the content of archive deposits, so a broken or malicious zip file can't fill the
+ * temp directory. A limit of 0 means there is no limit.
+ * <p/>
+ * The limits are checked against the central directory when the zip file is opened, before
+ * anything is read. As the sizes in the central directory can be wrong the bytes are also counted
+ * while the entries are read. Entries with ".." or absolute paths are always rejected.
+ * <p/>
+ * The global limits are configured in the archive-limits element of files, a collection can
+ * override single limits in an archive-limits element of its own.
+ */
+public final class ArchiveLimits {
+    private static final Logger log = Logger.getLogger(ArchiveLimits.class);
+
+    /**
+     * The compression ratio is only checked for entries larger than this, small files
+     * with a lot of repetition compress very well without being a danger.
+     */
+    public static final long RATIO_THRESHOLD = 1024 * 1024;
+
+    /**
+     * No limits at all
+     */
+    public static final ArchiveLimits NONE = new ArchiveLimits(0, 0, 0, 0);
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxRatio;
+    private final int maxDepth;
+
+    /**
+     * @param maxEntries Maximum number of entries in the archive
+     * @param maxBytes   Maximum number of uncompressed bytes of all entries together
+     * @param maxRatio   Maximum ratio between uncompressed and compressed size of an entry
+     * @param maxDepth   Maximum number of directories and file name in the path of an entry
+     */
+    public ArchiveLimits(int maxEntries, long maxBytes, int maxRatio, int maxDepth) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxRatio = Math.max(0, maxRatio);
+        this.maxDepth = Math.max(0, maxDepth);
+    }
+
+    /**
+     * Read limits from an archive-limits element. Limits that aren't in the element are taken from the defaults.
+     *
+     * @param element  The archive-limits element, may be null
+     * @param defaults The limits used for missing values
+     * @return The limits
+     */
+    public static ArchiveLimits parse(Element element, ArchiveLimits defaults) {
+        if (element == null) {
+            return defaults;
+        }
+        return new ArchiveLimits(
+                (int) longValue(element.getChildText("max-entries"), defaults.maxEntries),
+                longValue(element.getChildText("max-bytes"), defaults.maxBytes),
+                (int) longValue(element.getChildText("max-ratio"), defaults.maxRatio),
+                (int) longValue(element.getChildText("max-depth"), defaults.maxDepth));
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxRatio() {
+        return maxRatio;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Check the entries listed in the central directory of a zip file.
+     *
+     * @param zipFile The open zip file
+     * @throws ArchiveLimitException if the zip file exceeds one of the limits
+     */
+    public void check(ZipFile zipFile) throws ArchiveLimitException {
+        if (maxEntries > 0 && zipFile.size() > maxEntries) {
+            throw new ArchiveLimitException("The zip file has " + zipFile.size() + " entries, at most "
+                    + maxEntries + " are allowed", ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED);
+        }
+        long total = 0;
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            checkPath(entry.getName());
+            if (entry.getSize() > 0) {
+                total += entry.getSize();
+                checkBytes(total);
+                checkRatio(entry, entry.getSize());
+            }
+        }
+    }
+
+    /**
+     * Count the bytes read from an entry and fail as soon as the entry or the archive exceeds a limit.
+     *
+     * @param in    The stream of the entry
+     * @param entry The entry
+     * @param total Bytes read from all entries of the archive so far, null to check the entry only
+     * @return The counting stream
+     */
+    public InputStream limit(InputStream in, ZipEntry entry, AtomicLong total) {
+        return limit(in, entry, total, null);
+    }
+
+    /**
+     * Count the bytes of one attempt at reading an entry that may be read again, e.g. when its upload is retried.
+     * The bytes counted by the previous attempt are taken off the total first, so the entry is only counted once.
+     *
+     * @param in      The stream of the entry
+     * @param entry   The entry
+     * @param total   Bytes read from all entries of the archive so far, null to check the entry only
+     * @param attempt Bytes counted by the last attempt at reading the entry, updated while reading
+     * @return The counting stream
+     */
+    public InputStream limit(InputStream in, ZipEntry entry, AtomicLong total, AtomicLong attempt) {
+        if (total != null && attempt != null) {
+            total.addAndGet(-attempt.getAndSet(0));
+        }
+        if (maxBytes == 0 && maxRatio == 0) {
+            return in;
+        }
+        return new LimitedInputStream(in, entry, total, attempt);
+    }
+
+    private void checkPath(String name) throws ArchiveLimitException {
+        String path = name.replace('\\', '/');
+        if (path.startsWith("/") || path.equals("..") || path.startsWith("../") || path.contains("/../") || path.endsWith("/..")) {
+            throw new ArchiveLimitException("The zip file contains the path " + name + " which points outside of the archive", ErrorCodes.ERROR_BAD_REQUEST);
+        }
+        if (maxDepth == 0) {
+            return;
+        }
+        int depth = 0;
+        for (String segment : path.split("/")) {
+            if (segment.length() > 0) {
+                depth++;
+            }
+        }
+        if (depth > maxDepth) {
+            throw new ArchiveLimitException("The path " + name + " in the zip file is nested " + depth + " levels deep, at most "
+                    + maxDepth + " are allowed", ErrorCodes.ERROR_BAD_REQUEST);
+        }
+    }
+
+    private void checkBytes(long total) throws ArchiveLimitException {
+        if (maxBytes > 0 && total > maxBytes) {
+            throw new ArchiveLimitException("The zip file expands to more than " + maxBytes + " bytes",
+                    ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED);
+        }
+    }
+
+    private void checkRatio(ZipEntry entry, long size) throws ArchiveLimitException {
+        long compressed = entry.getCompressedSize();
+        if (maxRatio > 0 && size > RATIO_THRESHOLD && compressed >= 0 && size > compressed * maxRatio) {
+            throw new ArchiveLimitException("The entry " + entry.getName() + " in the zip file expands more than "
+                    + maxRatio + " times", ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED);
+        }
+    }
+
+    private static long longValue(String value, long defaultValue) {
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid number " + value + " in archive-limits, using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private class LimitedInputStream extends FilterInputStream {
+        private final ZipEntry entry;
+        private final AtomicLong total;
+        private final AtomicLong attempt;
+        private long count = 0;
+
+        LimitedInputStream(InputStream in, ZipEntry entry, AtomicLong total, AtomicLong attempt) {
+            super(in);
+            this.entry = entry;
+            this.total = total;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                count(skipped);
+            }
+            return skipped;
+        }
+
+        private void count(long n) throws ArchiveLimitException {
+            count += n;
+            if (attempt != null) {
+                attempt.addAndGet(n);
+            }
+            checkRatio(entry, count);
+            if (total != null) {
+                checkBytes(total.addAndGet(n));
+            } else {
+                checkBytes(count);
+            }
+        }
+    }
+}
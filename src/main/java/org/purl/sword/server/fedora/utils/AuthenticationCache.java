@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of recent authentication results against Fedora.
+ * <p/>
+ * Entries are keyed by a salted SHA-256 hash of the Fedora URL, username and password, so
+ * no password is kept in memory. The salt is random per cache. Successful authentications
+ * are remembered for <code>ttl</code> milliseconds, failed ones for <code>negativeTtl</code>
+ * milliseconds. Least recently used entries are evicted first. There is one cache per Fedora
+ * instance, which outlives configuration reloads; a reload only changes its settings.
+ */
+public class AuthenticationCache {
+    public static final int DEFAULT_SIZE = 1024;
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10 * 1000;
+
+    /**
+     * The cached outcome of authenticating a set of credentials.
+     */
+    public enum Status {
+        AUTHENTICATED, REJECTED, UNKNOWN
+    }
+
+    private static final ConcurrentMap<String, AuthenticationCache> caches = new ConcurrentHashMap<String, AuthenticationCache>();
+
+    private final Map<String, CachedResult> entries;
+    private volatile int maxSize;
+    private volatile long ttl;
+    private volatile long negativeTtl;
+    private final byte[] salt = new byte[16];
+
+    public AuthenticationCache() {
+        this(DEFAULT_SIZE, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxSize           Maximum number of cached results
+     * @param ttlMillis         How long a successful authentication is remembered
+     * @param negativeTtlMillis How long a failed authentication is remembered
+     */
+    public AuthenticationCache(final int maxSize, long ttlMillis, long negativeTtlMillis) {
+        this.maxSize = maxSize;
+        this.ttl = ttlMillis;
+        this.negativeTtl = negativeTtlMillis;
+        new SecureRandom().nextBytes(salt);
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > AuthenticationCache.this.maxSize;
+            }
+        });
+    }
+
+    /**
+     * Get the cache for a Fedora instance and apply the current settings to it. Remembered
+     * results keep the expiry they were stored with when the settings change.
+     *
+     * @param fedoraURL         The Fedora instance
+     * @param maxSize           Maximum number of cached results
+     * @param ttlMillis         How long a successful authentication is remembered
+     * @param negativeTtlMillis How long a failed authentication is remembered
+     * @return The cache of the Fedora instance
+     */
+    public static AuthenticationCache getInstance(String fedoraURL, int maxSize, long ttlMillis, long negativeTtlMillis) {
+        AuthenticationCache cache = caches.get(fedoraURL);
+        if (cache == null) {
+            AuthenticationCache created = new AuthenticationCache(maxSize, ttlMillis, negativeTtlMillis);
+            cache = caches.putIfAbsent(fedoraURL, created);
+            if (cache == null) {
+                return created;
+            }
+        }
+        cache.configure(maxSize, ttlMillis, negativeTtlMillis);
+        return cache;
+    }
+
+    /**
+     * Forget the caches of all Fedora instances.
+     */
+    static void shutdown() {
+        caches.clear();
+    }
+
+    /**
+     * Change the settings. Results above a smaller maximum size are evicted, least recently used first.
+     */
+    void configure(int maxSize, long ttlMillis, long negativeTtlMillis) {
+        this.ttl = ttlMillis;
+        this.negativeTtl = negativeTtlMillis;
+        if (this.maxSize == maxSize) {
+            return;
+        }
+        this.maxSize = maxSize;
+        synchronized (entries) {
+            Iterator<CachedResult> iterator = entries.values().iterator();
+            while (entries.size() > Math.max(0, maxSize) && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param fedoraURL The Fedora instance the credentials are checked against
+     * @param username  The username
+     * @param password  The password
+     * @return The remembered result or UNKNOWN if there is none or it has expired
+     */
+    public Status get(String fedoraURL, String username, String password) {
+        String key = key(fedoraURL, username, password);
+        CachedResult entry = entries.get(key);
+        if (entry == null) {
+            return Status.UNKNOWN;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            return Status.UNKNOWN;
+        }
+        return entry.status;
+    }
+
+    public void putAuthenticated(String fedoraURL, String username, String password) {
+        put(fedoraURL, username, password, Status.AUTHENTICATED, ttl);
+    }
+
+    public void putRejected(String fedoraURL, String username, String password) {
+        put(fedoraURL, username, password, Status.REJECTED, negativeTtl);
+    }
+
+    /**
+     * Forget the result for a set of credentials, e.g. after a call with them was rejected.
+     */
+    public void invalidate(String fedoraURL, String username, String password) {
+        entries.remove(key(fedoraURL, username, password));
+    }
+
+    /**
+     * Forget all results for a user, e.g. after the password has been changed.
+     *
+     * @param username The username
+     */
+    public void invalidateUser(String username) {
+        synchronized (entries) {
+            Iterator<CachedResult> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().username.equals(username)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void put(String fedoraURL, String username, String password, Status status, long ttlMillis) {
+        if (ttlMillis <= 0 || username == null) {
+            return;
+        }
+        entries.put(key(fedoraURL, username, password),
+                new CachedResult(username, status, System.currentTimeMillis() + ttlMillis));
+    }
+
+    private String key(String fedoraURL, String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(String.valueOf(fedoraURL).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(username).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+            return DatatypeConverter.printHexBinary(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static final class CachedResult {
+        private final String username;
+        private final Status status;
+        private final long expires;
+
+        private CachedResult(String username, Status status, long expires) {
+            this.username = username;
+            this.status = status;
+            this.expires = expires;
+        }
+    }
+}
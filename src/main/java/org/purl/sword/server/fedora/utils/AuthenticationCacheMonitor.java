@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Exposes the {@link AuthenticationCache} of the current configuration over JMX as
+ * <code>org.purl.sword.server.fedora:type=AuthenticationCache</code>, so that remembered
+ * logins can be dropped after passwords have been changed in Fedora. It is registered and
+ * unregistered with the web application by {@link StartupListener}.
+ */
+public class AuthenticationCacheMonitor implements AuthenticationCacheMonitorMBean {
+    private static final Logger log = Logger.getLogger(AuthenticationCacheMonitor.class);
+    private static final String OBJECT_NAME = "org.purl.sword.server.fedora:type=AuthenticationCache";
+
+    public int getSize() {
+        AuthenticationCache cache = current();
+        return (cache == null) ? 0 : cache.size();
+    }
+
+    public void invalidateUser(String username) {
+        AuthenticationCache cache = current();
+        if (cache != null) {
+            cache.invalidateUser(username);
+        }
+    }
+
+    public void clear() {
+        AuthenticationCache cache = current();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new AuthenticationCacheMonitor(), name);
+            }
+        } catch (Exception e) {
+            log.warn("Couldn't register authentication cache monitor: " + e.getMessage());
+        }
+    }
+
+    static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            log.warn("Couldn't unregister authentication cache monitor: " + e.getMessage());
+        }
+    }
+
+    private static AuthenticationCache current() {
+        try {
+            return new XMLProperties(StartupListener.getConfiguration()).getAuthenticationCache();
+        } catch (SWORDException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small pool of daemon threads for work that should not hold up a request,
+ * like refilling caches. It is created on first use and shut down with the
+ * web application by {@link StartupListener}.
+ */
+public final class BackgroundExecutor {
+    private static final Logger log = Logger.getLogger(BackgroundExecutor.class);
+    private static final int THREADS = 2;
+
+    private static ScheduledExecutorService executor;
+    private static boolean shutdown = false;
+
+    private BackgroundExecutor() {
+    }
+
+    /**
+     * @return The shared executor
+     * @throws RejectedExecutionException if the web application is shutting down
+     */
+    public static synchronized ScheduledExecutorService get() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Background executor has been shut down");
+        }
+        if (executor == null) {
+            ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(THREADS, new ThreadFactory() {
+                private final ThreadFactory defaults = Executors.defaultThreadFactory();
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = defaults.newThread(r);
+                    thread.setName("sword-background-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            created.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            executor = created;
+        }
+        return executor;
+    }
+
+    /**
+     * Run a task in the background.
+     *
+     * @param task The task
+     * @throws RejectedExecutionException if the web application is shutting down
+     */
+    public static void execute(Runnable task) {
+        get().execute(task);
+    }
+
+    /**
+     * Stop accepting tasks and wait a few seconds for running tasks to finish.
+     */
+    static void shutdown() {
+        ScheduledExecutorService current;
+        synchronized (BackgroundExecutor.class) {
+            shutdown = true;
+            current = executor;
+            executor = null;
+        }
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Background tasks didn't finish in time");
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
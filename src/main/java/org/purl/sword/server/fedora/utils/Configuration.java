@@ -0,0 +1,633 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.log4j.Logger;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.baseExtensions.ServiceDocumentIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the values in the properties file.
+ * <p/>
+ * The snapshot is built once from the parsed properties document and shared between
+ * request threads. The values read from the file don't change after that. Values that are
+ * missing from the properties file are stored as <code>null</code> and reported with a
+ * {@link SWORDException} when they are asked for, the same way {@link XMLProperties} always did.
+ * <p/>
+ * The parsed documents are kept for building service documents. The public getters
+ * hand out copies of them, so callers can't change the snapshot under other threads.
+ * The snapshot isn't immutable, though: service documents rendered from it are cached
+ * with it, so they are dropped when the configuration is reloaded.
+ *
+ * @see StartupListener#getConfiguration()
+ */
+public final class Configuration {
+    private static final Logger log = Logger.getLogger(Configuration.class);
+    private static final int DEFAULT_FEDORA_CLIENT_POOL_SIZE = 8;
+
+    private final Document document;
+    private final List<String> fileHandlerClasses;
+    private final String fileHandlerError;
+    private final String tempDir;
+    private final int spoolMemoryThreshold;
+    private final String repositoryUri;
+    private final String externalObjURL;
+    private final String externalDSURL;
+    private final String pidNamespace;
+    private final String fedoraURL;
+    private final String fedoraURLError;
+    private final int fedoraClientPoolSize;
+    private final int authenticationCacheSize;
+    private final long authenticationCacheTtl;
+    private final long authenticationCacheNegativeTtl;
+    private final int uploadCacheSize;
+    private final long uploadCacheTtl;
+    private final String uploadCacheAlgorithm;
+    private final int pidBlockSize;
+    private final int pidLowWaterMark;
+    private final long repositoryDescriptorRefresh;
+    private final String checksumType;
+    private final int uploadMaxConnections;
+    private final int uploadConnectTimeout;
+    private final int uploadSocketTimeout;
+    private final long uploadIdleTimeout;
+    private final int uploadThreads;
+    private final int uploadThreadsPerDeposit;
+    private final boolean uploadStreaming;
+    private final int uploadStreamBuffer;
+    private final String entryLocation;
+    private final String subSDDir;
+    private final String mimeTypesLocation;
+    private final Document mimeTypes;
+    private final MimeTypeIndex mimeTypeIndex;
+    private final boolean sniffMimeType;
+    private final String zipMode;
+    private final int zipThreads;
+    private final ArchiveLimits archiveLimits;
+    private final Map<String, Integer> jpegDerivativeSizes;
+    private final int jpegQuality;
+    private final Map<String, ArchiveLimits> collectionArchiveLimits;
+    private final Element serviceDocumentElement;
+    private final ServiceDocumentIndex serviceDocumentIndex;
+    private final ServiceDocumentCache serviceDocumentCache = new ServiceDocumentCache();
+    private final SubServiceDocumentCache subServiceDocumentCache = new SubServiceDocumentCache();
+
+    /**
+     * Build a snapshot from an already parsed properties document without mime types.
+     *
+     * @param document The properties document
+     */
+    public Configuration(Document document) {
+        this(document, null);
+    }
+
+    /**
+     * Build a snapshot from an already parsed properties document and mime types document.
+     *
+     * @param document  The properties document
+     * @param mimeTypes The mime types document, may be null
+     */
+    @SuppressWarnings(value = {"unchecked"})
+    public Configuration(Document document, Document mimeTypes) {
+        this.document = document;
+        this.mimeTypes = mimeTypes;
+
+        Element root = document.getRootElement();
+        Element fedora = root.getChild("fedora");
+        Element general = root.getChild("general");
+        Element files = root.getChild("files");
+
+        List<String> handlers = new ArrayList<String>();
+        String handlerError = null;
+        Element fileHandlers = root.getChild("file_handlers");
+        if (fileHandlers != null) {
+            for (Element handler : (List<Element>) fileHandlers.getChildren()) {
+                String className = handler.getAttributeValue("class");
+                if (className == null || className.trim().length() == 0) {
+                    handlerError = "You must specify a class attribute for the node handler";
+                    break;
+                }
+                handlers.add(className);
+            }
+        }
+        this.fileHandlerClasses = Collections.unmodifiableList(handlers);
+        this.fileHandlerError = handlerError;
+
+        this.tempDir = childText(general, "temp_dir");
+        this.spoolMemoryThreshold = Math.max(0, intValue(childText(general, "spool_memory_threshold"), 64 * 1024));
+        this.repositoryUri = childText(general, "repository_uri");
+        this.entryLocation = childText(general, "entry-location");
+        this.subSDDir = childText(general, "sub-service-documents");
+
+        this.externalObjURL = childText(fedora, "external_obj_url");
+        this.externalDSURL = childText(fedora, "external_ds_url");
+        this.pidNamespace = childText(fedora, "pid_namespace");
+
+        String protocol = childText(fedora, "protocol");
+        String host = childText(fedora, "host");
+        String port = childText(fedora, "port");
+        if (fedora == null) {
+            this.fedoraURL = null;
+            this.fedoraURLError = "Couldn't find fedora properties in properties files";
+        } else if (protocol == null || host == null || port == null) {
+            this.fedoraURL = null;
+            this.fedoraURLError = "Couldn't find protocol, host or port under fedora properties in properties files";
+        } else {
+            this.fedoraURL = protocol + "://" + host + ":" + port + "/fedora";
+            this.fedoraURLError = null;
+        }
+
+        this.fedoraClientPoolSize = intValue(childText(fedora, "client_pool_size"), DEFAULT_FEDORA_CLIENT_POOL_SIZE);
+        this.pidBlockSize = Math.max(1, intValue(childText(fedora, "pid_block_size"), 1));
+        this.pidLowWaterMark = intValue(childText(fedora, "pid_low_water_mark"), pidBlockSize / 4);
+        this.repositoryDescriptorRefresh = 1000L * intValue(childText(fedora, "descriptor_refresh"), 3600);
+        this.checksumType = checksumType(childText(fedora, "checksum_type"));
+        Element uploadElement = (fedora == null) ? null : fedora.getChild("upload");
+        this.uploadMaxConnections = Math.max(1, intValue(childText(uploadElement, "max_connections"), 20));
+        this.uploadConnectTimeout = 1000 * intValue(childText(uploadElement, "connect_timeout"), 30);
+        this.uploadSocketTimeout = 1000 * intValue(childText(uploadElement, "socket_timeout"), 600);
+        this.uploadIdleTimeout = 1000L * intValue(childText(uploadElement, "idle_timeout"), 60);
+        this.uploadThreads = Math.max(1, intValue(childText(uploadElement, "threads"), 8));
+        this.uploadThreadsPerDeposit = Math.max(1, intValue(childText(uploadElement, "threads_per_deposit"), 4));
+        this.uploadStreaming = Boolean.parseBoolean(childText(uploadElement, "streaming"));
+        this.uploadStreamBuffer = Math.max(1024, intValue(childText(uploadElement, "stream_buffer"), 256 * 1024));
+        Element dedupElement = (uploadElement == null) ? null : uploadElement.getChild("dedup");
+        this.uploadCacheSize = intValue(childText(dedupElement, "size"), 0);
+        this.uploadCacheTtl = 1000L * intValue(childText(dedupElement, "ttl"), (int) (UploadCache.DEFAULT_TTL_MILLIS / 1000));
+        this.uploadCacheAlgorithm = DigestingInputStream.DISABLED.equals(checksumType) ? "SHA-256" : checksumType;
+        Element authenticationCacheElement = (fedora == null) ? null : fedora.getChild("authentication_cache");
+        this.authenticationCacheSize = intValue(childText(authenticationCacheElement, "size"), AuthenticationCache.DEFAULT_SIZE);
+        this.authenticationCacheTtl = 1000L * intValue(childText(authenticationCacheElement, "ttl"), (int) (AuthenticationCache.DEFAULT_TTL_MILLIS / 1000));
+        this.authenticationCacheNegativeTtl = 1000L * intValue(childText(authenticationCacheElement, "negative_ttl"), (int) (AuthenticationCache.DEFAULT_NEGATIVE_TTL_MILLIS / 1000));
+
+        this.mimeTypesLocation = childText(files, "mime-type");
+        this.mimeTypeIndex = MimeTypeIndex.build(mimeTypes);
+        this.sniffMimeType = Boolean.parseBoolean(childText(files, "sniff-mime-type"));
+        this.zipMode = zipMode(childText(files, "zip-mode"));
+        this.zipThreads = Math.max(1, intValue(childText(files, "zip-threads"), 1));
+        Element jpegDerivatives = (files == null) ? null : files.getChild("jpeg-derivatives");
+        Map<String, Integer> derivativeSizes = new LinkedHashMap<String, Integer>();
+        derivativeSizes.put("thumbnail", Math.max(1, intValue(childText(jpegDerivatives, "thumbnail"), 120)));
+        derivativeSizes.put("medium", Math.max(1, intValue(childText(jpegDerivatives, "medium"), 480)));
+        derivativeSizes.put("high", Math.max(1, intValue(childText(jpegDerivatives, "high"), 1024)));
+        derivativeSizes.put("very-high", Math.max(1, intValue(childText(jpegDerivatives, "very-high"), 2048)));
+        this.jpegDerivativeSizes = Collections.unmodifiableMap(derivativeSizes);
+        this.jpegQuality = Math.max(1, Math.min(100, intValue(childText(jpegDerivatives, "quality"), 85)));
+        this.serviceDocumentElement = root.getChild("service_document");
+        this.serviceDocumentIndex = (serviceDocumentElement == null) ? null : new ServiceDocumentIndex(serviceDocumentElement);
+
+        this.archiveLimits = ArchiveLimits.parse((files == null) ? null : files.getChild("archive-limits"), ArchiveLimits.NONE);
+        Map<String, ArchiveLimits> limits = new HashMap<String, ArchiveLimits>();
+        if (serviceDocumentIndex != null) {
+            for (ServiceDocumentIndex.CollectionEntry collection : serviceDocumentIndex.getCollections()) {
+                Element limitsElement = collection.getElement().getChild("archive-limits");
+                if (limitsElement != null && collection.getPid() != null && !limits.containsKey(collection.getPid())) {
+                    limits.put(collection.getPid(), ArchiveLimits.parse(limitsElement, archiveLimits));
+                }
+            }
+        }
+        this.collectionArchiveLimits = Collections.unmodifiableMap(limits);
+    }
+
+    /**
+     * Parse the properties file and the mime types file it refers to and build a snapshot from them.
+     *
+     * @param propertiesLocation Absolute path to the properties file
+     * @return The configuration snapshot
+     * @throws SWORDException if one of the files can't be read or isn't valid XML
+     */
+    public static Configuration load(String propertiesLocation) throws SWORDException {
+        Document properties = parse(propertiesLocation, "properties");
+        String mimeTypesLocation = childText(properties.getRootElement().getChild("files"), "mime-type");
+        Document mimeTypes = null;
+        if (mimeTypesLocation != null) {
+            mimeTypes = parse(StartupListener.realPathHelper(mimeTypesLocation), "mime types");
+        }
+        return new Configuration(properties, mimeTypes);
+    }
+
+    private static Document parse(String location, String description) throws SWORDException {
+        log.debug("Loading " + location);
+        try {
+            return new SAXBuilder().build(new File(location));
+        } catch (IOException e) {
+            throw new SWORDException("Couldn't open " + description + " file " + location, e);
+        } catch (JDOMException e) {
+            throw new SWORDException(description + " file is invalid XML " + location, e);
+        }
+    }
+
+    /**
+     * @return A copy of the parsed properties document
+     */
+    public Document getDocument() {
+        return (Document) document.clone();
+    }
+
+    /**
+     * @return The parsed properties document shared by all users of the snapshot. Do not modify.
+     */
+    Document getSharedDocument() {
+        return document;
+    }
+
+    /**
+     * @return Unmodifiable list of the configured file handler class names
+     * @throws SWORDException if a handler was configured without a class attribute
+     */
+    public List<String> getFileHandlerClasses() throws SWORDException {
+        if (fileHandlerError != null) {
+            throw new SWORDException("Couldn't load file handlers from properties file: " + fileHandlerError);
+        }
+        return fileHandlerClasses;
+    }
+
+    public String getTempDir() throws SWORDException {
+        return require(tempDir, "Couldn't find node temp_dir");
+    }
+
+    /**
+     * @return Size in bytes up to which deposits are kept in memory instead of the temp dir
+     */
+    public int getSpoolMemoryThreshold() {
+        return spoolMemoryThreshold;
+    }
+
+    public String getRepositoryUri() throws SWORDException {
+        return require(repositoryUri, "Couldn't find node repository_uri");
+    }
+
+    public String getExternalObjURL() throws SWORDException {
+        return require(externalObjURL, "Couldn't find fedora external url");
+    }
+
+    public String getExternalDSURL() throws SWORDException {
+        return require(externalDSURL, "Couldn't find fedora external url");
+    }
+
+    public String getPIDNamespace() throws SWORDException {
+        return require(pidNamespace, "Couldn't find node pid_namespace");
+    }
+
+    /**
+     * @return The Fedora base URL in the form http://host:port/fedora
+     * @throws SWORDException if the fedora section is incomplete
+     */
+    public String getFedoraURL() throws SWORDException {
+        if (fedoraURLError != null) {
+            log.error(fedoraURLError);
+            throw new SWORDException("Invlaid properties file");
+        }
+        return fedoraURL;
+    }
+
+    /**
+     * @return Number of Fedora SOAP clients kept for reuse
+     */
+    public int getFedoraClientPoolSize() {
+        return fedoraClientPoolSize;
+    }
+
+    /**
+     * @return Number of PIDs reserved in Fedora at a time
+     */
+    public int getPidBlockSize() {
+        return pidBlockSize;
+    }
+
+    /**
+     * @return Number of reserved PIDs left at which the next block is reserved in the background
+     */
+    public int getPidLowWaterMark() {
+        return pidLowWaterMark;
+    }
+
+    /**
+     * @return Milliseconds after which the cached description of the Fedora instance is refreshed
+     */
+    public long getRepositoryDescriptorRefresh() {
+        return repositoryDescriptorRefresh;
+    }
+
+    /**
+     * @return Digest algorithm of the checksums handed to Fedora with uploaded datastreams, DISABLED for none
+     */
+    public String getChecksumType() {
+        return checksumType;
+    }
+
+    /**
+     * @return Maximum number of connections to the Fedora upload servlet
+     */
+    public int getUploadMaxConnections() {
+        return uploadMaxConnections;
+    }
+
+    /**
+     * @return Milliseconds to wait for a connection to the Fedora upload servlet, 0 waits forever
+     */
+    public int getUploadConnectTimeout() {
+        return uploadConnectTimeout;
+    }
+
+    /**
+     * @return Milliseconds to wait for data from the Fedora upload servlet, 0 waits forever
+     */
+    public int getUploadSocketTimeout() {
+        return uploadSocketTimeout;
+    }
+
+    /**
+     * @return Milliseconds after which an unused connection to the Fedora upload servlet is closed
+     */
+    public long getUploadIdleTimeout() {
+        return uploadIdleTimeout;
+    }
+
+    /**
+     * @return Number of threads uploading files to Fedora for all deposits together
+     */
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    /**
+     * @return Maximum number of files of one deposit that are uploaded at the same time
+     */
+    public int getUploadThreadsPerDeposit() {
+        return uploadThreadsPerDeposit;
+    }
+
+    /**
+     * @return True if single file deposits are streamed to Fedora without writing them to the temp dir
+     */
+    public boolean isUploadStreaming() {
+        return uploadStreaming;
+    }
+
+    /**
+     * @return Size in bytes of the buffer between the deposit and a streamed upload
+     */
+    public int getUploadStreamBuffer() {
+        return uploadStreamBuffer;
+    }
+
+    /**
+     * @return Maximum number of uploads remembered to reference identical content instead of uploading it again
+     */
+    public int getUploadCacheSize() {
+        return uploadCacheSize;
+    }
+
+    /**
+     * @return Milliseconds an upload is remembered
+     */
+    public long getUploadCacheTtl() {
+        return uploadCacheTtl;
+    }
+
+    /**
+     * @return The digest algorithm identifying the content of remembered uploads
+     */
+    public String getUploadCacheAlgorithm() {
+        return uploadCacheAlgorithm;
+    }
+
+    /**
+     * @return Maximum number of cached authentication results against Fedora
+     */
+    public int getAuthenticationCacheSize() {
+        return authenticationCacheSize;
+    }
+
+    /**
+     * @return Milliseconds a successful authentication is remembered
+     */
+    public long getAuthenticationCacheTtl() {
+        return authenticationCacheTtl;
+    }
+
+    /**
+     * @return Milliseconds a failed authentication is remembered
+     */
+    public long getAuthenticationCacheNegativeTtl() {
+        return authenticationCacheNegativeTtl;
+    }
+
+    /**
+     * @return The entry store location as configured, relative to the web app
+     */
+    public String getEntryLocation() throws SWORDException {
+        return require(entryLocation, "Couldn't find node entry-location");
+    }
+
+    public String getSubSDDir() throws SWORDException {
+        return require(subSDDir, "Couldn't find node sub-service-documents");
+    }
+
+    /**
+     * @return Location of the mime types file relative to the web app, or null if not configured
+     */
+    public String getMimeTypesLocation() {
+        return mimeTypesLocation;
+    }
+
+    /**
+     * @return A copy of the parsed mime types document, or null if there is none
+     */
+    public Document getMimeTypes() {
+        return (mimeTypes == null) ? null : (Document) mimeTypes.clone();
+    }
+
+    /**
+     * @return Lookup table from file extension to mime type, empty if there is no mime types file
+     */
+    public MimeTypeIndex getMimeTypeIndex() {
+        return mimeTypeIndex;
+    }
+
+    /**
+     * @return How zip files are unpacked, either {@link ZipFileAccess#MODE_EXTRACT} or {@link ZipFileAccess#MODE_STREAM}
+     */
+    public String getZipMode() {
+        return zipMode;
+    }
+
+    /**
+     * @return Maximum number of files of one zip deposit that are extracted at the same time
+     */
+    public int getZipThreads() {
+        return zipThreads;
+    }
+
+    /**
+     * @return Longest edge in pixels of the thumbnail, medium, high and very-high JPEG derivatives
+     */
+    public Map<String, Integer> getJpegDerivativeSizes() {
+        return jpegDerivativeSizes;
+    }
+
+    /**
+     * @return JPEG quality of the derivatives between 0 and 1
+     */
+    public float getJpegQuality() {
+        return jpegQuality / 100f;
+    }
+
+    /**
+     * @param collectionPid The collection deposited into, may be null
+     * @return The limits for archive deposits into the collection, the global limits if it has none of its own
+     */
+    public ArchiveLimits getArchiveLimits(String collectionPid) {
+        ArchiveLimits limits = (collectionPid == null) ? null : collectionArchiveLimits.get(collectionPid);
+        return (limits == null) ? archiveLimits : limits;
+    }
+
+    /**
+     * @return True if the mime type of files without known extension should be guessed from their content
+     */
+    public boolean isSniffMimeType() {
+        return sniffMimeType;
+    }
+
+    /**
+     * @return The service_document element of the properties file. Do not modify.
+     * @throws SWORDException if there is no service document configured
+     */
+    public Element getServiceDocumentElement() throws SWORDException {
+        if (serviceDocumentElement == null) {
+            throw new SWORDException("Couldn't find node service_document");
+        }
+        return serviceDocumentElement;
+    }
+
+    /**
+     * @return Lookup tables for the collections of the service document
+     * @throws SWORDException if there is no service document configured
+     */
+    public ServiceDocumentIndex getServiceDocumentIndex() throws SWORDException {
+        if (serviceDocumentIndex == null) {
+            throw new SWORDException("Couldn't find node service_document");
+        }
+        return serviceDocumentIndex;
+    }
+
+    /**
+     * @return Cache of serialized service documents built from this snapshot
+     */
+    public ServiceDocumentCache getServiceDocumentCache() {
+        return serviceDocumentCache;
+    }
+
+    /**
+     * @return Cache of parsed sub service documents
+     */
+    public SubServiceDocumentCache getSubServiceDocumentCache() {
+        return subServiceDocumentCache;
+    }
+
+    private static String childText(Element parent, String name) {
+        if (parent == null) {
+            return null;
+        }
+        Element child = parent.getChild(name);
+        return (child == null) ? null : child.getText();
+    }
+
+    private static String zipMode(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return ZipFileAccess.MODE_EXTRACT;
+        }
+        String mode = value.trim().toLowerCase();
+        if (!mode.equals(ZipFileAccess.MODE_EXTRACT) && !mode.equals(ZipFileAccess.MODE_STREAM)) {
+            log.warn("Unknown zip-mode " + value + " in properties file, using " + ZipFileAccess.MODE_EXTRACT);
+            return ZipFileAccess.MODE_EXTRACT;
+        }
+        return mode;
+    }
+
+    private static String checksumType(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return DigestingInputStream.DISABLED;
+        }
+        String type = value.trim().toUpperCase();
+        if (!DigestingInputStream.DISABLED.equals(type)) {
+            try {
+                MessageDigest.getInstance(type);
+            } catch (NoSuchAlgorithmException e) {
+                log.warn("Unknown checksum type " + value + " in properties file, checksums are disabled");
+                return DigestingInputStream.DISABLED;
+            }
+        }
+        return type;
+    }
+
+    private static int intValue(String value, int defaultValue) {
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid number " + value + " in properties file, using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static String require(String value, String message) throws SWORDException {
+        if (value == null) {
+            log.error(message);
+            throw new SWORDException(message);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the properties file, the mime types file and the sub service document directory
+ * and asks {@link StartupListener} to reload the configuration when one of them changes.
+ * <p/>
+ * Events are collected until the files have been quiet for a short while, so that an editor
+ * saving a file in several steps only causes a single reload. Reloading happens on the
+ * watcher thread, request threads are never blocked by it.
+ */
+public class ConfigurationWatcher implements Runnable {
+    private static final Logger log = Logger.getLogger(ConfigurationWatcher.class);
+    private static final long QUIET_PERIOD_MILLIS = 500;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+    private final Set<Path> watchedFiles = new HashSet<Path>();
+    private final Set<Path> watchedDirectories = new HashSet<Path>();
+    private final Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Create a watcher for the files the given configuration was loaded from.
+     *
+     * @param propertiesLocation Absolute path to the properties file
+     * @param configuration      The configuration loaded from the properties file
+     * @throws IOException if the file system doesn't support watching
+     */
+    public ConfigurationWatcher(String propertiesLocation, Configuration configuration) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this, "sword-configuration-watcher");
+        this.thread.setDaemon(true);
+        register(propertiesLocation, configuration);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Couldn't close watch service: " + e.getMessage());
+        }
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                if (!collect(watchService.take())) {
+                    continue;
+                }
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key);
+                }
+                reload();
+            }
+        } catch (InterruptedException e) {
+            log.debug("Configuration watcher interrupted");
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Configuration watcher closed");
+        }
+    }
+
+    /**
+     * Nothing a reload throws may end the watcher thread, otherwise later changes would go unnoticed.
+     */
+    private void reload() {
+        try {
+            Configuration configuration = StartupListener.reloadConfiguration();
+            if (configuration != null) {
+                register(StartupListener.getPropertiesLocation(), configuration);
+            }
+        } catch (RuntimeException e) {
+            log.error("Couldn't reload the configuration, keeping previous configuration", e);
+        }
+    }
+
+    private boolean collect(WatchKey key) {
+        Path directory = directories.get(key);
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                relevant = true;
+            } else if (directory != null) {
+                Path changed = directory.resolve((Path) event.context());
+                if (watchedDirectories.contains(directory) || watchedFiles.contains(changed)) {
+                    log.debug("Configuration changed: " + changed);
+                    relevant = true;
+                }
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+        return relevant;
+    }
+
+    private void register(String propertiesLocation, Configuration configuration) {
+        watchedFiles.clear();
+        watchedDirectories.clear();
+        watchFile(propertiesLocation);
+        if (configuration.getMimeTypesLocation() != null) {
+            watchFile(StartupListener.realPathHelper(configuration.getMimeTypesLocation()));
+        }
+        try {
+            watchDirectory(StartupListener.realPathHelper(configuration.getSubSDDir()));
+        } catch (SWORDException e) {
+            log.debug("No sub service documents to watch");
+        }
+    }
+
+    private void watchFile(String location) {
+        if (location == null) {
+            return;
+        }
+        Path file = new File(location).toPath().toAbsolutePath().normalize();
+        if (registerDirectory(file.getParent())) {
+            watchedFiles.add(file);
+        }
+    }
+
+    private void watchDirectory(String location) {
+        if (location == null) {
+            return;
+        }
+        Path directory = new File(location).toPath().toAbsolutePath().normalize();
+        if (registerDirectory(directory)) {
+            watchedDirectories.add(directory);
+        }
+    }
+
+    private boolean registerDirectory(Path directory) {
+        try {
+            if (!directories.containsValue(directory)) {
+                directories.put(directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), directory);
+                log.info("Watching " + directory + " for configuration changes");
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("Couldn't watch " + directory + " for configuration changes: " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.purl.sword.server.fedora.baseExtensions.DepositCollection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A directory of its own for the files of one deposit.
+ * <p/>
+ * Every deposit gets a new directory below the configured temp directory, so deposits that
+ * are processed at the same time can't overwrite each other's files. Closing the workspace
+ * deletes the directory with everything in it.
+ * <p/>
+ * The workspace of a deposit is kept as an attribute of the {@link DepositCollection}, so file
+ * handlers share it while processing the deposit. The server releases it when the file handler
+ * has finished, whether the deposit succeeded or not.
+ */
+public class DepositWorkspace implements Closeable {
+    private static final Logger log = Logger.getLogger(DepositWorkspace.class);
+    private static final String ATTRIBUTE = DepositWorkspace.class.getName();
+
+    private final File directory;
+    private final List<SpoolBuffer> buffers = new ArrayList<SpoolBuffer>();
+
+    /**
+     * Create a new workspace directory.
+     *
+     * @param tempDir The directory to create the workspace in
+     * @throws IOException if the directory can't be created
+     */
+    public DepositWorkspace(String tempDir) throws IOException {
+        File parent = new File(tempDir);
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create temp directory " + parent.getPath());
+        }
+        this.directory = Files.createTempDirectory(parent.toPath(), "deposit-").toFile();
+        log.debug("Created deposit workspace " + directory.getPath());
+    }
+
+    /**
+     * Get the workspace of a deposit, creating it on first use.
+     *
+     * @param deposit The deposit
+     * @param tempDir The directory to create the workspace in
+     * @return The workspace of the deposit
+     * @throws IOException if the workspace directory can't be created
+     */
+    public static DepositWorkspace get(DepositCollection deposit, String tempDir) throws IOException {
+        DepositWorkspace workspace = deposit.getAttribute(ATTRIBUTE, DepositWorkspace.class);
+        if (workspace == null) {
+            workspace = new DepositWorkspace(tempDir);
+            deposit.setAttribute(ATTRIBUTE, workspace);
+        }
+        return workspace;
+    }
+
+    /**
+     * Delete the workspace of a deposit if it has one.
+     *
+     * @param deposit The deposit
+     */
+    public static void release(DepositCollection deposit) {
+        DepositWorkspace workspace = deposit.getAttribute(ATTRIBUTE, DepositWorkspace.class);
+        if (workspace != null) {
+            deposit.removeAttribute(ATTRIBUTE);
+            workspace.close();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param name File name, only the last path segment is used
+     * @return A file in the workspace. It isn't created.
+     */
+    public File getFile(String name) {
+        return new File(directory, new File(name).getName());
+    }
+
+    /**
+     * Copy a stream into a file in the workspace. The stream isn't closed.
+     *
+     * @param in   The stream to copy
+     * @param name The file name
+     * @return The file
+     * @throws IOException if the stream can't be read or the file can't be written
+     */
+    public File spool(InputStream in, String name) throws IOException {
+        File file = getFile(name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            IOUtils.copy(in, out);
+        }
+        return file;
+    }
+
+    /**
+     * Make the content of a file available under a new name in the workspace. A hard link is
+     * created if the file system supports it, so nothing is copied at all. Otherwise the file is
+     * copied with {@link #transfer(File, File)}. Neither file may be changed in place afterwards,
+     * but both can be deleted independently.
+     *
+     * @param source The file to duplicate
+     * @param name   The file name of the duplicate
+     * @return The duplicate
+     * @throws IOException if the file can neither be linked nor copied
+     */
+    public File duplicate(File source, String name) throws IOException {
+        File target = getFile(name);
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return target;
+        } catch (UnsupportedOperationException e) {
+            log.debug("Hard links aren't supported for " + target.getPath() + ", copying " + source.getPath());
+        } catch (IOException e) {
+            log.debug("Couldn't link " + target.getPath() + " to " + source.getPath() + ", copying it: " + e.getMessage());
+        }
+        transfer(source, target);
+        return target;
+    }
+
+    /**
+     * Copy a file with {@link FileChannel#transferTo}, which leaves copying to the operating system
+     * instead of passing the bytes through a buffer on the heap.
+     *
+     * @param source The file to copy
+     * @param target The copy, it is replaced if it exists
+     * @throws IOException if the file can't be copied
+     */
+    public static void transfer(File source, File target) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    /**
+     * Copy a stream into a buffer which stays in memory up to the threshold and is written to a
+     * file in the workspace beyond it. The buffer is released with the workspace. The stream isn't closed.
+     *
+     * @param in        The stream to copy
+     * @param name      The file name used if the content exceeds the threshold
+     * @param threshold Number of bytes kept in memory
+     * @return The closed buffer
+     * @throws IOException if the stream can't be read or the file can't be written
+     */
+    public SpoolBuffer buffer(InputStream in, String name, long threshold) throws IOException {
+        SpoolBuffer buffer = SpoolBuffer.spool(in, threshold, getFile(name));
+        synchronized (buffers) {
+            buffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Release all buffers and delete the workspace directory and everything in it.
+     */
+    public void close() {
+        synchronized (buffers) {
+            for (SpoolBuffer buffer : buffers) {
+                buffer.release();
+            }
+            buffers.clear();
+        }
+        try {
+            FileUtils.deleteDirectory(directory);
+        } catch (IOException e) {
+            log.warn("Couldn't delete deposit workspace " + directory.getPath() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.purl.sword.base.ErrorCodes;
+import org.purl.sword.base.SWORDException;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computes message digests of everything read through it, so a deposit is checksummed
+ * in the same pass that stores or uploads it.
+ * <p/>
+ * Algorithm names are those of {@link MessageDigest}, which are also the checksum types
+ * Fedora knows. Null and "DISABLED" are ignored. The digests are final once one of them
+ * has been asked for, so read the stream to its end first.
+ */
+public class DigestingInputStream extends FilterInputStream {
+    public static final String DISABLED = "DISABLED";
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+    private final Map<String, byte[]> results = new HashMap<String, byte[]>();
+    private long count = 0;
+
+    /**
+     * @param in         The stream to read
+     * @param algorithms The digests to compute
+     * @throws IllegalArgumentException if an algorithm isn't available
+     */
+    public DigestingInputStream(InputStream in, String... algorithms) {
+        super(in);
+        for (String algorithm : algorithms) {
+            if (algorithm == null || DISABLED.equals(algorithm) || digests.containsKey(algorithm)) {
+                continue;
+            }
+            try {
+                digests.put(algorithm, MessageDigest.getInstance(algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Digest " + algorithm + " is not available", e);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            for (MessageDigest digest : digests.values()) {
+                digest.update((byte) b);
+            }
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int n = in.read(bytes, offset, length);
+        if (n > 0) {
+            for (MessageDigest digest : digests.values()) {
+                digest.update(bytes, offset, n);
+            }
+            count += n;
+        }
+        return n;
+    }
+
+    /**
+     * Skipped bytes are read, so they are part of the digests.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(bytes, 0, (int) Math.min(bytes.length, n - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Reset isn't supported");
+    }
+
+    /**
+     * @return Number of bytes read so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @param algorithm The digest algorithm
+     * @return True if the digest is computed
+     */
+    public boolean hasDigest(String algorithm) {
+        return algorithm != null && digests.containsKey(algorithm);
+    }
+
+    /**
+     * @param algorithm The digest algorithm
+     * @return The digest of everything read
+     * @throws IllegalArgumentException if the digest isn't computed
+     */
+    public synchronized byte[] getDigest(String algorithm) {
+        if (!hasDigest(algorithm)) {
+            throw new IllegalArgumentException("Digest " + algorithm + " is not computed");
+        }
+        byte[] result = results.get(algorithm);
+        if (result == null) {
+            result = digests.get(algorithm).digest();
+            results.put(algorithm, result);
+        }
+        return result.clone();
+    }
+
+    /**
+     * @param algorithm The digest algorithm
+     * @return The digest of everything read as lower case hex
+     */
+    public String getHexDigest(String algorithm) {
+        return DatatypeConverter.printHexBinary(getDigest(algorithm)).toLowerCase();
+    }
+
+    /**
+     * Compare a digest with an expected value given either as hex or as base64, as both are
+     * used for Content-MD5 by SWORD clients. Nothing is checked if no value is expected.
+     *
+     * @param algorithm The digest algorithm
+     * @param expected  The expected digest, may be null
+     * @throws SWORDException with error code {@link ErrorCodes#ERROR_CHECKSUM_MISMATCH} if the digests differ
+     */
+    public void verify(String algorithm, String expected) throws SWORDException {
+        if (expected == null || expected.trim().isEmpty()) {
+            return;
+        }
+        byte[] actual = getDigest(algorithm);
+        String value = expected.trim();
+        if (DatatypeConverter.printHexBinary(actual).equalsIgnoreCase(value)) {
+            return;
+        }
+        try {
+            if (Arrays.equals(actual, DatatypeConverter.parseBase64Binary(value))) {
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            // neither hex nor base64
+        }
+        throw new SWORDException(algorithm + " of the deposit is " + getHexDigest(algorithm) + " but "
+                + value + " was given", null, ErrorCodes.ERROR_CHECKSUM_MISMATCH);
+    }
+}
@@ -41,24 +41,25 @@ package org.purl.sword.server.fedora.utils;
   * Date: 18 October 2007 
   *
   * This is a simple class to find the mime type from the extension
-  * of a file.
+  * of a file. The lookup uses the MimeTypeIndex of the current configuration
+  * snapshot.
   */
 
 import org.apache.log4j.Logger;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
-import org.jdom.xpath.XPath;
+import org.purl.sword.base.SWORDException;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class FindMimeType {
 	private static final Logger LOG = Logger.getLogger(FindMimeType.class);
-
-	protected static Document _props = null;
-	protected static Document _mimeTypes = null;
+	private static final int SNIFF_LENGTH = 16;
 
 	/**
 	 * Get the mime type from the file extension
@@ -66,37 +67,107 @@ public class FindMimeType {
 	 * @return String the mime type
 	 */ 
 	public static String getMimeType(final String pExtension) {
-		LOG.debug("Loading " + StartupListener.getPropertiesLocation());
-		if (_mimeTypes == null) {
-			try {
-				SAXBuilder tBuilder = new SAXBuilder();
-				Document tProps = tBuilder.build(new FileInputStream(StartupListener.getPropertiesLocation()));
-				LOG.debug("Building props");
-				String tMimeTypesFilePath = tProps.getRootElement().getChild("files").getChild("mime-type").getText();
-				LOG.debug("Loading props file from " + tMimeTypesFilePath);
-                _mimeTypes = tBuilder.build(new FileInputStream(StartupListener.realPathHelper(tMimeTypesFilePath)));
-				LOG.debug("Built mime-types xml");
+		String tMimeType = getMimeTypeIndex().getMimeType(pExtension);
+		return (tMimeType == null) ? MimeTypeIndex.DEFAULT_MIME_TYPE : tMimeType;
+	}
+
+	/**
+	 * Get the extension of a file name. Compound extensions like tar.gz are returned as a whole
+	 * if they are listed in the mime types file.
+	 * @param pFileName The file name
+	 * @return String the extension without leading dot or null if there is no extension
+	 */
+	public static String getExtension(final String pFileName) {
+		return getMimeTypeIndex().getExtension(pFileName);
+	}
+
+	/**
+	 * Get the mime type of a file from its extension. If the extension is unknown and sniffing
+	 * is switched on in the properties file the mime type is guessed from the first bytes of the file.
+	 * @param pFile The file
+	 * @return String the mime type
+	 */
+	public static String getMimeType(final File pFile) {
+		MimeTypeIndex tIndex = getMimeTypeIndex();
+		String tExtension = tIndex.getExtension(pFile.getName());
+		String tMimeType = (tExtension == null) ? null : tIndex.getMimeType(tExtension);
+		if (tMimeType == null && isSniffMimeType()) {
+			tMimeType = sniffMimeType(pFile);
+		}
+		return (tMimeType == null) ? MimeTypeIndex.DEFAULT_MIME_TYPE : tMimeType;
+	}
+
+	/**
+	 * Get the mime type of a zip file entry from its extension. If the extension is unknown and sniffing
+	 * is switched on in the properties file the mime type is guessed from the first bytes of the entry.
+	 * @param pZipFile The open zip file
+	 * @param pEntry The entry
+	 * @return String the mime type
+	 */
+	public static String getMimeType(final ZipFile pZipFile, final ZipEntry pEntry) {
+		MimeTypeIndex tIndex = getMimeTypeIndex();
+		String tExtension = tIndex.getExtension(new File(pEntry.getName()).getName());
+		String tMimeType = (tExtension == null) ? null : tIndex.getMimeType(tExtension);
+		if (tMimeType == null && isSniffMimeType()) {
+			try (InputStream tIn = pZipFile.getInputStream(pEntry)) {
+				tMimeType = sniffMimeType(tIn);
 			} catch (IOException tIOExcpt) {
-				LOG.error("Couldn't open properties file " + tIOExcpt.toString());
-			} catch (JDOMException tJDOMExcpt) {
-				LOG.error("Properties file is invalid XML " + tJDOMExcpt.toString());
+				LOG.warn("Couldn't read " + pEntry.getName() + " to guess its mime type: " + tIOExcpt.getMessage());
 			}
-		}	
+		}
+		return (tMimeType == null) ? MimeTypeIndex.DEFAULT_MIME_TYPE : tMimeType;
+	}
 
+	/**
+	 * Guess the mime type of a file from its first bytes
+	 * @param pFile The file
+	 * @return String the mime type or null if it couldn't be recognised
+	 */
+	protected static String sniffMimeType(final File pFile) {
+		try (InputStream tIn = new FileInputStream(pFile)) {
+			return sniffMimeType(tIn);
+		} catch (IOException tIOExcpt) {
+			LOG.warn("Couldn't read " + pFile.getPath() + " to guess its mime type: " + tIOExcpt.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Guess the mime type of content from its first bytes
+	 * @param pInput The content, it isn't closed
+	 * @return String the mime type or null if it couldn't be recognised
+	 * @throws IOException if the content can't be read
+	 */
+	protected static String sniffMimeType(final InputStream pInput) throws IOException {
+		InputStream tIn = new BufferedInputStream(pInput);
+		tIn.mark(SNIFF_LENGTH);
+		byte[] tHeader = new byte[SNIFF_LENGTH];
+		int tLength = tIn.read(tHeader);
+		tIn.reset();
+		if (tLength >= 4 && tHeader[0] == 'P' && tHeader[1] == 'K' && tHeader[2] == 3 && tHeader[3] == 4) {
+			return "application/zip";
+		} else if (tLength >= 4 && tHeader[0] == '%' && tHeader[1] == 'P' && tHeader[2] == 'D' && tHeader[3] == 'F') {
+			return "application/pdf";
+		} else if (tLength >= 2 && (tHeader[0] & 0xff) == 0x1f && (tHeader[1] & 0xff) == 0x8b) {
+			return "application/x-gzip";
+		}
+		return URLConnection.guessContentTypeFromStream(tIn);
+	}
+
+	private static MimeTypeIndex getMimeTypeIndex() {
+		try {
+			return StartupListener.getConfiguration().getMimeTypeIndex();
+		} catch (SWORDException tSWORDExcpt) {
+			LOG.error("Couldn't load properties file " + tSWORDExcpt.toString());
+			return MimeTypeIndex.build(null);
+		}
+	}
 
+	private static boolean isSniffMimeType() {
 		try {
-			LOG.debug("Running XPath //type[./extension = '" + pExtension.toLowerCase() + "']/mime-type");
-			
-			Element tMimeTypeNode = (Element)XPath.selectSingleNode(_mimeTypes, "//type[./extension = '" + pExtension.toLowerCase() + "']/mime-type");
-			if (tMimeTypeNode == null) {
-				return "application/octet-stream";
-			} else {	
-				LOG.debug("sending mime-type " + tMimeTypeNode.getText() + " for extension " + pExtension);
-				return tMimeTypeNode.getText();
-			}	
-		} catch (JDOMException tJDOMExcpt) {
-			LOG.error("Couldn't find extension " + tJDOMExcpt.toString());
-			return "application/octet-stream";
+			return StartupListener.getConfiguration().isSniffMimeType();
+		} catch (SWORDException tSWORDExcpt) {
+			return false;
 		}
 	}
 }
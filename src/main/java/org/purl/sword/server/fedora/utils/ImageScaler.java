@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.log4j.Logger;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scales images down with ImageIO for derivatives like thumbnails.
+ * <p/>
+ * The image is decoded with source subsampling, so only about twice the pixels of the target
+ * size are ever held in memory, however large the original is. The decoded image is then
+ * halved with bilinear interpolation until it is close to the target size and resampled to it.
+ * <p/>
+ * Derivatives are produced on a pool with one thread per core shared by all deposits. It is
+ * created on first use and shut down with the web application by {@link StartupListener}.
+ */
+public final class ImageScaler {
+    private static final Logger log = Logger.getLogger(ImageScaler.class);
+
+    private static ExecutorService executor;
+    private static boolean shutdown = false;
+
+    private ImageScaler() {
+    }
+
+    /**
+     * Decode an image so that its longer edge is at most maxSize pixels.
+     *
+     * @param in      The encoded image, it isn't closed
+     * @param maxSize Maximum width and height of the result
+     * @return The scaled image or null if the image isn't larger than maxSize
+     * @throws IOException if the image can't be decoded
+     */
+    public static BufferedImage scale(InputStream in, int maxSize) throws IOException {
+        ImageInputStream imageIn = new MemoryCacheImageInputStream(in);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageIn);
+            if (!readers.hasNext()) {
+                throw new IIOException("No image reader for the image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageIn, true, true);
+                int longEdge = Math.max(reader.getWidth(0), reader.getHeight(0));
+                if (longEdge <= maxSize) {
+                    return null;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                // keep twice the target resolution, so resampling still has pixels to average
+                int subsampling = longEdge / (2 * maxSize);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return resample(reader.read(0, param), maxSize);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            imageIn.close();
+        }
+    }
+
+    /**
+     * Resample an image so that its longer edge is maxSize pixels.
+     *
+     * @param image   The image
+     * @param maxSize Length of the longer edge of the result
+     * @return The resampled image
+     */
+    public static BufferedImage resample(BufferedImage image, int maxSize) {
+        double factor = (double) maxSize / Math.max(image.getWidth(), image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        if (current.getWidth() != width || current.getHeight() != height) {
+            current = draw(current, width, height);
+        }
+        return current;
+    }
+
+    /**
+     * Encode an image as JPEG.
+     *
+     * @param image   The image
+     * @param quality Compression quality between 0 and 1
+     * @param file    The file to write
+     * @throws IOException if the file can't be written
+     */
+    public static void writeJpeg(BufferedImage image, float quality, File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IIOException("No JPEG image writer available");
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            if (out == null) {
+                throw new IOException("Couldn't write " + file.getPath());
+            }
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(0f, Math.min(1f, quality)));
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static BufferedImage draw(BufferedImage image, int width, int height) {
+        int type = (image.getType() == BufferedImage.TYPE_BYTE_GRAY) ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * @return The pool derivatives are produced on
+     * @throws RejectedExecutionException if the web application is shutting down
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Image scaling has been shut down");
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final ThreadFactory defaults = Executors.defaultThreadFactory();
+                private final AtomicInteger number = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = defaults.newThread(r);
+                    thread.setName("sword-image-" + number.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stop the pool and give running derivatives a few seconds to finish.
+     */
+    static void shutdown() {
+        ExecutorService current;
+        synchronized (ImageScaler.class) {
+            shutdown = true;
+            current = executor;
+            executor = null;
+        }
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Image scaling didn't finish in time");
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -189,6 +189,29 @@ public class METSObject {
 		return tDatastreamList;
 	}
 
+	/**
+	 * Returns the locations of the files in the METS:fileSec that aren't URLs, in the order
+	 * of the document and without duplicates.
+	 *
+	 * @return List<String> the xlink:href of the local files
+	 * @throws JDOMException  if there was a problem processing the METS document
+	 */
+@SuppressWarnings(value={"unchecked"})
+	public List<String> getLocalFileLocations() throws JDOMException {
+		List<String> tLocations = new ArrayList<String>();
+
+		XPath tPath = XPath.newInstance("//METS:file/METS:FLocat[@LOCTYPE != 'URL']");
+		tPath.addNamespace(METS);
+		for (Element tFLocatEl : (List<Element>)tPath.selectNodes(_METSDoc)) {
+			String tLocation = tFLocatEl.getAttributeValue("href", XLINK);
+			if (tLocation != null && !tLocations.contains(tLocation)) {
+				tLocations.add(tLocation);
+			}
+		}
+
+		return tLocations;
+	}
+
 	/** 
 	 * Returns the files in the METS:fileSec as a list of datastream objects
 	 *
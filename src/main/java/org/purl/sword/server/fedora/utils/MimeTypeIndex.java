@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.jdom.Document;
+import org.jdom.Element;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable lookup table from file extension to mime type built from the mime types file.
+ * <p/>
+ * Extensions may contain dots, e.g. <code>tar.gz</code>. When looking up a file name the
+ * longest known extension wins, so <code>data.tar.gz</code> is matched by <code>tar.gz</code>
+ * rather than by <code>gz</code>.
+ */
+public final class MimeTypeIndex {
+    public static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    private static final MimeTypeIndex EMPTY = new MimeTypeIndex(Collections.<String, String>emptyMap());
+
+    private final Map<String, String> mimeTypes;
+
+    private MimeTypeIndex(Map<String, String> mimeTypes) {
+        this.mimeTypes = mimeTypes;
+    }
+
+    /**
+     * Build the index from a mime types document. If an extension is listed more than
+     * once the first mime type is used.
+     *
+     * @param mimeTypesDocument The parsed mime types file, may be null
+     * @return The index
+     */
+    @SuppressWarnings(value = {"unchecked"})
+    public static MimeTypeIndex build(Document mimeTypesDocument) {
+        if (mimeTypesDocument == null) {
+            return EMPTY;
+        }
+        Map<String, String> mimeTypes = new HashMap<String, String>();
+        for (Element type : (List<Element>) mimeTypesDocument.getRootElement().getChildren("type")) {
+            String mimeType = type.getChildText("mime-type");
+            if (mimeType == null) {
+                continue;
+            }
+            for (Element extension : (List<Element>) type.getChildren("extension")) {
+                String key = extension.getText().toLowerCase(Locale.ENGLISH);
+                if (!mimeTypes.containsKey(key)) {
+                    mimeTypes.put(key, mimeType);
+                }
+            }
+        }
+        return new MimeTypeIndex(Collections.unmodifiableMap(mimeTypes));
+    }
+
+    /**
+     * @param extension The file extension without leading dot
+     * @return The mime type or null if the extension is unknown
+     */
+    public String getMimeType(String extension) {
+        return mimeTypes.get(extension.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Find the extension of a file name. The longest extension listed in the mime types file
+     * is returned. If none of the possible extensions is listed the part after the last dot is returned.
+     *
+     * @param fileName The file name
+     * @return The extension without leading dot or null if the file name has no extension
+     */
+    public String getExtension(String fileName) {
+        int dot = fileName.indexOf('.', 1);
+        if (dot == -1) {
+            return null;
+        }
+        while (dot != -1) {
+            if (mimeTypes.containsKey(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH))) {
+                return fileName.substring(dot + 1);
+            }
+            dot = fileName.indexOf('.', dot + 1);
+        }
+        return fileName.substring(fileName.lastIndexOf('.') + 1);
+    }
+
+    public int size() {
+        return mimeTypes.size();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded ring buffer between a thread reading a source stream and a thread consuming it.
+ * <p/>
+ * The source is copied into the buffer by a pump thread while the consumer reads from
+ * {@link #getInputStream()}. The pump waits while the buffer is full and the consumer waits
+ * while it is empty, so neither side holds more than the buffer size in memory. Errors reading
+ * the source are thrown to the consumer. Closing the consumer stream stops the pump.
+ * <p/>
+ * Pump threads are daemon threads and are stopped with the web application by {@link StartupListener}.
+ */
+public class RingBufferPipe {
+    private static final Logger log = Logger.getLogger(RingBufferPipe.class);
+
+    private static ExecutorService pumps;
+    private static boolean shutdown = false;
+
+    private final byte[] ring;
+    private int head;
+    private int count;
+    private boolean writerClosed;
+    private boolean readerClosed;
+    private IOException failure;
+
+    /**
+     * @param capacity Size of the ring buffer in bytes
+     */
+    public RingBufferPipe(int capacity) {
+        this.ring = new byte[Math.max(1, capacity)];
+    }
+
+    /**
+     * Start copying a stream into the buffer on a pump thread. The source is closed when
+     * it has been read completely or the consumer stream has been closed.
+     *
+     * @param source The stream to copy
+     * @throws RejectedExecutionException if the web application is shutting down
+     */
+    public void pump(final InputStream source) {
+        pumpExecutor().execute(new Runnable() {
+            public void run() {
+                IOException error = null;
+                try {
+                    byte[] bytes = new byte[Math.min(ring.length, 64 * 1024)];
+                    int read;
+                    while ((read = source.read(bytes)) != -1) {
+                        write(bytes, 0, read);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    closeWriter(error);
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        log.debug("Couldn't close pumped stream: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The consumer side of the buffer
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (RingBufferPipe.this.read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return RingBufferPipe.this.read(bytes, offset, length);
+            }
+
+            @Override
+            public int available() {
+                synchronized (RingBufferPipe.this) {
+                    return count;
+                }
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+    }
+
+    /**
+     * Add bytes to the buffer, waiting while it is full.
+     *
+     * @throws IOException if the consumer has closed its stream or the thread is interrupted
+     */
+    synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            while (count == ring.length && !readerClosed) {
+                await();
+            }
+            if (readerClosed) {
+                throw new IOException("Reader of the pipe has been closed");
+            }
+            int tail = (head + count) % ring.length;
+            int n = Math.min(length, Math.min(ring.length - count, ring.length - tail));
+            System.arraycopy(bytes, offset, ring, tail, n);
+            count += n;
+            offset += n;
+            length -= n;
+            notifyAll();
+        }
+    }
+
+    synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (count == 0 && !writerClosed && !readerClosed) {
+            await();
+        }
+        if (readerClosed) {
+            throw new IOException("Pipe has been closed");
+        }
+        if (count == 0) {
+            if (failure != null) {
+                throw new IOException("Couldn't read the source of the pipe: " + failure.getMessage(), failure);
+            }
+            return -1;
+        }
+        int n = Math.min(length, Math.min(count, ring.length - head));
+        System.arraycopy(ring, head, bytes, offset, n);
+        head = (head + n) % ring.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    synchronized void closeWriter(IOException error) {
+        writerClosed = true;
+        failure = error;
+        notifyAll();
+    }
+
+    synchronized void closeReader() {
+        readerClosed = true;
+        count = 0;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pipe");
+        }
+    }
+
+    private static synchronized ExecutorService pumpExecutor() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Pipe pumps have been shut down");
+        }
+        if (pumps == null) {
+            pumps = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final ThreadFactory defaults = Executors.defaultThreadFactory();
+                private final AtomicInteger number = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = defaults.newThread(r);
+                    thread.setName("sword-stream-" + number.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pumps;
+    }
+
+    /**
+     * Stop all pumps. Streams still being copied fail on the consumer side.
+     */
+    static void shutdown() {
+        ExecutorService current;
+        synchronized (RingBufferPipe.class) {
+            shutdown = true;
+            current = pumps;
+            pumps = null;
+        }
+        if (current != null) {
+            current.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the content of a deposit in memory as long as it is smaller than a threshold and
+ * writes it to a file once it gets larger.
+ * <p/>
+ * Small deposits like metadata documents never touch the disk this way. The memory is taken
+ * from a shared pool of fixed size chunks, which get back into the pool when the buffer is
+ * released. Write the content, close the buffer and then read it as often as needed with
+ * {@link #openStream()}.
+ */
+public class SpoolBuffer extends OutputStream {
+    static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final Queue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final long threshold;
+    private final File overflowFile;
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private OutputStream fileOut;
+    private boolean onDisk;
+    private boolean closed;
+    private boolean released;
+    private long length;
+
+    /**
+     * @param threshold    Number of bytes kept in memory, 0 writes everything to the file
+     * @param overflowFile The file to write the content to once it exceeds the threshold
+     */
+    public SpoolBuffer(long threshold, File overflowFile) {
+        this.threshold = Math.max(0, threshold);
+        this.overflowFile = overflowFile;
+    }
+
+    /**
+     * Copy a stream into a new buffer and close the buffer. The stream isn't closed.
+     *
+     * @param in           The stream to copy
+     * @param threshold    Number of bytes kept in memory
+     * @param overflowFile The file to write the content to once it exceeds the threshold
+     * @return The closed buffer
+     * @throws IOException if the stream can't be read or the file can't be written
+     */
+    public static SpoolBuffer spool(InputStream in, long threshold, File overflowFile) throws IOException {
+        SpoolBuffer buffer = new SpoolBuffer(threshold, overflowFile);
+        try {
+            byte[] bytes = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                buffer.write(bytes, 0, read);
+            }
+            buffer.close();
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        return buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int count) throws IOException {
+        if (closed) {
+            throw new IOException("Spool buffer is closed");
+        }
+        if (!onDisk && length + count > threshold) {
+            overflow();
+        }
+        if (onDisk) {
+            fileOut.write(bytes, offset, count);
+            length += count;
+            return;
+        }
+        while (count > 0) {
+            int index = (int) (length / CHUNK_SIZE);
+            int position = (int) (length % CHUNK_SIZE);
+            if (index == chunks.size()) {
+                chunks.add(takeChunk());
+            }
+            int n = Math.min(count, CHUNK_SIZE - position);
+            System.arraycopy(bytes, offset, chunks.get(index), position, n);
+            offset += n;
+            count -= n;
+            length += n;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fileOut != null) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
+    /**
+     * @return True if the content is held in memory, false if it was written to the file
+     */
+    public synchronized boolean isInMemory() {
+        return !onDisk;
+    }
+
+    /**
+     * @return The file holding the content or null if the content is held in memory
+     */
+    public synchronized File getFile() {
+        return onDisk ? overflowFile : null;
+    }
+
+    /**
+     * @return The name of the file the content is or would be written to
+     */
+    public String getName() {
+        return overflowFile.getName();
+    }
+
+    /**
+     * @return Number of bytes written to the buffer
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Read the content of the buffer. The buffer must be closed.
+     *
+     * @return A new stream over the content
+     * @throws IOException if the buffer is still open, has been released or the file can't be opened
+     */
+    public synchronized InputStream openStream() throws IOException {
+        if (!closed) {
+            throw new IOException("Spool buffer must be closed before it is read");
+        }
+        if (released) {
+            throw new IOException("Spool buffer has been released");
+        }
+        if (onDisk) {
+            return new FileInputStream(overflowFile);
+        }
+        return new ChunkInputStream(new ArrayList<byte[]>(chunks), length);
+    }
+
+    /**
+     * Give the memory back to the pool or delete the file. Streams opened before must not be
+     * read any more.
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        closed = true;
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                // nothing to save anyway
+            }
+            fileOut = null;
+        }
+        if (onDisk) {
+            overflowFile.delete();
+        }
+        returnChunks();
+    }
+
+    private void overflow() throws IOException {
+        fileOut = new BufferedOutputStream(new FileOutputStream(overflowFile), CHUNK_SIZE);
+        onDisk = true;
+        long remaining = length;
+        for (byte[] chunk : chunks) {
+            int n = (int) Math.min(remaining, CHUNK_SIZE);
+            fileOut.write(chunk, 0, n);
+            remaining -= n;
+        }
+        returnChunks();
+    }
+
+    private void returnChunks() {
+        for (byte[] chunk : chunks) {
+            if (pooled.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                pool.offer(chunk);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+        chunks.clear();
+    }
+
+    private static byte[] takeChunk() {
+        byte[] chunk = pool.poll();
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        pooled.decrementAndGet();
+        return chunk;
+    }
+
+    private static class ChunkInputStream extends InputStream {
+        private final List<byte[]> chunks;
+        private final long length;
+        private long position;
+
+        ChunkInputStream(List<byte[]> chunks, long length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            if (position >= length) {
+                return -1;
+            }
+            byte b = chunks.get((int) (position / CHUNK_SIZE))[(int) (position % CHUNK_SIZE)];
+            position++;
+            return b & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int read = 0;
+            while (read < count && position < length) {
+                int chunkPosition = (int) (position % CHUNK_SIZE);
+                int n = (int) Math.min(Math.min(count - read, CHUNK_SIZE - chunkPosition), length - position);
+                System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), chunkPosition, bytes, offset + read, n);
+                read += n;
+                position += n;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, length - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+    }
+}
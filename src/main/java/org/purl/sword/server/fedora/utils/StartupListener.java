@@ -37,17 +37,31 @@
 package org.purl.sword.server.fedora.utils;
 
 import org.apache.log4j.Logger;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraClientPool;
+import org.purl.sword.server.fedora.fedoraObjects.FedoraUploadClient;
+import org.purl.sword.server.fedora.fedoraObjects.PidPool;
+import org.purl.sword.server.fedora.fedoraObjects.RepositoryDescriptor;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.apache.log4j.xml.DOMConfigurator.configure;
 
 /**
  * This Listener sets up the log4j configuration and reads in the properties file
- * for the application.
+ * for the application. The properties file is parsed once into an immutable
+ * {@link Configuration} snapshot which is shared by all request threads.
+ * <p/>
+ * The properties file, the mime types file and the sub service document directory
+ * are watched for changes. A changed configuration is loaded in the background and
+ * replaces the current snapshot once it has been parsed successfully. If it can't be
+ * parsed the previous snapshot stays in use. Requests passing through
+ * {@link ConfigurationSnapshotFilter} keep the snapshot they started with.
  * <p/>
  * <p/>
  * The available context parameters are shown below (these are also the defaults):
@@ -62,6 +76,10 @@ import static org.apache.log4j.xml.DOMConfigurator.configure;
  *   <param-name>project.properties</param-name>
  *   <param-value>WEB-INF/properties.xml</param-value>
  * </context-param>
+ * <context-param>
+ *   <param-name>watch-configuration</param-name>
+ *   <param-value>true</param-value>
+ * </context-param>
  * }
  * </pre>
  * If you give relative file names, the path is resolved against the
@@ -85,7 +103,10 @@ public class StartupListener implements ServletContextListener {
 
     private static ServletContext context;
     private static String propertiesLocation;
-    private final Logger log = Logger.getLogger(StartupListener.class);
+    private static volatile Configuration configuration;
+    private static final ThreadLocal<Configuration> requestConfiguration = new ThreadLocal<Configuration>();
+    private static final Logger log = Logger.getLogger(StartupListener.class);
+    private ConfigurationWatcher watcher;
 
     /**
      * Get the path to the configured properties file, set during application startup.
@@ -96,6 +117,73 @@ public class StartupListener implements ServletContextListener {
         return propertiesLocation;
     }
 
+    /**
+     * Get the configuration snapshot parsed from the properties file.
+     * <p/>
+     * The snapshot is created during application startup. If it isn't available yet
+     * (e.g. the properties could not be parsed at startup) another attempt is made.
+     * Within a request the snapshot bound by {@link #bindConfiguration()} is returned.
+     *
+     * @return The current configuration snapshot
+     * @throws SWORDException if the properties file can't be loaded
+     */
+    public static Configuration getConfiguration() throws SWORDException {
+        Configuration current = requestConfiguration.get();
+        if (current != null) {
+            return current;
+        }
+        current = configuration;
+        if (current == null) {
+            synchronized (StartupListener.class) {
+                current = configuration;
+                if (current == null) {
+                    current = Configuration.load(propertiesLocation);
+                    configuration = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Bind the current configuration snapshot to the calling thread, so that it
+     * is used until {@link #unbindConfiguration()} is called even if the configuration
+     * is reloaded in the meantime.
+     *
+     * @throws SWORDException if the properties file can't be loaded
+     */
+    public static void bindConfiguration() throws SWORDException {
+        requestConfiguration.remove();
+        requestConfiguration.set(getConfiguration());
+    }
+
+    /**
+     * Release the configuration snapshot bound to the calling thread.
+     */
+    public static void unbindConfiguration() {
+        requestConfiguration.remove();
+    }
+
+    /**
+     * Load the properties file again and publish it as the current snapshot.
+     *
+     * @return The new snapshot or null if it couldn't be loaded and the previous one is kept
+     */
+    static Configuration reloadConfiguration() {
+        try {
+            Configuration reloaded = Configuration.load(propertiesLocation);
+            configuration = reloaded;
+            log.info("Reloaded properties from: " + propertiesLocation);
+            return reloaded;
+        } catch (SWORDException e) {
+            log.error("Couldn't reload properties, keeping previous configuration: " + e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            log.error("Couldn't reload properties, keeping previous configuration", e);
+            return null;
+        }
+    }
+
     /**
      * Helper method to access the web application context getRealPath() method.
      *
@@ -108,7 +196,7 @@ public class StartupListener implements ServletContextListener {
 
     /**
      * Saves servlet context and properties file location for later access.
-     * Initializes log4j system.
+     * Initializes log4j system, loads the configuration snapshot and starts watching it for changes.
      *
      * @param sce Context event as raised by the servlet container.
      * @see javax.servlet.ServletContextListener
@@ -117,15 +205,36 @@ public class StartupListener implements ServletContextListener {
         context = sce.getServletContext();
         initLog4j();
         initPropertiesLocation();
+        initConfiguration();
+        initFedoraClientPool();
+        UploadCacheMonitor.register();
+        AuthenticationCacheMonitor.register();
+        initWatcher();
     }
 
     /**
-     * No op. Nothing needs to be destroyed on context destruction.
+     * Stops watching the configuration for changes, stops background tasks and streaming uploads, saves reserved
+     * PIDs and closes the pooled Fedora clients and connections.
      *
      * @param sce Context event as raised by the servlet container.
      * @see javax.servlet.ServletContextListener
      */
     public void contextDestroyed(ServletContextEvent sce) {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+        UploadCacheMonitor.unregister();
+        AuthenticationCacheMonitor.unregister();
+        UploadCache.shutdown();
+        AuthenticationCache.shutdown();
+        BackgroundExecutor.shutdown();
+        RingBufferPipe.shutdown();
+        ZipFileAccess.shutdown();
+        ImageScaler.shutdown();
+        PidPool.shutdown();
+        FedoraClientPool.shutdown();
+        FedoraUploadClient.shutdown();
     }
 
     private String getAbsolutePathToResource(String resourcePath) throws Exception {
@@ -174,6 +283,68 @@ public class StartupListener implements ServletContextListener {
         }
     }
 
+    private void initConfiguration() {
+        try {
+            configuration = Configuration.load(propertiesLocation);
+        } catch (SWORDException e) {
+            log.fatal("Fatal Error loading properties: " + e.getMessage());
+        } catch (RuntimeException e) {
+            log.fatal("Fatal Error loading properties", e);
+        }
+    }
+
+    private void initFedoraClientPool() {
+        if (configuration == null) {
+            return;
+        }
+        final FedoraClientPool pool;
+        try {
+            pool = FedoraClientPool.getInstance(new XMLProperties(configuration));
+            pool.prefill(configuration.getFedoraClientPoolSize());
+        } catch (SWORDException e) {
+            log.error("Couldn't create Fedora clients: " + e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            log.error("Couldn't create Fedora clients: " + e.getMessage());
+            return;
+        }
+        // works if Fedora allows anonymous access, otherwise the first deposit asks;
+        // done in the background so that an unreachable Fedora doesn't hold up the deployment
+        try {
+            BackgroundExecutor.execute(new Runnable() {
+                public void run() {
+                    FedoraClientPool.Client client = null;
+                    try {
+                        client = pool.lease(null, null);
+                        RepositoryDescriptor.probe(pool.getFedoraURL(), client.getAPIA());
+                    } catch (RuntimeException e) {
+                        log.info("Couldn't ask Fedora for its version at startup: " + e.getMessage());
+                    } finally {
+                        if (client != null) {
+                            client.close();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.info("Not asking Fedora for its version, the web application is shutting down");
+        }
+    }
+
+    private void initWatcher() {
+        if (configuration == null
+                || !Boolean.valueOf(orDefaultIfNull(context.getInitParameter("watch-configuration"), "true"))) {
+            log.info("Not watching properties for changes");
+            return;
+        }
+        try {
+            watcher = new ConfigurationWatcher(propertiesLocation, configuration);
+            watcher.start();
+        } catch (IOException e) {
+            log.warn("Couldn't watch properties for changes: " + e.getMessage());
+        }
+    }
+
     private String orDefaultIfNull(String s, String defaultValue) {
         return (s == null) ? defaultValue : s;
     }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.log4j.Logger;
+import org.jdom.Document;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.purl.sword.base.SWORDException;
+import org.purl.sword.server.fedora.baseExtensions.ServiceDocumentIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of parsed sub service documents.
+ * <p/>
+ * Entries are keyed by location and are parsed again when the modification time of
+ * the file changes. Locations that don't exist are remembered for a while, so that
+ * requests for unknown sub service documents don't touch the file system every time.
+ * A cache belongs to a configuration snapshot and is discarded when the configuration
+ * is reloaded.
+ */
+public class SubServiceDocumentCache {
+    private static final Logger log = Logger.getLogger(SubServiceDocumentCache.class);
+
+    public static final int DEFAULT_SIZE = 64;
+    public static final int DEFAULT_MISSING_SIZE = 1024;
+    public static final long DEFAULT_MISSING_TTL_MILLIS = 60 * 1000;
+
+    private final Map<String, Entry> entries;
+    private final Map<String, Long> missing;
+    private final long missingTTL;
+
+    public SubServiceDocumentCache() {
+        this(DEFAULT_SIZE, DEFAULT_MISSING_SIZE, DEFAULT_MISSING_TTL_MILLIS);
+    }
+
+    public SubServiceDocumentCache(int maxSize, int maxMissing, long missingTTLMillis) {
+        this.entries = lruMap(maxSize);
+        this.missing = lruMap(maxMissing);
+        this.missingTTL = missingTTLMillis;
+    }
+
+    /**
+     * Get a sub service document, parsing it if it isn't cached or has been modified.
+     *
+     * @param location The location of the sub service document as requested
+     * @param file     The file the sub service document is stored in
+     * @return The cached entry
+     * @throws SWORDException if the file doesn't exist or can't be parsed
+     */
+    public Entry get(String location, File file) throws SWORDException {
+        Long missingUntil = missing.get(location);
+        if (missingUntil != null) {
+            if (missingUntil > System.currentTimeMillis()) {
+                throw notFound(location);
+            }
+            missing.remove(location);
+        }
+
+        long lastModified = file.lastModified();
+        if (lastModified == 0L && !file.isFile()) {
+            entries.remove(location);
+            missing.put(location, System.currentTimeMillis() + missingTTL);
+            throw notFound(location);
+        }
+
+        Entry entry = entries.get(location);
+        if (entry == null || entry.lastModified != lastModified) {
+            entry = new Entry(new ServiceDocumentIndex(parse(file).getRootElement()), lastModified);
+            entries.put(location, entry);
+        }
+        return entry;
+    }
+
+    private Document parse(File file) throws SWORDException {
+        log.debug("Loading sub service document " + file.getPath());
+        try {
+            return new SAXBuilder().build(file);
+        } catch (IOException e) {
+            String message = "IO Exception occured on doServiceDocument method due to a problem accessing the properties file";
+            log.error(message);
+            log.error(e.toString());
+            throw new SWORDException(message, e);
+        } catch (JDOMException e) {
+            String message = "JDOM Exception occured on doServiceDocument method due to a problem accessing the properties file";
+            log.error(message);
+            log.error(e.toString());
+            throw new SWORDException(message, e);
+        }
+    }
+
+    private SWORDException notFound(String location) {
+        String message = "Couldn't find sub service document " + location;
+        log.debug(message);
+        return new SWORDException(message);
+    }
+
+    private static <V> Map<String, V> lruMap(final int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     * A parsed sub service document and the service documents rendered from it.
+     */
+    public static final class Entry {
+        private final ServiceDocumentIndex index;
+        private final long lastModified;
+        private final ServiceDocumentCache renderedDocuments = new ServiceDocumentCache();
+
+        private Entry(ServiceDocumentIndex index, long lastModified) {
+            this.index = index;
+            this.lastModified = lastModified;
+        }
+
+        public ServiceDocumentIndex getIndex() {
+            return index;
+        }
+
+        public ServiceDocumentCache getRenderedDocuments() {
+            return renderedDocuments;
+        }
+    }
+}
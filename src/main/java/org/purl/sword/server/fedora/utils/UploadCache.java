@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2014, SLUB Dresden
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  - Redistributions of source code must retain the above
+ *    copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ *  - Neither the name of the Centre for Advanced Software and
+ *    Intelligent Systems (CASIS) nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+ * TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+package org.purl.sword.server.fedora.utils;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of recent uploads to Fedora, keyed by the digest and length of the content.
+ * <p/>
+ * When a datastream with the same content is deposited again while the earlier upload is
+ * remembered, the reference Fedora returned for that upload is used instead of sending the
+ * content again. Fedora keeps uploaded content only for a while (uploadStorageMinutes in
+ * fedora.fcfg, 5 minutes by default), so <code>ttl</code> must stay below that. Entries whose
+ * reference turned out to be gone are removed with {@link #invalidate(String)}.
+ * <p/>
+ * Hits and misses are counted for monitoring, see {@link UploadCacheMonitor}. There is one cache
+ * per Fedora instance, which outlives configuration reloads; a reload only changes its settings.
+ */
+public class UploadCache {
+    public static final long DEFAULT_TTL_MILLIS = 240 * 1000;
+
+    private static final ConcurrentMap<String, UploadCache> caches = new ConcurrentHashMap<String, UploadCache>();
+
+    private final Map<String, CachedUpload> entries;
+    private volatile int maxSize;
+    private volatile long ttl;
+    private volatile String algorithm;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize   Maximum number of remembered uploads, 0 turns the cache off
+     * @param ttlMillis How long an upload is remembered
+     * @param algorithm The digest algorithm identifying content
+     */
+    public UploadCache(final int maxSize, long ttlMillis, String algorithm) {
+        this.maxSize = maxSize;
+        this.ttl = ttlMillis;
+        this.algorithm = algorithm;
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, CachedUpload>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUpload> eldest) {
+                return size() > UploadCache.this.maxSize;
+            }
+        });
+    }
+
+    /**
+     * Get the cache for a Fedora instance and apply the current settings to it. Remembered uploads
+     * and counters are kept when the settings change.
+     *
+     * @param fedoraURL The Fedora instance
+     * @param maxSize   Maximum number of remembered uploads, 0 turns the cache off
+     * @param ttlMillis How long an upload is remembered
+     * @param algorithm The digest algorithm identifying content
+     * @return The cache of the Fedora instance
+     */
+    public static UploadCache getInstance(String fedoraURL, int maxSize, long ttlMillis, String algorithm) {
+        UploadCache cache = caches.get(fedoraURL);
+        if (cache == null) {
+            UploadCache created = new UploadCache(maxSize, ttlMillis, algorithm);
+            cache = caches.putIfAbsent(fedoraURL, created);
+            if (cache == null) {
+                return created;
+            }
+        }
+        cache.configure(maxSize, ttlMillis, algorithm);
+        return cache;
+    }
+
+    /**
+     * Forget the caches of all Fedora instances.
+     */
+    static void shutdown() {
+        caches.clear();
+    }
+
+    /**
+     * Change the settings. Uploads above a smaller maximum size are evicted, least recently used first.
+     * Uploads remembered with another algorithm are no longer found.
+     */
+    void configure(int maxSize, long ttlMillis, String algorithm) {
+        this.ttl = ttlMillis;
+        this.algorithm = algorithm;
+        if (this.maxSize == maxSize) {
+            return;
+        }
+        this.maxSize = maxSize;
+        synchronized (entries) {
+            Iterator<CachedUpload> iterator = entries.values().iterator();
+            while (entries.size() > Math.max(0, maxSize) && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return True if uploads are remembered
+     */
+    public boolean isEnabled() {
+        return maxSize > 0 && ttl > 0;
+    }
+
+    /**
+     * @return The digest algorithm identifying content
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param fedoraURL The Fedora instance the content was uploaded to
+     * @param digest    The hex digest of the content
+     * @param length    The length of the content
+     * @return The reference of an earlier upload of the content or null
+     */
+    public String get(String fedoraURL, String digest, long length) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = key(fedoraURL, digest, length);
+        CachedUpload entry = entries.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.reference;
+    }
+
+    /**
+     * Remember an upload.
+     *
+     * @param fedoraURL The Fedora instance the content was uploaded to
+     * @param digest    The hex digest of the content
+     * @param length    The length of the content
+     * @param reference The reference Fedora returned for the upload
+     */
+    public void put(String fedoraURL, String digest, long length, String reference) {
+        if (!isEnabled() || digest == null || reference == null) {
+            return;
+        }
+        entries.put(key(fedoraURL, digest, length), new CachedUpload(reference, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Forget an upload, e.g. because Fedora didn't know its reference any more.
+     *
+     * @param reference The reference Fedora returned for the upload
+     */
+    public void invalidate(String reference) {
+        synchronized (entries) {
+            Iterator<CachedUpload> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().reference.equals(reference)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Share of lookups that found an earlier upload, 0 if there were none
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    private String key(String fedoraURL, String digest, long length) {
+        return fedoraURL + " " + algorithm + ":" + digest.toLowerCase() + ":" + length;
+    }
+
+    private static final class CachedUpload {
+        private final String reference;
+        private final long expires;
+
+        private CachedUpload(String reference, long expires) {
+            this.reference = reference;
+            this.expires = expires;
+        }
+    }
+}
@@ -44,70 +44,57 @@ package org.purl.sword.server.fedora.utils;
   * add the access methods to this class rathern than getting the XML Document its self. This ensures 
   * all property access is in one place and can be changed to use another technology.
   *
+  * The properties are read from the Configuration snapshot created by StartupListener so
+  * creating an instance of this class doesn't touch the properties file.
+  *
   */
 
 import org.apache.log4j.Logger;
 import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
-import org.jdom.xpath.XPath;
 import org.purl.sword.base.Collection;
 import org.purl.sword.base.SWORDException;
 import org.purl.sword.base.ServiceDocument;
 import org.purl.sword.base.Workspace;
+import org.purl.sword.server.fedora.baseExtensions.CachedServiceDocument;
 import org.purl.sword.server.fedora.baseExtensions.XMLServiceDocument;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class XMLProperties {
 	private static final Logger LOG = Logger.getLogger(XMLProperties.class);
 	protected Document _props = null;
+	protected Configuration _config = null;
 
 	/**
-	 * This builds the properties object and calls StartupServlet to get the Properties location
+	 * This builds the properties object from the configuration snapshot loaded by StartupListener
 	 */
 	public XMLProperties() {
-		SAXBuilder tBuilder = new SAXBuilder();
-		LOG.debug("Loading " + StartupListener.getPropertiesLocation());
 		try {
-			_props = tBuilder.build(new FileInputStream(StartupListener.getPropertiesLocation()));
-		} catch (IOException tIOExcpt) {
-			LOG.error("Couldn't open properties file " + tIOExcpt.toString());
-		} catch (JDOMException tJDOMExcpt) {
-			LOG.error("Properties file is invalid XML " + tJDOMExcpt.toString());
+			this.setConfiguration(StartupListener.getConfiguration());
+		} catch (SWORDException tSWORDExcpt) {
+			LOG.error("Couldn't load properties file " + tSWORDExcpt.toString());
 		}
 	}
 
+	/**
+	 * This builds the properties object from the supplied configuration snapshot
+	 *
+	 * @param pConfig the configuration snapshot
+	 */
+	public XMLProperties(final Configuration pConfig) {
+		this.setConfiguration(pConfig);
+	}
+
 	/**
 	 * This returns a list of file handlers from the config file. 
 	 *
 	 * @return List<String> list of class names (including package) for the file handler
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
-@SuppressWarnings(value={"unchecked"})
 	public List<String> getFileHandlerClasses() throws SWORDException {
-		List<String> tClassesList = new ArrayList<String>();
-		
-		try {
-			for (Element tFileHandlerEl : (List<Element>)XPath.selectNodes(_props, "/properties/file_handlers/*")) {
-				if (tFileHandlerEl.getAttributeValue("class") == null || tFileHandlerEl.getAttributeValue("class").trim().length() == 0) {
-					throw new JDOMException("You must specify a class attribute for the node handler");
-				}
-				tClassesList.add(tFileHandlerEl.getAttributeValue("class"));
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "Couldn't load file handlers from properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
-		}
-
-		return tClassesList;
+		return this.getConfiguration().getFileHandlerClasses();
 	}
 
 	/**
@@ -117,20 +104,7 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
 	public String getTempDir() throws SWORDException {
-		Element tTempDir = null;
-		try {
-			tTempDir  = (Element)XPath.selectSingleNode(_props, "/properties/general/temp_dir");
-			if (tTempDir == null) {
-				throw new JDOMException("Couldn't find node temp_dir");
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured in getTempDir method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
-		}
-
-		return tTempDir.getText();
+		return this.getConfiguration().getTempDir();
 	}
 
 	/**
@@ -140,20 +114,7 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
 	public String getRepositoryUri() throws SWORDException {
-		Element tRepositoryUri = null;
-		try {
-			tRepositoryUri = (Element)XPath.selectSingleNode(_props, "/properties/general/repository_uri");
-			if (tRepositoryUri == null) {
-				throw new JDOMException("Couldn't find node repository_uri");
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured in getRepositoryUri method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
-		}
-
-		return tRepositoryUri.getText();
+		return this.getConfiguration().getRepositoryUri();
 	}
 
 	/**
@@ -164,20 +125,7 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
 	public String getExternalURL(final String pPID) throws SWORDException {
-		Element tExternalURL = null;
-		try {
-			tExternalURL = (Element)XPath.selectSingleNode(_props, "/properties/fedora/external_obj_url");
-			if (tExternalURL == null) {
-				throw new JDOMException("Couldn't find fedora external url");
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured in getExternalURL method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
-		}
-
-		return tExternalURL.getText().replaceAll("##PID##", pPID);
+		return this.getConfiguration().getExternalObjURL().replace("##PID##", pPID);
 	}
 
 	/**
@@ -189,20 +137,7 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
 	public String getExternalDSURL(final String pPID, final String pDSId) throws SWORDException {
-		Element tExternalURL = null;
-		try {
-			tExternalURL = (Element)XPath.selectSingleNode(_props, "/properties/fedora/external_ds_url");
-			if (tExternalURL == null) {
-				throw new JDOMException("Couldn't find fedora external url");
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured in getExternalURL method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
-		}
-
-		return tExternalURL.getText().replaceAll("##PID##", pPID).replaceAll("##DS##", pDSId);
+		return this.getConfiguration().getExternalDSURL().replace("##PID##", pPID).replace("##DS##", pDSId);
 	}
 
 	/**
@@ -212,20 +147,7 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
 	public String getPIDNamespace() throws SWORDException {
-		Element tPidNamespace = null;
-		try {
-			tPidNamespace  = (Element)XPath.selectSingleNode(_props, "/properties/fedora/pid_namespace");
-			if (tPidNamespace == null) {
-				throw new JDOMException("Couldn't find node pid_namespace");
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured in getPIDNamespace method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
-		}
-
-		return tPidNamespace.getText();
+		return this.getConfiguration().getPIDNamespace();
 	}
 
 	/** 
@@ -236,38 +158,163 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */ 
 	public String getFedoraURL() throws SWORDException {
-		Element tFedoraProps = _props.getRootElement().getChild("fedora");
-		if (tFedoraProps == null) {
-			LOG.error("Couldn't find fedora properties in properties files");
-			throw new SWORDException("Invlaid properties file");
-		}
+		return this.getConfiguration().getFedoraURL();
+	}	
 
-		String tProtocol = "";
-		if (tFedoraProps.getChild("protocol") == null) {
-			LOG.error("Couldn't find protocol under fedora properties in properties files");
-			throw new SWORDException("Invlaid properties file");
-		} else {
-			tProtocol = tFedoraProps.getChild("protocol").getText();
-		}
+	/**
+	 * This returns the number of Fedora SOAP clients that are kept for reuse
+	 *
+	 * @return int the client pool size
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public int getFedoraClientPoolSize() throws SWORDException {
+		return this.getConfiguration().getFedoraClientPoolSize();
+	}
 
-		String tHost = "";
-		if (tFedoraProps.getChild("host") == null) {
-			LOG.error("Couldn't find host under fedora properties in properties files");
-			throw new SWORDException("Invlaid properties file");
-		} else {
-			tHost = tFedoraProps.getChild("host").getText();
-		}
+	/**
+	 * This returns the number of PIDs that are reserved in Fedora at a time
+	 *
+	 * @return int the PID block size
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public int getPidBlockSize() throws SWORDException {
+		return this.getConfiguration().getPidBlockSize();
+	}
 
-		String tPort = null;
-		if (tFedoraProps.getChild("port") == null) {
-			LOG.error("Couldn't find port under fedora propertiepOnBehalfOfs in properties files");
-			throw new SWORDException("Invlaid properties file");
-		} else {
-			tPort = tFedoraProps.getChild("port").getText();
-		}
+	/**
+	 * This returns the number of reserved PIDs left at which more PIDs are reserved
+	 *
+	 * @return int the PID low water mark
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public int getPidLowWaterMark() throws SWORDException {
+		return this.getConfiguration().getPidLowWaterMark();
+	}
 
-		return tProtocol + "://" + tHost + ":" + tPort + "/fedora";
-	}	
+	/**
+	 * This returns how long the description of the Fedora instance is used before it is asked again
+	 *
+	 * @return long the refresh interval in milliseconds
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public long getRepositoryDescriptorRefresh() throws SWORDException {
+		return this.getConfiguration().getRepositoryDescriptorRefresh();
+	}
+
+	/**
+	 * This returns the checksum type of uploaded datastreams, e.g. MD5 or SHA-256
+	 *
+	 * @return String the digest algorithm or DISABLED
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public String getChecksumType() throws SWORDException {
+		return this.getConfiguration().getChecksumType();
+	}
+
+	/**
+	 * This returns whether the files in zip deposits are extracted to disk or uploaded straight from the zip file
+	 *
+	 * @return String either ZipFileAccess.MODE_EXTRACT or ZipFileAccess.MODE_STREAM
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public String getZipMode() throws SWORDException {
+		return this.getConfiguration().getZipMode();
+	}
+
+	/**
+	 * This returns the size of the JPEG derivatives
+	 *
+	 * @return Map<String, Integer> longest edge in pixels of the thumbnail, medium, high and very-high derivative
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public Map<String, Integer> getJpegDerivativeSizes() throws SWORDException {
+		return this.getConfiguration().getJpegDerivativeSizes();
+	}
+
+	/**
+	 * This returns the quality the JPEG derivatives are encoded with
+	 *
+	 * @return float quality between 0 and 1
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public float getJpegQuality() throws SWORDException {
+		return this.getConfiguration().getJpegQuality();
+	}
+
+	/**
+	 * This returns the limits for zip deposits into a collection
+	 *
+	 * @param pCollectionPID the collection deposited into
+	 * @return ArchiveLimits the limits of the collection or the global limits
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public ArchiveLimits getArchiveLimits(final String pCollectionPID) throws SWORDException {
+		return this.getConfiguration().getArchiveLimits(pCollectionPID);
+	}
+
+	/**
+	 * This returns how many files of one zip deposit are extracted at the same time
+	 *
+	 * @return int the number of extraction threads per deposit
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public int getZipThreads() throws SWORDException {
+		return this.getConfiguration().getZipThreads();
+	}
+
+	/**
+	 * This returns whether single file deposits are streamed to Fedora without a temp file
+	 *
+	 * @return boolean true if deposits are streamed
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public boolean isUploadStreaming() throws SWORDException {
+		return this.getConfiguration().isUploadStreaming();
+	}
+
+	/**
+	 * This returns the size of the buffer between the deposit and a streamed upload
+	 *
+	 * @return int the buffer size in bytes
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public int getUploadStreamBuffer() throws SWORDException {
+		return this.getConfiguration().getUploadStreamBuffer();
+	}
+
+	/**
+	 * This returns the size up to which deposits are kept in memory instead of the temp dir
+	 *
+	 * @return int the threshold in bytes
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public int getSpoolMemoryThreshold() throws SWORDException {
+		return this.getConfiguration().getSpoolMemoryThreshold();
+	}
+
+	/**
+	 * This returns the cache of recent uploads to the configured Fedora instance with the configured settings
+	 *
+	 * @return UploadCache the upload cache
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public UploadCache getUploadCache() throws SWORDException {
+		Configuration tConfig = this.getConfiguration();
+		return UploadCache.getInstance(this.getFedoraURL(), tConfig.getUploadCacheSize(), tConfig.getUploadCacheTtl(), tConfig.getUploadCacheAlgorithm());
+	}
+
+	/**
+	 * This returns the cache of recent authentication results against the configured Fedora instance
+	 * with the configured settings
+	 *
+	 * @return AuthenticationCache the authentication cache
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public AuthenticationCache getAuthenticationCache() throws SWORDException {
+		Configuration tConfig = this.getConfiguration();
+		return AuthenticationCache.getInstance(this.getFedoraURL(), tConfig.getAuthenticationCacheSize(),
+				tConfig.getAuthenticationCacheTtl(), tConfig.getAuthenticationCacheNegativeTtl());
+	}
 
 	/**
 	 * This returns the directory where the entry documents should be stored
@@ -276,20 +323,7 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
 	public String getEntryStoreLocation() throws SWORDException {
-		Element tEntryLoc = null;
-		try {
-			tEntryLoc  = (Element)XPath.selectSingleNode(_props, "/properties/general/entry-location");
-			if (tEntryLoc == null) {
-				throw new JDOMException("Couldn't find node entry-location");
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured in getEntryLoc method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
-		}
-
-        return StartupListener.realPathHelper(tEntryLoc.getText());
+        return StartupListener.realPathHelper(this.getConfiguration().getEntryLocation());
     }
 	/**
 	 * This returns the directory where the sub service documents are stored relative to the web app directory
@@ -298,20 +332,7 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
 	public String getSubSDDir() throws SWORDException {
-		Element tSubSDDir = null;
-		try {
-			tSubSDDir  = (Element)XPath.selectSingleNode(_props, "/properties/general/sub-service-documents");
-			if (tSubSDDir == null) {
-				throw new JDOMException("Couldn't find node sub-service-documents");
-			}
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured in getSubSDDir method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
-		}
-
-		return tSubSDDir.getText();
+		return this.getConfiguration().getSubSDDir();
 	}
 
 
@@ -323,43 +344,71 @@ public class XMLProperties {
 	 * @throws SWORDException if there was a problem reading the config file
 	 */
 	public ServiceDocument getServiceDocument(final String pOnBehalfOf) throws SWORDException {
-		Element tServiceDocumentElement = null;
+		XMLServiceDocument tServiceDoc = new XMLServiceDocument(this.getConfiguration().getServiceDocumentIndex(), pOnBehalfOf);
+		this.addLocationToService(tServiceDoc);
+		return tServiceDoc;
+	}
 
-		try {
-			tServiceDocumentElement = (Element)XPath.selectSingleNode(_props, "/properties/service_document");
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured on doServiceDocument method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
+	/**
+	 * This returns the serialized service document for a user. Users that can see the same collections
+	 * share the cached document, which must be treated as read-only.
+	 *
+	 * @param pOnBehalfOf The user that is requesting the ServiceDocument
+	 * @param pMaxUploadSize The maximum upload size to advertise, -1 for none
+	 * @return CachedServiceDocument the service document and its serialized form
+	 * @throws SWORDException if there was a problem reading the config file
+	 */
+	public CachedServiceDocument getCachedServiceDocument(final String pOnBehalfOf, final int pMaxUploadSize) throws SWORDException {
+		Configuration tConfig = this.getConfiguration();
+		String tKey = "servicedocument " + pMaxUploadSize + " " + tConfig.getServiceDocumentIndex().getVisibilitySignature(pOnBehalfOf);
+		CachedServiceDocument tCached = tConfig.getServiceDocumentCache().get(tKey);
+		if (tCached == null) {
+			tCached = CachedServiceDocument.render(this.getServiceDocument(pOnBehalfOf), pMaxUploadSize);
+			tConfig.getServiceDocumentCache().put(tKey, tCached);
 		}
+		return tCached;
+	}
 
-		XMLServiceDocument tServiceDoc = new XMLServiceDocument(tServiceDocumentElement, pOnBehalfOf);
+	/**
+	 * This returns a sub service document. Sub service documents are cached and parsed again
+	 * when the file has been modified.
+	 *
+	 * @param pOnBehalfOf The user that is requesting the ServiceDocument
+	 * @param pLocation The name of the sub service document file
+	 * @return ServiceDocument the service document
+	 * @throws SWORDException if the sub service document doesn't exist or can't be read
+	 */
+	public ServiceDocument getServiceDocument(final String pOnBehalfOf, final String pLocation) throws SWORDException {
+		XMLServiceDocument tServiceDoc = new XMLServiceDocument(this.getSubServiceDocument(pLocation).getIndex(), pOnBehalfOf);
 		this.addLocationToService(tServiceDoc);
 		return tServiceDoc;
 	}
 
-	
-	public ServiceDocument getServiceDocument(final String pOnBehalfOf, final String pLocation) throws SWORDException {
-		SAXBuilder tBuilder = new SAXBuilder();
-		Document tChildDocs = null; 
-		try {
-            tChildDocs = tBuilder.build(StartupListener.realPathHelper(new File(this.getSubSDDir(), pLocation).getPath()));
-		} catch (IOException tIOExcpt) {
-			String tMessage = "IO Exception occured on doServiceDocument method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tIOExcpt.toString());
-			throw new SWORDException(tMessage, tIOExcpt);
-		} catch (JDOMException tJDOMExcpt) {
-			String tMessage = "JDOM Exception occured on doServiceDocument method due to a problem accessing the properties file";
-			LOG.error(tMessage);
-			LOG.error(tJDOMExcpt.toString());
-			throw new SWORDException(tMessage, tJDOMExcpt);
+	/**
+	 * This returns the serialized sub service document for a user.
+	 *
+	 * @param pOnBehalfOf The user that is requesting the ServiceDocument
+	 * @param pLocation The name of the sub service document file
+	 * @param pMaxUploadSize The maximum upload size to advertise, -1 for none
+	 * @return CachedServiceDocument the service document and its serialized form
+	 * @throws SWORDException if the sub service document doesn't exist or can't be read
+	 */
+	public CachedServiceDocument getCachedServiceDocument(final String pOnBehalfOf, final String pLocation, final int pMaxUploadSize) throws SWORDException {
+		SubServiceDocumentCache.Entry tEntry = this.getSubServiceDocument(pLocation);
+		String tKey = pMaxUploadSize + " " + tEntry.getIndex().getVisibilitySignature(pOnBehalfOf);
+		CachedServiceDocument tCached = tEntry.getRenderedDocuments().get(tKey);
+		if (tCached == null) {
+			XMLServiceDocument tServiceDoc = new XMLServiceDocument(tEntry.getIndex(), pOnBehalfOf);
+			this.addLocationToService(tServiceDoc);
+			tCached = CachedServiceDocument.render(tServiceDoc, pMaxUploadSize);
+			tEntry.getRenderedDocuments().put(tKey, tCached);
 		}
+		return tCached;
+	}
 
-		XMLServiceDocument tServiceDoc = new XMLServiceDocument(tChildDocs.getRootElement(), pOnBehalfOf);
-		this.addLocationToService(tServiceDoc);
-		return tServiceDoc;
+	private SubServiceDocumentCache.Entry getSubServiceDocument(final String pLocation) throws SWORDException {
+		File tFile = new File(StartupListener.realPathHelper(new File(this.getSubSDDir(), pLocation).getPath()));
+		return this.getConfiguration().getSubServiceDocumentCache().get(pLocation, tFile);
 	}
 
 	private void addLocationToService(final XMLServiceDocument pServiceDoc) throws SWORDException {
@@ -371,22 +420,41 @@ public class XMLProperties {
 			 }
 		}
 	}
+
+	/**
+	 * Returns the configuration snapshot this object reads from
+	 *
+	 * @return Configuration the configuration snapshot
+	 * @throws SWORDException if the properties file couldn't be loaded
+	 */
+	public Configuration getConfiguration() throws SWORDException {
+		if (_config == null) {
+			throw new SWORDException("Properties file couldn't be loaded from " + StartupListener.getPropertiesLocation());
+		}
+		return _config;
+	}
+
+	private void setConfiguration(final Configuration pConfig) {
+		_config = pConfig;
+		_props = (pConfig == null) ? null : pConfig.getSharedDocument();
+	}
 	
 	/**
 	 * ** Use only when you don't have access to the source for XMLProperties **
+	 * The document is a copy, changes to it have no effect. Use setProps to change the properties.
 	 *
 	 * @return props as Document.
 	 */
 	public Document getProps() {
-	    return _props;
+	    return (_props == null) ? null : (Document) _props.clone();
 	}
 
 	/**
-	 * Set props.
+	 * Set props. This replaces the configuration snapshot of this object only.
 	 * ** Use only when you don't have access to the source for XMLProperties **
 	 * @param pProps The value to set.
 	 */
 	public void setProps(final Document pProps) {
-	     _props = pProps;
+	     this.setConfiguration(new Configuration(pProps));
 	}
 }
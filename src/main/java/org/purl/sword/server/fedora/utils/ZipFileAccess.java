@@ -40,29 +40,63 @@ package org.purl.sword.server.fedora.utils;
   * @version 1.0
   * Date: 26th February 2009
   *
-  * This is a utility class to similfy access to Zip files.
+  * This is a utility class to similfy access to Zip files. The files can either be
+  * extracted to disk or be read straight from the zip file when they are uploaded.
+  * Files are extracted by a pool shared by all deposits with one thread per core, each
+  * deposit uses at most the number of threads it was given.
   *
   */
 
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
+import org.purl.sword.base.ErrorCodes;
 import org.purl.sword.base.SWORDException;
 import org.purl.sword.server.fedora.fedoraObjects.Datastream;
 import org.purl.sword.server.fedora.fedoraObjects.LocalDatastream;
+import org.purl.sword.server.fedora.fedoraObjects.ZipEntryDatastream;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public class ZipFileAccess {
 	private static final Logger LOG = Logger.getLogger(ZipFileAccess.class);
+	/** Extract all files to disk before they are uploaded */
+	public static final String MODE_EXTRACT = "extract";
+	/** Upload the files straight from the zip file */
+	public static final String MODE_STREAM = "stream";
+
+	private static ForkJoinPool _extractors = null;
+	private static boolean _shutdown = false;
+
 	protected String _tmpExtractDirName = "";
+	protected ZipFile _zipFile = null;
+	protected int _threads = 1;
+	protected ArchiveLimits _limits = ArchiveLimits.NONE;
+	protected final AtomicLong _extractedBytes = new AtomicLong();
 
 	/**
 	 * Setup this object and tell it where it can extract the zip file to.
@@ -73,6 +107,27 @@ public class ZipFileAccess {
 		this.setTmpDir(pTempDir);
 	}
 
+	/**
+	 * Setup this object and tell it where it can extract the zip file to and how many
+	 * files it may extract at the same time.
+	 *
+	 * @param pTempDir the location where the zip file can be extracted to.
+	 * @param pThreads maximum number of files extracted at the same time
+	 */
+	public ZipFileAccess(final String pTempDir, final int pThreads) {
+		this(pTempDir);
+		_threads = Math.max(1, pThreads);
+	}
+
+	/**
+	 * Set the limits zip files opened after this are checked against.
+	 *
+	 * @param pLimits the limits
+	 */
+	public void setLimits(final ArchiveLimits pLimits) {
+		_limits = (pLimits == null) ? ArchiveLimits.NONE : pLimits;
+	}
+
 	/**
 	 * Get tempLocation.
 	 *
@@ -100,39 +155,359 @@ public class ZipFileAccess {
 	 * @throws IOException if there was a problem extracting the Zip file or if accessing the files.
 	 */
 	public List<Datastream> getFiles(final String pFile) throws IOException {
-		List<Datastream> tDatastreams = new ArrayList<Datastream>();
-		
+		this.open(pFile);
+		return this.getFiles(this.getFileEntries());
+	}
+
+	/**
+	 * This extracts the given entries of the zip file opened with open and returns them as a list of
+	 * datastreams in the same order.
+	 *
+	 * @param pEntries the entries to extract
+	 * @return List<Datastream> a list of datastreams
+	 * @throws IOException if there was a problem extracting the Zip file or if accessing the files.
+	 * @throws ArchiveLimitException if two entries would be extracted to the same file
+	 */
+	public List<Datastream> getFiles(final List<ZipEntry> pEntries) throws IOException {
+		this.checkTargetPaths(pEntries);
 		new File(this.getTmpExtractDirName()).mkdir();
-		ZipFile tZipFile = new ZipFile(pFile);
+		int tParallel = Math.min(pEntries.size(), _threads);
+		if (tParallel > 1) {
+			return this.extractParallel(this.getZipFile(), pEntries, tParallel);
+		}
 
-		Enumeration tEntries = tZipFile.entries();
+		List<Datastream> tDatastreams = new ArrayList<Datastream>();
+		for (ZipEntry tEntry : pEntries) {
+			tDatastreams.add(this.extract(this.getZipFile(), tEntry));
+		}
+		return tDatastreams;
+	}
 
-		ZipEntry tEntry = null;
-		File tFile = null;
-		String tFileLocation = "";
-		LocalDatastream tLocalDs = null;
-		while(tEntries.hasMoreElements()) {
-			tEntry = (ZipEntry)tEntries.nextElement();
+	/**
+	 * Entries that end up at the same path in the temp directory would overwrite each other, or
+	 * be written by two extractions at once. Names are compared with \ read as / and without
+	 * empty or . segments, which the file system ignores as well.
+	 */
+	private void checkTargetPaths(final List<ZipEntry> pEntries) throws ArchiveLimitException {
+		Set<String> tPaths = new HashSet<String>();
+		for (ZipEntry tEntry : pEntries) {
+			StringBuilder tPath = new StringBuilder();
+			for (String tSegment : tEntry.getName().replace('\\', '/').split("/")) {
+				if (tSegment.length() > 0 && !tSegment.equals(".")) {
+					tPath.append('/').append(tSegment);
+				}
+			}
+			if (!tPaths.add(tPath.toString())) {
+				throw new ArchiveLimitException("The zip file contains more than one entry for " + tEntry.getName(), ErrorCodes.ERROR_BAD_REQUEST);
+			}
+		}
+	}
 
-			if(tEntry.isDirectory()) {
-				//new File(ZIP_LOCATION + tEntry.getName()).mkdir();
-				continue;
+	/**
+	 * Extract one file of the zip file to the temp directory.
+	 *
+	 * @param pZipFile the open zip file
+	 * @param pEntry the entry to extract
+	 * @return LocalDatastream the datastream of the extracted file
+	 * @throws IOException if the entry can't be read or the file can't be written
+	 */
+	protected LocalDatastream extract(final ZipFile pZipFile, final ZipEntry pEntry) throws IOException {
+		String tFileLocation = this.getTmpExtractDirName() + System.getProperty("file.separator") + pEntry.getName();
+		File tFile = new File(tFileLocation);
+		LOG.debug("Saving " + pEntry.getName() + " to " + tFile.getPath());
+		tFile.getParentFile().mkdirs();
+		try (InputStream tIn = _limits.limit(pZipFile.getInputStream(pEntry), pEntry, _extractedBytes); OutputStream tOut = new FileOutputStream(tFile)) {
+			IOUtils.copy(tIn, tOut);
+		}
+
+		LocalDatastream tLocalDs = new LocalDatastream(this.getDatastreamId(tFile.getName()), FindMimeType.getMimeType(tFile), tFileLocation);
+		tLocalDs.setLabel(pEntry.getName());
+		return tLocalDs;
+	}
+
+	/**
+	 * Extract the files on the shared extraction pool, at most pParallel at a time. The datastreams
+	 * are returned in the order of the entries in the zip file whichever file is finished first.
+	 * If one file can't be extracted the files that haven't been started yet are skipped, and the
+	 * error is only thrown once the running extractions are finished, so that nothing is written
+	 * to the temp directory while it is removed.
+	 */
+	private List<Datastream> extractParallel(final ZipFile pZipFile, final List<ZipEntry> pEntries, final int pParallel) throws IOException {
+		final Datastream[] tDatastreams = new Datastream[pEntries.size()];
+		final RunningExtractions tRunning = new RunningExtractions();
+		CompletionService<Void> tExtractions = new ExecutorCompletionService<Void>(extractors());
+		List<Future<Void>> tFutures = new ArrayList<Future<Void>>();
+		int tNext = 0;
+		try {
+			while (tNext < pParallel) {
+				tFutures.add(tExtractions.submit(this.extractTask(pZipFile, pEntries, tNext++, tDatastreams, tRunning)));
+			}
+			for (int tDone = 0; tDone < pEntries.size(); tDone++) {
+				tExtractions.take().get();
+				if (tNext < pEntries.size()) {
+					tFutures.add(tExtractions.submit(this.extractTask(pZipFile, pEntries, tNext++, tDatastreams, tRunning)));
+				}
+			}
+		} catch (ExecutionException tExecExcpt) {
+			Throwable tCause = tExecExcpt.getCause();
+			if (tCause instanceof IOException) {
+				throw (IOException)tCause;
+			} else if (tCause instanceof RuntimeException) {
+				throw (RuntimeException)tCause;
+			}
+			throw new IOException("Couldn't extract zip file " + pZipFile.getName(), tCause);
+		} catch (InterruptedException tInterruptExcpt) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while extracting zip file " + pZipFile.getName());
+		} finally {
+			// a cancelled future doesn't stop a running extraction, so wait for those to finish
+			tRunning.stop();
+			for (Future<Void> tFuture : tFutures) {
+				tFuture.cancel(false);
+			}
+			tRunning.await();
+		}
+
+		return new ArrayList<Datastream>(Arrays.asList(tDatastreams));
+	}
+
+	private Callable<Void> extractTask(final ZipFile pZipFile, final List<ZipEntry> pEntries, final int pIndex, final Datastream[] pResults, final RunningExtractions pRunning) {
+		return new Callable<Void>() {
+			public Void call() throws IOException {
+				if (!pRunning.start()) {
+					return null;
+				}
+				try {
+					pResults[pIndex] = extract(pZipFile, pEntries.get(pIndex));
+				} finally {
+					pRunning.finish();
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Counts the extractions of one zip file that are running. Once stopped no extraction starts any more.
+	 */
+	private static final class RunningExtractions {
+		private int _running = 0;
+		private boolean _stopped = false;
+
+		synchronized boolean start() {
+			if (_stopped) {
+				return false;
+			}
+			_running++;
+			return true;
+		}
+
+		synchronized void finish() {
+			_running--;
+			this.notifyAll();
+		}
+
+		synchronized void stop() {
+			_stopped = true;
+		}
+
+		/**
+		 * Wait until no extraction is running, even if the thread is interrupted.
+		 */
+		synchronized void await() {
+			boolean tInterrupted = false;
+			while (_running > 0) {
+				try {
+					this.wait();
+				} catch (InterruptedException tInterruptExcpt) {
+					tInterrupted = true;
+				}
+			}
+			if (tInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static synchronized ForkJoinPool extractors() {
+		if (_shutdown) {
+			throw new RejectedExecutionException("Zip extraction has been shut down");
+		}
+		if (_extractors == null) {
+			_extractors = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				private final AtomicInteger _number = new AtomicInteger();
+
+				public ForkJoinWorkerThread newThread(ForkJoinPool pPool) {
+					ForkJoinWorkerThread tThread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pPool);
+					tThread.setName("sword-unzip-" + _number.incrementAndGet());
+					return tThread;
+				}
+			}, null, false);
+		}
+		return _extractors;
+	}
+
+	/**
+	 * Stop the extraction pool and give running extractions a few seconds to finish.
+	 */
+	static void shutdown() {
+		ForkJoinPool tCurrent;
+		synchronized (ZipFileAccess.class) {
+			_shutdown = true;
+			tCurrent = _extractors;
+			_extractors = null;
+		}
+		if (tCurrent == null) {
+			return;
+		}
+		tCurrent.shutdown();
+		try {
+			if (!tCurrent.awaitTermination(5, TimeUnit.SECONDS)) {
+				LOG.warn("Zip extraction didn't finish in time");
+				tCurrent.shutdownNow();
 			}
+		} catch (InterruptedException tInterruptExcpt) {
+			tCurrent.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
 
-			tFileLocation = this.getTmpExtractDirName() + System.getProperty("file.separator") + tEntry.getName();
-			tFile = new File(tFileLocation);
-			LOG.debug("Saving " + tEntry.getName() + " to " + tFile.getPath());
-			tFile.getParentFile().mkdirs();
-			IOUtils.copy(tZipFile.getInputStream(tEntry), new FileOutputStream(tFile));
+	/**
+	 * This returns a list of all the files in the zip file as datastreams which are uploaded
+	 * straight from the zip file, nothing is extracted. The zip file stays open until
+	 * removeLocalFiles is called.
+	 *
+	 * @param pFile the zip file
+	 * @return List<Datastream> a list of datastreams
+	 * @throws IOException if the zip file can't be read
+	 */
+	public List<Datastream> getEntries(final String pFile) throws IOException {
+		this.open(pFile);
+		return this.getEntries(this.getFileEntries());
+	}
 
-			tLocalDs = new LocalDatastream(tFile.getName().split("\\.")[0], FindMimeType.getMimeType(tFile.getName().split("\\.")[1]), tFileLocation);
-			tLocalDs.setLabel(tEntry.getName());
-			
-			tDatastreams.add(tLocalDs);
+	/**
+	 * This returns the given entries of the zip file opened with open as datastreams which are
+	 * uploaded straight from the zip file.
+	 *
+	 * @param pEntries the entries to upload
+	 * @return List<Datastream> a list of datastreams
+	 * @throws IOException if the zip file can't be read
+	 */
+	public List<Datastream> getEntries(final List<ZipEntry> pEntries) throws IOException {
+		List<Datastream> tDatastreams = new ArrayList<Datastream>();
+		ZipFile tZipFile = this.getZipFile();
+		for (ZipEntry tEntry : pEntries) {
+			String tFileName = new File(tEntry.getName()).getName();
+			LOG.debug("Streaming " + tEntry.getName() + " from " + tZipFile.getName());
+			ZipEntryDatastream tDatastream = new ZipEntryDatastream(this.getDatastreamId(tFileName), FindMimeType.getMimeType(tZipFile, tEntry), tZipFile, tEntry);
+			tDatastream.setLimits(_limits, _extractedBytes);
+			tDatastreams.add(tDatastream);
 		}
 
 		return tDatastreams;
-	}	
+	}
+
+	/**
+	 * Open a zip file. Only the central directory at the end of the file is read, entries are
+	 * read when they are extracted or uploaded. The zip file stays open until removeLocalFiles is called.
+	 *
+	 * @param pFile the zip file
+	 * @return ZipFile the open zip file
+	 * @throws ArchiveLimitException if the central directory exceeds the limits, the zip file is closed again
+	 * @throws IOException if the zip file can't be read
+	 */
+	public ZipFile open(final String pFile) throws IOException {
+		if (_zipFile != null) {
+			_zipFile.close();
+			_zipFile = null;
+		}
+		ZipFile tZipFile = new ZipFile(pFile);
+		try {
+			_limits.check(tZipFile);
+		} catch (ArchiveLimitException tLimitExcpt) {
+			tZipFile.close();
+			throw tLimitExcpt;
+		}
+		_extractedBytes.set(0);
+		_zipFile = tZipFile;
+		return _zipFile;
+	}
+
+	/**
+	 * Read an entry of the open zip file, counting the bytes against the limits.
+	 *
+	 * @param pEntry the entry
+	 * @return InputStream the content of the entry
+	 * @throws IOException if the entry can't be read
+	 */
+	public InputStream getInputStream(final ZipEntry pEntry) throws IOException {
+		return _limits.limit(this.getZipFile().getInputStream(pEntry), pEntry, _extractedBytes);
+	}
+
+	/**
+	 * @return ZipFile the zip file opened with open
+	 * @throws IllegalStateException if no zip file has been opened
+	 */
+	public ZipFile getZipFile() {
+		if (_zipFile == null) {
+			throw new IllegalStateException("No zip file has been opened");
+		}
+		return _zipFile;
+	}
+
+	/**
+	 * @return List<ZipEntry> all entries of the open zip file that aren't directories
+	 */
+	public List<ZipEntry> getFileEntries() {
+		List<ZipEntry> tEntries = new ArrayList<ZipEntry>();
+		Enumeration<? extends ZipEntry> tAllEntries = this.getZipFile().entries();
+		while (tAllEntries.hasMoreElements()) {
+			ZipEntry tEntry = tAllEntries.nextElement();
+			if (!tEntry.isDirectory()) {
+				tEntries.add(tEntry);
+			}
+		}
+		return tEntries;
+	}
+
+	/**
+	 * Look up a file in the open zip file by its name, ignoring case and the directory it is in.
+	 * If several directories contain the file the one closest to the top is returned.
+	 *
+	 * @param pFileName the name of the file without directory
+	 * @return ZipEntry the entry or null if there is no such file
+	 */
+	public ZipEntry findEntry(final String pFileName) {
+		ZipEntry tFound = null;
+		int tFoundDepth = Integer.MAX_VALUE;
+		for (ZipEntry tEntry : this.getFileEntries()) {
+			if (!new File(tEntry.getName()).getName().equalsIgnoreCase(pFileName)) {
+				continue;
+			}
+			int tDepth = tEntry.getName().split("/").length;
+			if (tDepth < tFoundDepth) {
+				tFound = tEntry;
+				tFoundDepth = tDepth;
+			}
+		}
+		return tFound;
+	}
+
+	/**
+	 * The datastream id is the file name without its extension. Compound extensions like
+	 * tar.gz are removed as a whole.
+	 *
+	 * @param pFileName the name of the extracted file
+	 * @return String the datastream id
+	 */
+	protected String getDatastreamId(final String pFileName) {
+		String tExtension = FindMimeType.getExtension(pFileName);
+		if (tExtension == null) {
+			return pFileName;
+		}
+		return pFileName.substring(0, pFileName.length() - tExtension.length() - 1);
+	}
 
 	/**
 	 * After ingest this removes all the directories that were created during the ingest. It will not 
@@ -142,6 +517,14 @@ public class ZipFileAccess {
 	 * @throws SWORDException if a file is present in the extract of the zip file after ingest has taken place
 	 */ 
 	public void removeLocalFiles() throws SWORDException {
+		if (_zipFile != null) {
+			try {
+				_zipFile.close();
+			} catch (IOException tIOExcpt) {
+				LOG.warn("Couldn't close " + _zipFile.getName() + ": " + tIOExcpt.getMessage());
+			}
+			_zipFile = null;
+		}
 		this.recursiveDelete(new File(this.getTmpExtractDirName()));
 	}
 
@@ -152,6 +535,10 @@ public class ZipFileAccess {
 	 */ 
 	protected void recursiveDelete(final File pDir) throws SWORDException {
 		File[] tFiles = pDir.listFiles();
+		if (tFiles == null) {
+			// Already removed, e.g. together with the deposit workspace
+			return;
+		}
 		if (tFiles.length == 0) {
 			// Empty dir so safe to delete
 			pDir.delete();
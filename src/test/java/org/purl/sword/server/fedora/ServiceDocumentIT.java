@@ -141,6 +141,23 @@ public class ServiceDocumentIT {
 		assertTrue("sword:mediation must contain either true or false", tMediation.getText().equals("true") || tMediation.getText().equals("false"));
 	}
 
+	@Test
+	public void testConditionalGet() throws IOException {
+		GetMethod tMethod = new GetMethod(_serviceDocURL);
+		assertEquals("Status non 200", 200, this.getClient().executeMethod(tMethod));
+		assertNotNull("ETag header not present", tMethod.getResponseHeader("ETag"));
+		String tETag = tMethod.getResponseHeader("ETag").getValue();
+
+		GetMethod tConditional = new GetMethod(_serviceDocURL);
+		tConditional.setRequestHeader("If-None-Match", tETag);
+		assertEquals("Unchanged service document should not be sent again", 304, this.getClient().executeMethod(tConditional));
+
+		GetMethod tStale = new GetMethod(_serviceDocURL);
+		tStale.setRequestHeader("If-None-Match", "\"stale\"");
+		assertEquals("Status non 200", 200, this.getClient().executeMethod(tStale));
+		assertEquals("ETag should be stable", tETag, tStale.getResponseHeader("ETag").getValue());
+	}
+
 	public static void main(final String pArgs[]) throws IOException {
 		org.junit.runner.JUnitCore.main(ServiceDocumentIT.class.getName());
 	}
@@ -0,0 +1,235 @@
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.jdom.Element;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.purl.sword.base.ErrorCodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ArchiveLimitsTest {
+
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+    private static final int UNCOMPRESSED_SIZE_OFFSET = 24;
+
+    private File zip;
+
+    @Before
+    public void createZipFile() throws IOException {
+        zip = File.createTempFile("archive-limits-test", ".zip");
+    }
+
+    @After
+    public void deleteZipFile() {
+        zip.delete();
+    }
+
+    @Test
+    public void should_accept_archive_within_limits() throws Exception {
+        writeZip(new String[]{"mets.xml", "files/a.pdf"}, 100);
+
+        check(new ArchiveLimits(10, 1000, 100, 2));
+    }
+
+    @Test
+    public void should_reject_path_traversal() throws Exception {
+        assertRejected(new String[]{"../evil.txt"}, ArchiveLimits.NONE, ErrorCodes.ERROR_BAD_REQUEST);
+        assertRejected(new String[]{"files/../../evil.txt"}, ArchiveLimits.NONE, ErrorCodes.ERROR_BAD_REQUEST);
+        assertRejected(new String[]{"..\\evil.txt"}, ArchiveLimits.NONE, ErrorCodes.ERROR_BAD_REQUEST);
+        assertRejected(new String[]{"/etc/evil.txt"}, ArchiveLimits.NONE, ErrorCodes.ERROR_BAD_REQUEST);
+    }
+
+    @Test
+    public void should_accept_dots_inside_names() throws Exception {
+        writeZip(new String[]{"files/..a.pdf", "files/a..pdf"}, 1);
+
+        check(ArchiveLimits.NONE);
+    }
+
+    @Test
+    public void should_reject_deeply_nested_path() throws Exception {
+        writeZip(new String[]{"a/b/c.pdf"}, 1);
+        check(new ArchiveLimits(0, 0, 0, 3));
+
+        assertRejected(new String[]{"a/b/c/d.pdf"}, new ArchiveLimits(0, 0, 0, 3), ErrorCodes.ERROR_BAD_REQUEST);
+    }
+
+    @Test
+    public void should_reject_too_many_entries() throws Exception {
+        assertRejected(new String[]{"a", "b", "c"}, new ArchiveLimits(2, 0, 0, 0), ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED);
+    }
+
+    @Test
+    public void should_reject_declared_size_above_max_bytes() throws Exception {
+        assertRejected(new String[]{"a", "b"}, 600, new ArchiveLimits(0, 1000, 0, 0), ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED);
+    }
+
+    @Test
+    public void should_reject_high_ratio_above_threshold() throws Exception {
+        int size = (int) ArchiveLimits.RATIO_THRESHOLD + 1;
+
+        assertRejected(new String[]{"zeros"}, size, new ArchiveLimits(0, 0, 100, 0), ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED);
+    }
+
+    @Test
+    public void should_accept_high_ratio_below_threshold() throws Exception {
+        writeZip(new String[]{"zeros"}, (int) ArchiveLimits.RATIO_THRESHOLD);
+        ArchiveLimits limits = new ArchiveLimits(0, 0, 100, 0);
+
+        check(limits);
+        assertEquals(ArchiveLimits.RATIO_THRESHOLD, read(limits, "zeros", null));
+    }
+
+    @Test
+    public void should_reject_high_ratio_while_reading_when_declared_size_is_wrong() throws Exception {
+        writeZip(new String[]{"zeros"}, (int) ArchiveLimits.RATIO_THRESHOLD * 2);
+        forgeUncompressedSizes(10);
+        ArchiveLimits limits = new ArchiveLimits(0, 0, 100, 0);
+        check(limits);
+
+        assertReadRejected(limits, "zeros", null);
+    }
+
+    @Test
+    public void should_reject_max_bytes_while_reading_when_declared_size_is_wrong() throws Exception {
+        writeZip(new String[]{"zeros"}, 5000);
+        forgeUncompressedSizes(10);
+        ArchiveLimits limits = new ArchiveLimits(0, 1000, 0, 0);
+        check(limits);
+
+        assertReadRejected(limits, "zeros", null);
+    }
+
+    @Test
+    public void should_reject_max_bytes_of_all_entries_read() throws Exception {
+        writeZip(new String[]{"a", "b"}, 600);
+        forgeUncompressedSizes(10);
+        ArchiveLimits limits = new ArchiveLimits(0, 1000, 0, 0);
+        check(limits);
+        AtomicLong total = new AtomicLong();
+
+        assertEquals(600, read(limits, "a", total));
+        assertReadRejected(limits, "b", total);
+    }
+
+    @Test
+    public void should_count_a_retried_read_once() throws Exception {
+        writeZip(new String[]{"a"}, 600);
+        ArchiveLimits limits = new ArchiveLimits(0, 1000, 0, 0);
+        AtomicLong total = new AtomicLong();
+        AtomicLong attempt = new AtomicLong();
+
+        assertEquals(600, read(limits, "a", total, attempt));
+        assertEquals(600, read(limits, "a", total, attempt));
+        assertEquals(600, total.get());
+    }
+
+    @Test
+    public void should_take_missing_limits_from_defaults() {
+        Element element = new Element("archive-limits");
+        element.addContent(new Element("max-bytes").setText("1073741824"));
+        element.addContent(new Element("max-ratio").setText("no number"));
+
+        ArchiveLimits limits = ArchiveLimits.parse(element, new ArchiveLimits(10000, 10737418240L, 100, 32));
+
+        assertEquals(10000, limits.getMaxEntries());
+        assertEquals(1073741824L, limits.getMaxBytes());
+        assertEquals(100, limits.getMaxRatio());
+        assertEquals(32, limits.getMaxDepth());
+    }
+
+    private void writeZip(String[] names, int size) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (String name : names) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(new byte[size]);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Overwrite the uncompressed sizes in the central directory, as a forged zip file would.
+     */
+    private void forgeUncompressedSizes(int size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(zip, "rw");
+        try {
+            for (long position = 0; position + 4 <= file.length(); position++) {
+                file.seek(position);
+                if (Integer.reverseBytes(file.readInt()) == CENTRAL_DIRECTORY_HEADER) {
+                    file.seek(position + UNCOMPRESSED_SIZE_OFFSET);
+                    file.writeInt(Integer.reverseBytes(size));
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void check(ArchiveLimits limits) throws IOException {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            limits.check(zipFile);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private long read(ArchiveLimits limits, String name, AtomicLong total) throws IOException {
+        return read(limits, name, total, null);
+    }
+
+    private long read(ArchiveLimits limits, String name, AtomicLong total, AtomicLong attempt) throws IOException {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            ZipEntry entry = zipFile.getEntry(name);
+            InputStream in = limits.limit(zipFile.getInputStream(entry), entry, total, attempt);
+            try {
+                return IOUtils.copyLarge(in, new NullOutputStream());
+            } finally {
+                in.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private void assertRejected(String[] names, ArchiveLimits limits, String errorCode) throws IOException {
+        assertRejected(names, 1, limits, errorCode);
+    }
+
+    private void assertRejected(String[] names, int size, ArchiveLimits limits, String errorCode) throws IOException {
+        writeZip(names, size);
+        try {
+            check(limits);
+            fail("Expected the zip file to exceed the limits");
+        } catch (ArchiveLimitException e) {
+            assertEquals(errorCode, e.getErrorCode());
+        }
+    }
+
+    private void assertReadRejected(ArchiveLimits limits, String name, AtomicLong total) throws IOException {
+        try {
+            read(limits, name, total);
+            fail("Expected the entry to exceed the limits while reading");
+        } catch (ArchiveLimitException e) {
+            assertEquals(ErrorCodes.MAX_UPLOAD_SIZE_EXCEEDED, e.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.purl.sword.server.fedora.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AuthenticationCacheTest {
+
+    private static final String FEDORA = "http://localhost:8080/fedora";
+
+    @Test
+    public void should_remember_authenticated_and_rejected_credentials() {
+        AuthenticationCache cache = new AuthenticationCache(10, 60000, 60000);
+        cache.putAuthenticated(FEDORA, "alice", "secret");
+        cache.putRejected(FEDORA, "bob", "wrong");
+
+        assertEquals(AuthenticationCache.Status.AUTHENTICATED, cache.get(FEDORA, "alice", "secret"));
+        assertEquals(AuthenticationCache.Status.REJECTED, cache.get(FEDORA, "bob", "wrong"));
+    }
+
+    @Test
+    public void should_not_mix_up_passwords_or_fedora_instances() {
+        AuthenticationCache cache = new AuthenticationCache(10, 60000, 60000);
+        cache.putAuthenticated(FEDORA, "alice", "secret");
+
+        assertEquals(AuthenticationCache.Status.UNKNOWN, cache.get(FEDORA, "alice", "other"));
+        assertEquals(AuthenticationCache.Status.UNKNOWN, cache.get("http://other:8080/fedora", "alice", "secret"));
+    }
+
+    @Test
+    public void should_forget_authentication_after_ttl() throws Exception {
+        AuthenticationCache cache = new AuthenticationCache(10, 50, 60000);
+        cache.putAuthenticated(FEDORA, "alice", "secret");
+
+        Thread.sleep(100);
+
+        assertEquals(AuthenticationCache.Status.UNKNOWN, cache.get(FEDORA, "alice", "secret"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void should_forget_rejection_after_negative_ttl() throws Exception {
+        AuthenticationCache cache = new AuthenticationCache(10, 60000, 50);
+        cache.putAuthenticated(FEDORA, "alice", "secret");
+        cache.putRejected(FEDORA, "bob", "wrong");
+
+        Thread.sleep(100);
+
+        assertEquals(AuthenticationCache.Status.UNKNOWN, cache.get(FEDORA, "bob", "wrong"));
+        assertEquals(AuthenticationCache.Status.AUTHENTICATED, cache.get(FEDORA, "alice", "secret"));
+    }
+
+    @Test
+    public void should_evict_least_recently_used_result() {
+        AuthenticationCache cache = new AuthenticationCache(2, 60000, 60000);
+        cache.putAuthenticated(FEDORA, "a", "pw");
+        cache.putAuthenticated(FEDORA, "b", "pw");
+        cache.get(FEDORA, "a", "pw");
+
+        cache.putAuthenticated(FEDORA, "c", "pw");
+
+        assertEquals(2, cache.size());
+        assertEquals(AuthenticationCache.Status.AUTHENTICATED, cache.get(FEDORA, "a", "pw"));
+        assertEquals(AuthenticationCache.Status.UNKNOWN, cache.get(FEDORA, "b", "pw"));
+        assertEquals(AuthenticationCache.Status.AUTHENTICATED, cache.get(FEDORA, "c", "pw"));
+    }
+
+    @Test
+    public void should_forget_invalidated_credentials() {
+        AuthenticationCache cache = new AuthenticationCache(10, 60000, 60000);
+        cache.putAuthenticated(FEDORA, "alice", "secret");
+        cache.putAuthenticated(FEDORA, "bob", "secret");
+
+        cache.invalidate(FEDORA, "alice", "secret");
+
+        assertEquals(AuthenticationCache.Status.UNKNOWN, cache.get(FEDORA, "alice", "secret"));
+        assertEquals(AuthenticationCache.Status.AUTHENTICATED, cache.get(FEDORA, "bob", "secret"));
+    }
+
+    @Test
+    public void should_forget_all_results_of_invalidated_user() {
+        AuthenticationCache cache = new AuthenticationCache(10, 60000, 60000);
+        cache.putAuthenticated(FEDORA, "alice", "old");
+        cache.putRejected(FEDORA, "alice", "new");
+        cache.putAuthenticated(FEDORA, "bob", "secret");
+
+        cache.invalidateUser("alice");
+
+        assertEquals(1, cache.size());
+        assertEquals(AuthenticationCache.Status.AUTHENTICATED, cache.get(FEDORA, "bob", "secret"));
+    }
+
+    @Test
+    public void should_keep_results_of_a_fedora_instance_when_settings_change() {
+        String fedora = "http://keep.example.org/fedora";
+        AuthenticationCache cache = AuthenticationCache.getInstance(fedora, 10, 60000, 60000);
+        cache.putAuthenticated(fedora, "alice", "secret");
+
+        AuthenticationCache reloaded = AuthenticationCache.getInstance(fedora, 20, 120000, 120000);
+
+        assertSame(cache, reloaded);
+        assertEquals(AuthenticationCache.Status.AUTHENTICATED, reloaded.get(fedora, "alice", "secret"));
+    }
+
+    @Test
+    public void should_remember_nothing_when_ttl_is_zero() {
+        AuthenticationCache cache = new AuthenticationCache(10, 0, 0);
+        cache.putAuthenticated(FEDORA, "alice", "secret");
+        cache.putRejected(FEDORA, "bob", "wrong");
+
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,93 @@
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.purl.sword.base.ErrorCodes;
+import org.purl.sword.base.SWORDException;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.*;
+
+public class DigestingInputStreamTest {
+
+    // MD5 of "hello world"
+    private static final String HEX = "5eb63bbbe01eeed093cb22bb8f5acdc3";
+    private static final String BASE64 = "XrY7u+Ae7tCTyyK7j1rNww==";
+
+    @Test
+    public void should_compute_digest_of_content_read() throws Exception {
+        DigestingInputStream in = digest("hello world");
+
+        assertEquals(HEX, in.getHexDigest("MD5"));
+        assertEquals(11, in.getCount());
+    }
+
+    @Test
+    public void should_accept_matching_hex_digest() throws Exception {
+        digest("hello world").verify("MD5", HEX);
+    }
+
+    @Test
+    public void should_accept_matching_upper_case_hex_digest() throws Exception {
+        digest("hello world").verify("MD5", HEX.toUpperCase());
+    }
+
+    @Test
+    public void should_accept_matching_base64_digest() throws Exception {
+        digest("hello world").verify("MD5", BASE64);
+    }
+
+    @Test
+    public void should_reject_mismatching_hex_digest() throws Exception {
+        assertMismatch(digest("hello world!"), HEX);
+    }
+
+    @Test
+    public void should_reject_mismatching_base64_digest() throws Exception {
+        assertMismatch(digest("hello world!"), BASE64);
+    }
+
+    @Test
+    public void should_reject_digest_that_is_neither_hex_nor_base64() throws Exception {
+        assertMismatch(digest("hello world"), "not a digest!");
+    }
+
+    @Test
+    public void should_not_verify_without_expected_digest() throws Exception {
+        DigestingInputStream in = digest("hello world");
+        in.verify("MD5", null);
+        in.verify("MD5", " ");
+    }
+
+    @Test
+    public void should_include_skipped_bytes_in_digest() throws Exception {
+        DigestingInputStream in = new DigestingInputStream(new ByteArrayInputStream("hello world".getBytes("US-ASCII")), "MD5");
+        assertEquals(6, in.skip(6));
+        IOUtils.toByteArray(in);
+
+        assertEquals(HEX, in.getHexDigest("MD5"));
+    }
+
+    @Test
+    public void should_ignore_disabled_checksums() throws Exception {
+        DigestingInputStream in = new DigestingInputStream(new ByteArrayInputStream(new byte[0]), DigestingInputStream.DISABLED, null);
+
+        assertFalse(in.hasDigest(DigestingInputStream.DISABLED));
+    }
+
+    private static DigestingInputStream digest(String content) throws Exception {
+        DigestingInputStream in = new DigestingInputStream(new ByteArrayInputStream(content.getBytes("US-ASCII")), "MD5", "SHA-1");
+        IOUtils.toByteArray(in);
+        return in;
+    }
+
+    private static void assertMismatch(DigestingInputStream in, String expected) {
+        try {
+            in.verify("MD5", expected);
+            fail("Expected a checksum mismatch");
+        } catch (SWORDException e) {
+            assertEquals(ErrorCodes.ERROR_CHECKSUM_MISMATCH, e.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferPipeTest {
+
+    @Test(timeout = 10000)
+    public void should_pass_content_through_smaller_ring() throws Exception {
+        byte[] content = new byte[100 * 1000];
+        new Random(42).nextBytes(content);
+        RingBufferPipe pipe = new RingBufferPipe(1000);
+
+        pipe.pump(new ByteArrayInputStream(content));
+
+        assertArrayEquals(content, IOUtils.toByteArray(pipe.getInputStream()));
+    }
+
+    @Test(timeout = 10000)
+    public void should_signal_end_of_stream_repeatedly() throws Exception {
+        RingBufferPipe pipe = new RingBufferPipe(16);
+        pipe.pump(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        InputStream in = pipe.getInputStream();
+
+        assertArrayEquals(new byte[]{1, 2, 3}, IOUtils.toByteArray(in));
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[4], 0, 4));
+    }
+
+    @Test(timeout = 10000)
+    public void should_signal_end_of_empty_source() throws Exception {
+        RingBufferPipe pipe = new RingBufferPipe(16);
+        pipe.pump(new ByteArrayInputStream(new byte[0]));
+
+        assertEquals(-1, pipe.getInputStream().read());
+    }
+
+    @Test(timeout = 10000)
+    public void should_pass_source_failure_to_consumer_after_buffered_bytes() throws Exception {
+        final IOException failure = new IOException("disk gone");
+        RingBufferPipe pipe = new RingBufferPipe(16);
+        pipe.pump(new InputStream() {
+            private int remaining = 5;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0) {
+                    throw failure;
+                }
+                remaining--;
+                return 'x';
+            }
+        });
+        InputStream in = pipe.getInputStream();
+
+        byte[] buffer = new byte[5];
+        int read = 0;
+        while (read < buffer.length) {
+            read += in.read(buffer, read, buffer.length - read);
+        }
+        assertArrayEquals("xxxxx".getBytes("US-ASCII"), buffer);
+        try {
+            in.read();
+            fail("Expected the failure of the source");
+        } catch (IOException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void should_stop_and_close_source_when_consumer_closes() throws Exception {
+        final CountDownLatch sourceClosed = new CountDownLatch(1);
+        RingBufferPipe pipe = new RingBufferPipe(16);
+        pipe.pump(new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+
+            @Override
+            public void close() {
+                sourceClosed.countDown();
+            }
+        });
+        InputStream in = pipe.getInputStream();
+        assertEquals('x', in.read());
+
+        in.close();
+
+        assertTrue(sourceClosed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000, expected = IOException.class)
+    public void should_not_read_after_consumer_closed() throws Exception {
+        RingBufferPipe pipe = new RingBufferPipe(16);
+        pipe.pump(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        InputStream in = pipe.getInputStream();
+        in.close();
+
+        in.read();
+    }
+}
@@ -0,0 +1,126 @@
+package org.purl.sword.server.fedora.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SpoolBufferTest {
+
+    private File overflowFile;
+
+    @Before
+    public void createOverflowFile() throws IOException {
+        overflowFile = File.createTempFile("spool-buffer-test", ".tmp");
+        overflowFile.delete();
+    }
+
+    @After
+    public void deleteOverflowFile() {
+        overflowFile.delete();
+    }
+
+    @Test
+    public void should_keep_content_up_to_threshold_in_memory() throws Exception {
+        byte[] content = randomBytes(SpoolBuffer.CHUNK_SIZE * 2 + 17);
+        SpoolBuffer buffer = SpoolBuffer.spool(new ByteArrayInputStream(content), content.length, overflowFile);
+
+        assertTrue(buffer.isInMemory());
+        assertNull(buffer.getFile());
+        assertFalse(overflowFile.exists());
+        assertEquals(content.length, buffer.getLength());
+        assertArrayEquals(content, read(buffer));
+    }
+
+    @Test
+    public void should_write_content_above_threshold_to_file() throws Exception {
+        byte[] content = randomBytes(SpoolBuffer.CHUNK_SIZE * 2 + 17);
+        SpoolBuffer buffer = SpoolBuffer.spool(new ByteArrayInputStream(content), content.length - 1, overflowFile);
+
+        assertFalse(buffer.isInMemory());
+        assertEquals(overflowFile, buffer.getFile());
+        assertEquals(content.length, overflowFile.length());
+        assertEquals(content.length, buffer.getLength());
+        assertArrayEquals(content, read(buffer));
+    }
+
+    @Test
+    public void should_move_buffered_content_to_file_on_overflow() throws Exception {
+        byte[] content = randomBytes(100);
+        SpoolBuffer buffer = new SpoolBuffer(60, overflowFile);
+        buffer.write(content, 0, 50);
+        assertTrue(buffer.isInMemory());
+        buffer.write(content, 50, 50);
+        buffer.close();
+
+        assertFalse(buffer.isInMemory());
+        assertArrayEquals(content, read(buffer));
+    }
+
+    @Test
+    public void should_write_everything_to_file_with_zero_threshold() throws Exception {
+        SpoolBuffer buffer = SpoolBuffer.spool(new ByteArrayInputStream(new byte[]{1}), 0, overflowFile);
+
+        assertFalse(buffer.isInMemory());
+        assertArrayEquals(new byte[]{1}, read(buffer));
+    }
+
+    @Test
+    public void should_delete_file_on_release() throws Exception {
+        SpoolBuffer buffer = SpoolBuffer.spool(new ByteArrayInputStream(randomBytes(10)), 5, overflowFile);
+        assertTrue(overflowFile.exists());
+
+        buffer.release();
+
+        assertFalse(overflowFile.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void should_not_open_stream_before_close() throws Exception {
+        SpoolBuffer buffer = new SpoolBuffer(10, overflowFile);
+        buffer.write(1);
+        buffer.openStream();
+    }
+
+    @Test(expected = IOException.class)
+    public void should_not_open_stream_after_release() throws Exception {
+        SpoolBuffer buffer = SpoolBuffer.spool(new ByteArrayInputStream(randomBytes(10)), 100, overflowFile);
+        buffer.release();
+        buffer.openStream();
+    }
+
+    @Test
+    public void should_not_leak_old_content_through_pooled_chunks() throws Exception {
+        byte[] first = new byte[SpoolBuffer.CHUNK_SIZE];
+        Arrays.fill(first, (byte) 7);
+        SpoolBuffer.spool(new ByteArrayInputStream(first), first.length, overflowFile).release();
+
+        SpoolBuffer buffer = SpoolBuffer.spool(new ByteArrayInputStream(new byte[]{1, 2, 3}), first.length, overflowFile);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, read(buffer));
+    }
+
+    private static byte[] read(SpoolBuffer buffer) throws IOException {
+        InputStream in = buffer.openStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,115 @@
+package org.purl.sword.server.fedora.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UploadCacheTest {
+
+    private static final String FEDORA = "http://localhost:8080/fedora";
+
+    @Test
+    public void should_return_remembered_upload() {
+        UploadCache cache = new UploadCache(10, 60000, "MD5");
+        cache.put(FEDORA, "abc", 3, "uploaded://1");
+
+        assertEquals("uploaded://1", cache.get(FEDORA, "ABC", 3));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void should_not_mix_up_fedora_instances_or_lengths() {
+        UploadCache cache = new UploadCache(10, 60000, "MD5");
+        cache.put(FEDORA, "abc", 3, "uploaded://1");
+
+        assertNull(cache.get("http://other:8080/fedora", "abc", 3));
+        assertNull(cache.get(FEDORA, "abc", 4));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void should_forget_upload_after_ttl() throws Exception {
+        UploadCache cache = new UploadCache(10, 50, "MD5");
+        cache.put(FEDORA, "abc", 3, "uploaded://1");
+
+        Thread.sleep(100);
+
+        assertNull(cache.get(FEDORA, "abc", 3));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void should_evict_least_recently_used_upload() {
+        UploadCache cache = new UploadCache(2, 60000, "MD5");
+        cache.put(FEDORA, "a", 1, "uploaded://a");
+        cache.put(FEDORA, "b", 1, "uploaded://b");
+        cache.get(FEDORA, "a", 1);
+
+        cache.put(FEDORA, "c", 1, "uploaded://c");
+
+        assertEquals(2, cache.size());
+        assertEquals("uploaded://a", cache.get(FEDORA, "a", 1));
+        assertNull(cache.get(FEDORA, "b", 1));
+        assertEquals("uploaded://c", cache.get(FEDORA, "c", 1));
+    }
+
+    @Test
+    public void should_forget_invalidated_upload() {
+        UploadCache cache = new UploadCache(10, 60000, "MD5");
+        cache.put(FEDORA, "a", 1, "uploaded://a");
+        cache.put(FEDORA, "b", 1, "uploaded://b");
+
+        cache.invalidate("uploaded://a");
+
+        assertNull(cache.get(FEDORA, "a", 1));
+        assertEquals("uploaded://b", cache.get(FEDORA, "b", 1));
+    }
+
+    @Test
+    public void should_forget_everything_on_invalidate_all() {
+        UploadCache cache = new UploadCache(10, 60000, "MD5");
+        cache.put(FEDORA, "a", 1, "uploaded://a");
+
+        cache.invalidateAll();
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void should_keep_uploads_of_a_fedora_instance_when_settings_change() {
+        String fedora = "http://keep.example.org/fedora";
+        UploadCache cache = UploadCache.getInstance(fedora, 10, 60000, "MD5");
+        cache.put(fedora, "a", 1, "uploaded://a");
+        cache.get(fedora, "a", 1);
+
+        UploadCache reloaded = UploadCache.getInstance(fedora, 20, 120000, "MD5");
+
+        assertSame(cache, reloaded);
+        assertEquals("uploaded://a", reloaded.get(fedora, "a", 1));
+        assertEquals(2, reloaded.getHits());
+    }
+
+    @Test
+    public void should_evict_uploads_above_smaller_size() {
+        String fedora = "http://shrink.example.org/fedora";
+        UploadCache cache = UploadCache.getInstance(fedora, 10, 60000, "MD5");
+        cache.put(fedora, "a", 1, "uploaded://a");
+        cache.put(fedora, "b", 1, "uploaded://b");
+        cache.put(fedora, "c", 1, "uploaded://c");
+
+        UploadCache.getInstance(fedora, 1, 60000, "MD5");
+
+        assertEquals(1, cache.size());
+        assertEquals("uploaded://c", cache.get(fedora, "c", 1));
+    }
+
+    @Test
+    public void should_remember_nothing_when_disabled() {
+        UploadCache cache = new UploadCache(0, 60000, "MD5");
+        cache.put(FEDORA, "a", 1, "uploaded://a");
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get(FEDORA, "a", 1));
+        assertEquals(0, cache.getMisses());
+    }
+}